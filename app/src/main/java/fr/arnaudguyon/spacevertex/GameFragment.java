@@ -29,12 +29,13 @@ import fr.arnaudguyon.spacevertex.network.GameConnection;
 import fr.arnaudguyon.spacevertex.network.GameDevice;
 import fr.arnaudguyon.spacevertex.network.PackMsg;
 import fr.arnaudguyon.spacevertex.objects.Scene;
+import fr.arnaudguyon.spacevertex.objects.SceneCommandQueue;
 import fr.arnaudguyon.spacevertex.objects.Ship;
 import fr.arnaudguyon.spacevertex.objects.ShipLocal;
 import fr.arnaudguyon.spacevertex.objects.ShipRemote;
 import fr.arnaudguyon.spacevertex.sound.Sounds;
 
-public class GameFragment extends Fragment implements GameConnection.MessageListener {
+public class GameFragment extends Fragment {
 
     private static final String TAG = "GameFragment";
     private static final int GAME_DURATION = BuildConfig.DEBUG ? 1 * 20 : 1 * 60;
@@ -47,10 +48,11 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
     private GameConnection gameConnection;
     private GameDevice otherPlayer;
     private final Handler mHandler = new Handler();
+    private ViewHolder mViewHolder;
+    // Game state, owned by the render thread: the network updates come through Scene.postCommand, see createSceneListener()
     private int mDisplayedChrono = GAME_DURATION;
     private int mDisplayNotice = 3;
-    private ViewHolder mViewHolder;
-    private boolean mGameOver;
+    private volatile boolean mGameOver;     // also read by the controls, on the UI thread
     private int mLocalScore;
     private int mLocalWins;
     private int mRemoteScore;
@@ -64,12 +66,14 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
 
         mScene.setGameConnection(gameConnection);
 
-        gameConnection.addMessageListener(PackMsg.MsgType.SHIP_INFO, this);
-        gameConnection.addMessageListener(PackMsg.MsgType.KILLED, this);
-        gameConnection.addMessageListener(PackMsg.MsgType.GAME_RESTART, this);
-        gameConnection.addMessageListener(PackMsg.MsgType.SHIP_FIRE, this);
-        gameConnection.addMessageListener(PackMsg.MsgType.GAME_CHRONO, this);
-        gameConnection.addMessageListener(PackMsg.MsgType.SHIP_SCORE, this);
+        gameConnection.addMessageHandler(PackMsg.MsgType.SHIP_INFO, PackMsg.ShipInfo.class, this::onShipInfo);
+        gameConnection.addMessageHandler(PackMsg.MsgType.SHIP_INFO_PACKED, PackMsg.ShipInfo.class, this::onShipInfo);
+        gameConnection.addMessageHandler(PackMsg.MsgType.SHIP_INFO_DELTA, PackMsg.ShipInfo.class, this::onShipInfo);
+        gameConnection.addMessageHandler(PackMsg.MsgType.KILLED, PackMsg.Killed.class, this::onKilled);
+        gameConnection.addMessageHandler(PackMsg.MsgType.GAME_RESTART, PackMsg.GameRestart.class, this::onGameRestart);
+        gameConnection.addMessageHandler(PackMsg.MsgType.SHIP_FIRE, PackMsg.ShipFire.class, this::onShipFire);
+        gameConnection.addMessageHandler(PackMsg.MsgType.GAME_CHRONO, PackMsg.GameChrono.class, this::onGameChrono);
+        gameConnection.addMessageHandler(PackMsg.MsgType.SHIP_SCORE, PackMsg.ShipScore.class, this::onShipScore);
     }
 
     @Nullable
@@ -121,6 +125,7 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
             final Scene scene = mScene;
             if (scene != null) {
                 scene.setGameConnection(null);
+                scene.stopRendering(this);
             }
             mViewHolder = null;
         }
@@ -177,76 +182,70 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
         });
 
         mShipLocal.setButtons(fireButton, boostButton, directionController);
-        scene.setLocalShip(mShipLocal);
-        scene.startRendering();
 
-        if (mShipRemote == null) {
-            mShipRemote = new ShipRemote(context);
-            scene.addObject(mShipRemote);
+        if (mShipRemote != null) {
+            scene.removeRemoteShip();   // from a previous view
         }
+        mShipRemote = new ShipRemote(context);
 
+        // Set up before being added: the render loop of the menu already runs, it owns the ships once they are in the scene
         final boolean isServer = gameConnection.isServer();
-        if (mShipLocal != null) {
-            if (isServer) {
-                mShipLocal.setPos(-400, 0);
-                mShipLocal.setRotation((float) (Math.PI));
-                mShipLocal.setWantedDirection((float) (Math.PI));
-            }
-            mShipLocal.setShipType(isServer ? Ship.ShipType.MOUSE : Ship.ShipType.CAT);
+        if (isServer) {
+            mShipLocal.setPos(-400, 0);
+            mShipLocal.setRotation((float) (Math.PI));
+            mShipLocal.setWantedDirection((float) (Math.PI));
         }
-        if (mShipRemote != null) {
-            mShipRemote.setShipType(isServer ? Ship.ShipType.CAT : Ship.ShipType.MOUSE);
-            mShipRemote.setReactorPower(Ship.ReactorPower.OFF, mShipLocal, mShipRemote);
-            scene.setRemoteShip(mShipRemote);
-            if (!isServer) {
-                mShipRemote.setPos(-400, 0);
-                mShipRemote.setRotation((float) (Math.PI / 2));
-            }
+        mShipLocal.setShipType(isServer ? Ship.ShipType.MOUSE : Ship.ShipType.CAT);
+        mShipRemote.setShipType(isServer ? Ship.ShipType.CAT : Ship.ShipType.MOUSE);
+        mShipRemote.setReactorPower(Ship.ReactorPower.OFF, mShipLocal, mShipRemote);
+        if (!isServer) {
+            mShipRemote.setPos(-400, 0);
+            mShipRemote.setRotation((float) (Math.PI / 2));
         }
-
         mShipLocal.setWebSockets(gameConnection);
         mShipRemote.setWebSockets(gameConnection);
+
+        scene.setLocalShip(mShipLocal);
+        scene.setRemoteShip(mShipRemote);
+        scene.addObject(mShipRemote);
+        scene.startRendering(this);
     }
 
-    @Override
-    public void onMessageReceived(@NonNull GameConnection gameConnection, @NonNull PackMsg packMsg) {
-        if (!isAdded()) {
-            return;
+    // Network threads
+    private void onShipInfo(@NonNull GameConnection gameConnection, @NonNull PackMsg.ShipInfo shipInfo) {
+        if (isAdded() && (mScene != null)) {
+            mScene.onMessageReceived(shipInfo);
         }
-        if (packMsg instanceof PackMsg.ShipInfo) {
-            if (mScene != null) {
-                mScene.onMessageReceived(packMsg);
-            }
-        } else if (packMsg instanceof PackMsg.ShipFire) {
-            final Scene scene = mScene;
-            if ((mShipRemote != null) && (scene != null)) {
-                mShipRemote.fire(scene, (PackMsg.ShipFire) packMsg, mShipLocal);
-            }
-        } else if (packMsg instanceof PackMsg.ShipScore) {
-            if ((mShipLocal != null) && (mShipLocal.getShipType() == Ship.ShipType.MOUSE)) {
-                ++mLocalScore;
-                Sounds.getInstance(getActivity()).playTic(true);
-            } else {
-                ++mRemoteScore;
-                Sounds.getInstance(getActivity()).playTic(false);
-            }
-            updateScores();
-        } else if (packMsg instanceof PackMsg.GameChrono) {
-            PackMsg.GameChrono gameChrono = (PackMsg.GameChrono) packMsg;
-            mDisplayedChrono = gameChrono.value;
-            updateScores();
-        } else if (packMsg instanceof PackMsg.Killed) {
-            mHandler.post(() -> {
-                if ((mShipRemote != null) && (mView != null)) {
-                    Scene scene = mScene;
-                    mShipRemote.setDestroyed(scene);
-                }
-            });
-        } else if (packMsg instanceof PackMsg.GameRestart) {
-            mView.post(() -> {
-                hideChrono();
-                restartAction();
-            });
+    }
+
+    private void onShipFire(@NonNull GameConnection gameConnection, @NonNull PackMsg.ShipFire shipFire) {
+        if (isAdded() && (mScene != null)) {
+            mScene.postCommand(SceneCommandQueue.Type.REMOTE_FIRE, shipFire);
+        }
+    }
+
+    private void onShipScore(@NonNull GameConnection gameConnection, @NonNull PackMsg.ShipScore shipScore) {
+        if (isAdded() && (mScene != null)) {
+            mScene.postCommand(SceneCommandQueue.Type.SHIP_SCORE, null);     // see onRemoteScore()
+        }
+    }
+
+    private void onGameChrono(@NonNull GameConnection gameConnection, @NonNull PackMsg.GameChrono gameChrono) {
+        if (isAdded() && (mScene != null)) {
+            mScene.postCommand(SceneCommandQueue.Type.GAME_CHRONO, gameChrono);   // see onRemoteChrono()
+        }
+    }
+
+    private void onKilled(@NonNull GameConnection gameConnection, @NonNull PackMsg.Killed killed) {
+        if (isAdded() && (mScene != null) && (mView != null)) {
+            mScene.postCommand(SceneCommandQueue.Type.REMOTE_DESTROYED, null);
+        }
+    }
+
+    private void onGameRestart(@NonNull GameConnection gameConnection, @NonNull PackMsg.GameRestart gameRestart) {
+        if (isAdded() && (mView != null)) {
+            hideChrono();
+            restartAction();
         }
     }
 
@@ -396,16 +395,7 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
     }
 
     private void restartAction() {
-        mDisplayedChrono = GAME_DURATION;
-        mLocalScore = 0;
-        mRemoteScore = 0;
-        mGameOver = false;
-        mScene.invertRoles();
-        HomeActivity activity = (HomeActivity) getActivity();
-        if (activity != null) {
-            activity.onGameOver(false);
-            changeControlsVisibility(true);
-        }
+        mScene.postCommand(SceneCommandQueue.Type.RESTART, null);    // see onGameRestarted()
     }
 
     private void sendWsChrono(int chronoValue) {
@@ -486,6 +476,43 @@ public class GameFragment extends Fragment implements GameConnection.MessageList
                 mDisplayNotice = 3;
             }
 
+            @Override
+            public void onGameRestarted() {
+                mDisplayedChrono = GAME_DURATION;
+                mLocalScore = 0;
+                mRemoteScore = 0;
+                mGameOver = false;
+                HomeActivity activity = (HomeActivity) getActivity();
+                if (activity != null) {
+                    activity.onGameOver(false);
+                    changeControlsVisibility(true);
+                }
+            }
+
+            @Override
+            public void onRemoteChrono(int chrono) {
+                if (getActivity() == null) {
+                    return;
+                }
+                mDisplayedChrono = chrono;
+                updateScores();
+            }
+
+            @Override
+            public void onRemoteScore() {
+                if (getActivity() == null) {
+                    return;
+                }
+                if ((mShipLocal != null) && (mShipLocal.getShipType() == Ship.ShipType.MOUSE)) {
+                    ++mLocalScore;
+                    Sounds.getInstance(getActivity()).playTic(true);
+                } else {
+                    ++mRemoteScore;
+                    Sounds.getInstance(getActivity()).playTic(false);
+                }
+                updateScores();
+            }
+
             @Override
             public void sendMessage(PackMsg message) {
                 if (gameConnection != null) {
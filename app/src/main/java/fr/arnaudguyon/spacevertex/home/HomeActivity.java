@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 
@@ -20,20 +21,25 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 
 import android.util.Log;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.net.DatagramSocket;
+
 import fr.arnaudguyon.spacevertex.BuildConfig;
 import fr.arnaudguyon.spacevertex.GameFragment;
 import fr.arnaudguyon.spacevertex.Prefs;
 import fr.arnaudguyon.spacevertex.R;
 import fr.arnaudguyon.spacevertex.network.GameConnection;
 import fr.arnaudguyon.spacevertex.network.GameDevice;
+import fr.arnaudguyon.spacevertex.network.NetworkCapabilities;
 import fr.arnaudguyon.spacevertex.network.PackMsg;
 import fr.arnaudguyon.spacevertex.network.UDPDiscover;
+import fr.arnaudguyon.spacevertex.network.UdpGameConnection;
 import fr.arnaudguyon.spacevertex.network.WebSocketHelper;
 import fr.arnaudguyon.spacevertex.objects.Scene;
 import fr.arnaudguyon.spacevertex.objects.StarFieldMenu;
@@ -42,6 +48,7 @@ import fr.arnaudguyon.spacevertex.sound.Music;
 
 public class HomeActivity extends AppCompatActivity implements HomeFragment.HomeListener, GameConnection.MessageListener, GameFragment.GameFragmentListener, GameConnection.PlayerConnectionListener {
 
+    private static final boolean USE_SURFACE_RENDERING = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);  // needs lockHardwareCanvas
     private final String TAG = getClass().getName();
     private Scene mScene;
     private final Handler mHandler = new Handler();
@@ -52,6 +59,7 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
     private WifiP2pManager.Channel mWifiDirectChannel;
     private Music mMusic;
     private GameDevice otherPlayer;
+    private DatagramSocket mUdpSocket;      // client side, offered during the handshake
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,6 +74,11 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
 
         // SCENE
         mScene = (Scene) findViewById(R.id.sceneView);
+        if (USE_SURFACE_RENDERING) {
+            SurfaceView sceneSurface = findViewById(R.id.sceneSurface);
+            sceneSurface.setVisibility(View.VISIBLE);
+            mScene.useSurfaceBackend(sceneSurface);
+        }
         mScene.setSceneReadyListener(scene -> {
 
             mScene.removeAllObjects();
@@ -73,16 +86,18 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
             // Back Starfield
             if (mStarFieldBack == null) {
                 mStarFieldBack = new StarFieldMenu(80, false);
+                mStarFieldBack.setPrerendered(true);
             }
             mScene.addObject(mStarFieldBack);
 
             // Front Starfield
             if (mStarFieldFront == null) {
                 mStarFieldFront = new StarFieldMenu(20, true);
+                mStarFieldFront.setPrerendered(true);
             }
             mScene.addObject(mStarFieldFront);
 
-            mScene.startRendering();
+            mScene.startRendering(HomeActivity.this);
         });
 
         UDPDiscover.getInstance().acquireMulticast(this);
@@ -98,6 +113,7 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
         if (mMusic != null) {
             mMusic.release();
         }
+        mScene.stopRendering(this);     // balances startRendering, or the loop stays counted as active
         super.onDestroy();
     }
 
@@ -122,6 +138,7 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
         if (mMusic != null) {
             mMusic.onPause();
         }
+        mScene.pauseRendering();
         super.onPause();
     }
 
@@ -129,6 +146,8 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
     public void onResume() {
         super.onResume();
 
+        mScene.resumeRendering();
+
         if (mMusic == null) {
             boolean musicOn = Prefs.isMusicEnabled(this);
             mMusic = new Music(this, musicOn);
@@ -223,7 +242,16 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
             if (gameConnection.isServer()) {
                 // Do nothing, wait for NetworkVersion so that we are sure his connection is ready to speak
             } else {
-                PackMsg.NetworkVersion networkVersion = new PackMsg.NetworkVersion(WebSocketHelper.getNetworkVersion(), device);
+                closeUdpSocket();
+                mUdpSocket = UdpGameConnection.openSocket();
+                int capabilities = NetworkCapabilities.getSupported();
+                int udpPort = 0;
+                if (mUdpSocket != null) {
+                    udpPort = mUdpSocket.getLocalPort();
+                } else {
+                    capabilities &= ~(NetworkCapabilities.UDP_TRANSPORT | NetworkCapabilities.RELIABLE_UDP);
+                }
+                PackMsg.NetworkVersion networkVersion = new PackMsg.NetworkVersion(WebSocketHelper.getNetworkVersion(), capabilities, udpPort, device);
                 sendMessage(networkVersion);
             }
         });
@@ -292,7 +320,20 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
             if ((otherPlayer == null) || (otherPlayer.equalsTo(otherDevice))) {
                 // Let's Play!
                 otherPlayer = otherDevice;
-                sendMessage(new PackMsg.StartGame(otherDevice));
+                int capabilities = NetworkCapabilities.agree(receivedMsg.capabilities);
+                DatagramSocket udpSocket = null;
+                if (NetworkCapabilities.has(capabilities, NetworkCapabilities.UDP_TRANSPORT)) {
+                    udpSocket = UdpGameConnection.openSocket();
+                    if (udpSocket == null) {
+                        capabilities &= ~(NetworkCapabilities.UDP_TRANSPORT | NetworkCapabilities.RELIABLE_UDP);
+                    }
+                }
+                int udpPort = (udpSocket != null) ? udpSocket.getLocalPort() : 0;
+                sendMessage(new PackMsg.StartGame(capabilities, udpPort, otherDevice));
+                setCapabilities(capabilities);
+                if (udpSocket != null) {
+                    gameConnection = UdpGameConnection.wrap(gameConnection, udpSocket, otherDevice, receivedMsg.udpPort, capabilities);
+                }
                 startToPlay(gameConnection);
                 UDPDiscover.getInstance().stopBroadcast();
             } else {
@@ -326,9 +367,29 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
     // we are client side
     private void startGame(PackMsg.StartGame packMsg) {
         otherPlayer = packMsg.getDevice();
+        setCapabilities(NetworkCapabilities.agree(packMsg.capabilities));
+        if (NetworkCapabilities.has(packMsg.capabilities, NetworkCapabilities.UDP_TRANSPORT) && (mUdpSocket != null)) {
+            gameConnection = UdpGameConnection.wrap(gameConnection, mUdpSocket, otherPlayer, packMsg.udpPort, packMsg.capabilities);
+            mUdpSocket = null;  // owned by the connection now
+        } else {
+            closeUdpSocket();
+        }
         startToPlay(gameConnection);
     }
 
+    private void setCapabilities(int capabilities) {
+        if (gameConnection instanceof WebSocketHelper) {
+            ((WebSocketHelper) gameConnection).setCapabilities(capabilities);
+        }
+    }
+
+    private void closeUdpSocket() {
+        if (mUdpSocket != null) {
+            mUdpSocket.close();
+            mUdpSocket = null;
+        }
+    }
+
     private void startToPlay(final GameConnection gameConnection) {
 
         if (otherPlayer == null) {
@@ -409,6 +470,7 @@ public class HomeActivity extends AppCompatActivity implements HomeFragment.Home
             gameConnection.disconnect();
             gameConnection = null;
         }
+        closeUdpSocket();
 
         mClosingConnections = false;
         otherPlayer = null;
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the values written by a {@link BitWriter}, with the same number of bits and ranges.
+ * Reading after the end of the buffer returns 0 bits, so a truncated message cannot throw.
+ * Reads the bytes in place, by absolute index: the position of the buffer is left untouched.
+ */
+public class BitReader {
+
+    private ByteBuffer mBuffer;
+    private int mBitPos;
+    private int mBitLength;
+
+    public BitReader() {
+    }
+
+    /**
+     * @param byteOffset absolute index of the first byte to read
+     * @param byteEnd absolute index after the last byte to read
+     */
+    public @NonNull BitReader reset(@NonNull ByteBuffer buffer, int byteOffset, int byteEnd) {
+        mBuffer = buffer;
+        mBitPos = byteOffset * 8;
+        mBitLength = Math.min(byteEnd, buffer.limit()) * 8;
+        return this;
+    }
+
+    /**
+     * @param nbBits 1 to 32
+     * @return the bits read, unsigned
+     */
+    public int readBits(int nbBits) {
+        int value = 0;
+        for (int i = 0; i < nbBits; ++i) {
+            value <<= 1;
+            if (mBitPos < mBitLength) {
+                value |= (mBuffer.get(mBitPos >> 3) >> (7 - (mBitPos & 7))) & 1;
+            }
+            ++mBitPos;
+        }
+        return value;
+    }
+
+    public boolean readBoolean() {
+        return readBits(1) != 0;
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readBits(32));
+    }
+
+    public float readSignedFloat(float maxAbs, int nbBits) {
+        return dequantizeSigned(readSignedStep(nbBits), maxAbs, nbBits);
+    }
+
+    public int readSignedStep(int nbBits) {
+        return readBits(nbBits) - ((1 << (nbBits - 1)) - 1);
+    }
+
+    /**
+     * @return angle in [0, 2PI[
+     */
+    public float readAngle(int nbBits) {
+        return dequantizeAngle(readBits(nbBits), nbBits);
+    }
+
+    public static float dequantizeSigned(int step, float maxAbs, int nbBits) {
+        return step * maxAbs / ((1 << (nbBits - 1)) - 1);
+    }
+
+    public static float dequantizeAngle(int step, int nbBits) {
+        return (float) (step * 2 * Math.PI / (1 << nbBits));
+    }
+
+    /**
+     * @return true if more bits have been read than available
+     */
+    public boolean isOverflow() {
+        return mBitPos > mBitLength;
+    }
+}
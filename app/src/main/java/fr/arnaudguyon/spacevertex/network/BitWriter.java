@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Writes values on an arbitrary number of bits in a byte array, most significant bit first.
+ * Floats can be quantized on a range, see {@link BitReader} to read them back.
+ */
+public class BitWriter {
+
+    private byte[] mBuffer;
+    private int mBitPos;
+
+    public BitWriter() {
+    }
+
+    /**
+     * Starts writing in buffer at byteOffset.
+     */
+    public @NonNull BitWriter reset(@NonNull byte[] buffer, int byteOffset) {
+        mBuffer = buffer;
+        mBitPos = byteOffset * 8;
+        return this;
+    }
+
+    /**
+     * Writes the nbBits lowest bits of value.
+     * @param nbBits 1 to 32
+     */
+    public void writeBits(int value, int nbBits) {
+        for (int i = nbBits - 1; i >= 0; --i) {
+            final int byteIndex = mBitPos >> 3;
+            final int mask = 0x80 >> (mBitPos & 7);
+            if (((value >>> i) & 1) != 0) {
+                mBuffer[byteIndex] |= mask;
+            } else {
+                mBuffer[byteIndex] &= ~mask;
+            }
+            ++mBitPos;
+        }
+    }
+
+    public void writeBoolean(boolean value) {
+        writeBits(value ? 1 : 0, 1);
+    }
+
+    public void writeFloat(float value) {
+        writeBits(Float.floatToRawIntBits(value), 32);
+    }
+
+    /**
+     * Writes value quantized on [-maxAbs, maxAbs], clamped. 0 is encoded exactly.
+     * Max error: maxAbs / (2^(nbBits-1) - 1) / 2
+     */
+    public void writeSignedFloat(float value, float maxAbs, int nbBits) {
+        writeSignedStep(quantizeSigned(value, maxAbs, nbBits), nbBits);
+    }
+
+    /**
+     * Writes a step returned by {@link #quantizeSigned(float, float, int)}.
+     */
+    public void writeSignedStep(int step, int nbBits) {
+        writeBits(step + (1 << (nbBits - 1)) - 1, nbBits);
+    }
+
+    /**
+     * Writes an angle in radians, any value, quantized on [0, 2PI[ with 2^nbBits steps.
+     */
+    public void writeAngle(float radians, int nbBits) {
+        writeBits(quantizeAngle(radians, nbBits), nbBits);
+    }
+
+    /**
+     * @return value as a step in [-(2^(nbBits-1) - 1), 2^(nbBits-1) - 1], see {@link BitReader#dequantizeSigned(int, float, int)}
+     */
+    public static int quantizeSigned(float value, float maxAbs, int nbBits) {
+        final int maxStep = (1 << (nbBits - 1)) - 1;
+        final int step = Math.round(value / maxAbs * maxStep);
+        return Math.max(-maxStep, Math.min(maxStep, step));
+    }
+
+    /**
+     * @return angle as a step in [0, 2^nbBits[, see {@link BitReader#dequantizeAngle(int, int)}
+     */
+    public static int quantizeAngle(float radians, int nbBits) {
+        final double turns = radians / (2 * Math.PI);
+        final long step = Math.round((turns - Math.floor(turns)) * (1 << nbBits));
+        return (int) step & ((1 << nbBits) - 1);    // 2PI wraps to 0
+    }
+
+    /**
+     * @return number of bits written since the start of the buffer
+     */
+    public int getBitPosition() {
+        return mBitPos;
+    }
+
+    /**
+     * @return number of bytes used in the buffer, the last one may be partial
+     */
+    public int getByteLength() {
+        return (mBitPos + 7) >> 3;
+    }
+}
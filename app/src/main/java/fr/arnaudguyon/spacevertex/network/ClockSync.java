@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Estimates the offset between the clock of the other player and ours, with the round trip time and its jitter.
+ * NTP style: each Ping carries our send time, the Pong returns it with the reception and send times of the other side,
+ * the offset is taken from the exchange of lowest round trip among the last ones (the least queued), then smoothed.
+ * Each side reads the Clock of its connection, System.nanoTime() in the game. Called by the receive threads, readable from any thread.
+ */
+public class ClockSync {
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = System::nanoTime;
+
+    private static final long FAST_PING_INTERVAL_NANOS = 200_000_000L;    // until synchronized
+    private static final long PING_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int FILTER_SIZE = 8;                             // exchanges kept to pick the best one
+    private static final int SYNCHRONIZED_SAMPLES = 4;
+
+    private final @NonNull ConnectionStats mStats;
+    private final @NonNull Clock mClock;
+    private final long[] mFilterRtt = new long[FILTER_SIZE];
+    private final long[] mFilterOffset = new long[FILTER_SIZE];
+    private int mSampleCount;
+    private long mLastPingNanos;
+    private long mOffsetNanos;          // remote clock - local clock
+    private long mRttNanos;
+    private long mJitterNanos;
+    private long mLastRttNanos;
+
+    public ClockSync(@NonNull ConnectionStats stats, @NonNull Clock clock) {
+        mStats = stats;
+        mClock = clock;
+    }
+
+    /**
+     * @return the clock of our side, the one the Pings and Pongs are timed with
+     */
+    @NonNull Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return true if a Ping must be sent now. The caller sends it with now as originate time.
+     */
+    synchronized boolean shouldPing(long now) {
+        final long interval = (mSampleCount < SYNCHRONIZED_SAMPLES) ? FAST_PING_INTERVAL_NANOS : PING_INTERVAL_NANOS;
+        if ((mLastPingNanos != 0) && (now - mLastPingNanos < interval)) {
+            return false;
+        }
+        mLastPingNanos = now;
+        return true;
+    }
+
+    /**
+     * @param now local time when the Pong was received
+     */
+    synchronized void onPong(@NonNull PackMsg.Pong pong, long now) {
+        final long rtt = (now - pong.originateTime) - (pong.transmitTime - pong.receiveTime);
+        if (rtt < 0) {
+            return;     // not one of our pings
+        }
+        final long offset = ((pong.receiveTime - pong.originateTime) + (pong.transmitTime - now)) / 2;
+        final int index = mSampleCount % FILTER_SIZE;
+        mFilterRtt[index] = rtt;
+        mFilterOffset[index] = offset;
+        ++mSampleCount;
+
+        int best = 0;
+        final int count = Math.min(mSampleCount, FILTER_SIZE);
+        for (int i = 1; i < count; ++i) {
+            if (mFilterRtt[i] < mFilterRtt[best]) {
+                best = i;
+            }
+        }
+        if (mSampleCount == 1) {
+            mOffsetNanos = offset;
+            mRttNanos = rtt;
+        } else {
+            mOffsetNanos += (mFilterOffset[best] - mOffsetNanos) / 8;
+            mRttNanos = (7 * mRttNanos + rtt) / 8;
+            mJitterNanos += (Math.abs(rtt - mLastRttNanos) - mJitterNanos) / 16;    // RFC 3550
+        }
+        mLastRttNanos = rtt;
+        mStats.setClockState(mOffsetNanos, mRttNanos, mJitterNanos);
+    }
+
+    /**
+     * @return true once enough exchanges have been made for the offset to be trusted
+     */
+    public synchronized boolean isSynchronized() {
+        return mSampleCount >= SYNCHRONIZED_SAMPLES;
+    }
+
+    /**
+     * @return clock of the other player minus ours
+     */
+    public synchronized long getOffsetNanos() {
+        return mOffsetNanos;
+    }
+
+    /**
+     * @return smoothed round trip time, 0 if unknown
+     */
+    public synchronized long getRttNanos() {
+        return mRttNanos;
+    }
+
+    /**
+     * @return mean variation of the round trip time between 2 exchanges
+     */
+    public synchronized long getJitterNanos() {
+        return mJitterNanos;
+    }
+
+    /**
+     * @param remoteNanos a time of the other player
+     * @return the same time on our clock
+     */
+    public synchronized long toLocalTime(long remoteNanos) {
+        return remoteNanos - mOffsetNanos;
+    }
+
+    /**
+     * @return the current time of the other player
+     */
+    public synchronized long getRemoteTime() {
+        return mClock.nanoTime() + mOffsetNanos;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of a {@link GameConnection}, updated by its threads and readable from any thread.
+ */
+public class ConnectionStats {
+
+    private volatile int mQueueDepth;
+    private volatile int mMaxQueueDepth;
+    private volatile int mQueueCapacity;
+    private final @NonNull AtomicLong mQueuedCount = new AtomicLong();
+    private final @NonNull AtomicLong mDroppedCount = new AtomicLong();
+    private final @NonNull AtomicLong mSentCount = new AtomicLong();
+    private final @NonNull AtomicLong mSkippedCount = new AtomicLong();
+    private final @NonNull AtomicLong mDatagramsSent = new AtomicLong();
+    private final @NonNull AtomicLong mDatagramsReceived = new AtomicLong();
+    private final @NonNull AtomicLong mBatchesSent = new AtomicLong();
+    private final @NonNull AtomicLong mLostCount = new AtomicLong();
+    private final @NonNull AtomicLong mDuplicateCount = new AtomicLong();
+    private final @NonNull AtomicLong mReorderedCount = new AtomicLong();
+    private final @NonNull AtomicLong mShipStatePackedBytes = new AtomicLong();
+    private final @NonNull AtomicLong mShipStateSentBytes = new AtomicLong();
+    private volatile long mResendCount;
+    private volatile long mRttNanos;
+    private volatile int mInFlightCount;
+    private volatile long mClockOffsetNanos;
+    private volatile long mPingRttNanos;
+    private volatile long mJitterNanos;
+
+    void onQueued(int queueDepth) {
+        mQueuedCount.incrementAndGet();
+        mQueueDepth = queueDepth;
+        if (queueDepth > mMaxQueueDepth) {
+            mMaxQueueDepth = queueDepth;
+        }
+    }
+
+    void onDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    void onDequeued(int queueDepth) {
+        mQueueDepth = queueDepth;
+    }
+
+    void onSent() {
+        mSentCount.incrementAndGet();
+    }
+
+    void onSkipped() {
+        mSkippedCount.incrementAndGet();
+    }
+
+    void onDatagramSent() {
+        mDatagramsSent.incrementAndGet();
+    }
+
+    void onDatagramReceived() {
+        mDatagramsReceived.incrementAndGet();
+    }
+
+    void onBatchSent(int messageCount) {
+        mSentCount.addAndGet(messageCount);
+        mBatchesSent.incrementAndGet();
+    }
+
+    void onSequenceLost(int count) {
+        mLostCount.addAndGet(count);
+    }
+
+    void onSequenceDuplicate() {
+        mDuplicateCount.incrementAndGet();
+    }
+
+    /**
+     * @param countedAsLost true if the message was counted as lost when a newer one arrived
+     */
+    void onSequenceLate(boolean countedAsLost) {
+        if (countedAsLost) {
+            mLostCount.decrementAndGet();
+        }
+        mReorderedCount.incrementAndGet();
+    }
+
+    /**
+     * @param packedBytes size of the same state as SHIP_INFO_PACKED
+     */
+    void onShipStateEncoded(int packedBytes, int sentBytes) {
+        mShipStatePackedBytes.addAndGet(packedBytes);
+        mShipStateSentBytes.addAndGet(sentBytes);
+    }
+
+    void setReliableState(long resendCount, long rttNanos, int inFlightCount) {
+        mResendCount = resendCount;
+        mRttNanos = rttNanos;
+        mInFlightCount = inFlightCount;
+    }
+
+    void setClockState(long offsetNanos, long rttNanos, long jitterNanos) {
+        mClockOffsetNanos = offsetNanos;
+        mPingRttNanos = rttNanos;
+        mJitterNanos = jitterNanos;
+    }
+
+    void setQueueCapacity(int capacity) {
+        mQueueCapacity = capacity;
+    }
+
+    /**
+     * @return messages waiting for the writer thread
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    public long getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * @return messages lost because the writer queue was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return messages written to the socket
+     */
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    /**
+     * @return SKIP_WHEN_BUSY messages replaced by a newer one while the socket was busy
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    public long getDatagramsSent() {
+        return mDatagramsSent.get();
+    }
+
+    public long getDatagramsReceived() {
+        return mDatagramsReceived.get();
+    }
+
+    /**
+     * @return reliable messages sent again over UDP because their ack did not come in time
+     */
+    public long getResendCount() {
+        return mResendCount;
+    }
+
+    /**
+     * @return smoothed round trip time measured by the reliable UDP acks, 0 if unknown
+     */
+    public long getRttNanos() {
+        return mRttNanos;
+    }
+
+    /**
+     * @return reliable UDP messages waiting for their ack
+     */
+    public int getInFlightCount() {
+        return mInFlightCount;
+    }
+
+    /**
+     * @return unreliable UDP messages that never arrived, see SequenceTracker
+     */
+    public long getLostCount() {
+        return mLostCount.get();
+    }
+
+    /**
+     * @return unreliable UDP messages received twice
+     */
+    public long getDuplicateCount() {
+        return mDuplicateCount.get();
+    }
+
+    /**
+     * @return unreliable UDP messages received after a newer one, dropped as stale
+     */
+    public long getReorderedCount() {
+        return mReorderedCount.get();
+    }
+
+    /**
+     * @return clock of the other player minus ours, see ClockSync
+     */
+    public long getClockOffsetNanos() {
+        return mClockOffsetNanos;
+    }
+
+    /**
+     * @return smoothed round trip time measured by PING / PONG, 0 if unknown
+     */
+    public long getPingRttNanos() {
+        return mPingRttNanos;
+    }
+
+    public long getJitterNanos() {
+        return mJitterNanos;
+    }
+
+    /**
+     * @return WebSocket frames carrying batched messages, see getSentCount() for the messages
+     */
+    public long getBatchesSent() {
+        return mBatchesSent.get();
+    }
+
+    /**
+     * @return size of the ship states if they were sent as SHIP_INFO_PACKED, divided by their delta encoded size. 1 if none
+     */
+    public float getShipStateCompressionRatio() {
+        final long sentBytes = mShipStateSentBytes.get();
+        return (sentBytes > 0) ? (float) mShipStatePackedBytes.get() / sentBytes : 1;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "queue " + mQueueDepth + "/" + mQueueCapacity + " (max " + mMaxQueueDepth + ")"
+                + ", queued " + getQueuedCount() + ", sent " + getSentCount()
+                + ", dropped " + getDroppedCount() + ", skipped " + getSkippedCount()
+                + ", batches " + getBatchesSent()
+                + ", udp sent " + getDatagramsSent() + ", udp received " + getDatagramsReceived()
+                + ", lost " + getLostCount() + ", duplicates " + getDuplicateCount() + ", reordered " + getReorderedCount()
+                + ", resent " + mResendCount + ", rtt " + (mRttNanos / 1_000_000) + "ms"
+                + ", ping " + (mPingRttNanos / 1_000_000) + "ms, jitter " + (mJitterNanos / 1_000_000) + "ms, clock offset " + (mClockOffsetNanos / 1_000_000) + "ms"
+                + ", ship state compression x" + getShipStateCompressionRatio();
+    }
+}
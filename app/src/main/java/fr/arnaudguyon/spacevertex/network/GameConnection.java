@@ -11,10 +11,40 @@ import androidx.annotation.Nullable;
 public interface GameConnection {
 
     void addMessageListener(@NonNull PackMsg.MsgType type, @NonNull MessageListener listener);
+
+    /**
+     * Like {@link #addMessageListener}, for a handler which receives the message with its class.
+     */
+    default <T extends PackMsg> void addMessageHandler(@NonNull PackMsg.MsgType type, @NonNull Class<T> messageClass, @NonNull MessageHandler<T> handler) {
+        addMessageListener(type, (connection, packMsg) -> {
+            if (messageClass.isInstance(packMsg)) {
+                handler.onMessageReceived(connection, messageClass.cast(packMsg));
+            }
+        });
+    }
     void removeMessageListeners();
 
+    /**
+     * Never blocks: the message is copied and sent later by a writer thread, so the sender can reuse it.
+     */
     void sendMessage(@NonNull PackMsg packMsg);
 
+    /**
+     * End of a simulation tick: the messages sent since the previous call leave together, in one frame if possible.
+     */
+    void flushBatch();
+    @NonNull ConnectionStats getStats();
+
+    /**
+     * @return clock offset and round trip time with the other player, if it has NetworkCapabilities.CLOCK_SYNC
+     */
+    @NonNull ClockSync getClockSync();
+
+    /**
+     * @return the NetworkCapabilities agreed with the other player during the handshake
+     */
+    int getCapabilities();
+
     void registerConnectionListener(@NonNull PlayerConnectionListener listener);
     void unregisterConnectionListener();
 
@@ -25,6 +55,10 @@ public interface GameConnection {
         void onMessageReceived(@NonNull GameConnection gameConnection, @NonNull PackMsg packMsg);
     }
 
+    interface MessageHandler<T extends PackMsg> {
+        void onMessageReceived(@NonNull GameConnection gameConnection, @NonNull T packMsg);
+    }
+
     interface PlayerConnectionListener {
         void onGameConnectionCreated(@NonNull GameConnection gameConnection);
         void onPlayerJoined(@NonNull GameConnection gameConnection, @NonNull GameDevice device);
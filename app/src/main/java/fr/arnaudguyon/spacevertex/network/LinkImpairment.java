@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+/**
+ * What a simulated network does to the packets of one direction of a {@link LoopbackGameConnection}.
+ * Called by the sending threads, one at a time: an implementation can keep a state (queue of a bandwidth cap, random generator).
+ */
+public interface LinkImpairment {
+
+    int MAX_COPIES = 4;
+
+    /**
+     * Perfect link: every packet arrives at once.
+     */
+    LinkImpairment NONE = (nowNanos, size, reliable, delays) -> {
+        delays[0] = 0;
+        return 1;
+    };
+
+    /**
+     * Decides what becomes of a packet sent now.
+     * @param size bytes of the packet
+     * @param reliable the packet cannot be lost nor duplicated (like on the WebSocket): its losses must become retransmission delays
+     * @param delays filled with the delay of each copy delivered, in nanoseconds after nowNanos. MAX_COPIES long
+     * @return number of copies delivered: 0 if the packet is lost, more than 1 if it is duplicated
+     */
+    int schedule(long nowNanos, int size, boolean reliable, @NonNull long[] delays);
+}
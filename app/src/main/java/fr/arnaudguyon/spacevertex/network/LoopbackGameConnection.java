@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import fr.arnaudguyon.spacevertex.network.loopback.LoopbackGameDevice;
+
+/**
+ * In-process GameConnection pair, to run two players without network nor phones (benchmarks, tests on a desktop JVM).
+ * Each direction goes through a {@link LinkImpairment}. Time comes from a {@link ClockSync.Clock}: with a {@link ManualClock},
+ * a run goes as fast as the CPU allows.
+ * <p>
+ * Nothing runs by itself: {@link #pump()} delivers the packets due at the current time to the listeners, on the calling
+ * thread, which plays the receive thread of the connection. Like {@link UdpGameConnection}, the SKIP_WHEN_BUSY messages
+ * are unreliable (lost, duplicated, reordered, the late ones dropped) and the others reliable and in order (losses only delay them).
+ * The received messages are views, valid during the listener call, see {@link PackMsg.Reader}.
+ */
+public class LoopbackGameConnection implements GameConnection {
+
+    /**
+     * Clock which only moves when told to.
+     */
+    public static class ManualClock implements ClockSync.Clock {
+
+        private volatile long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        public void advance(long nanos) {
+            mNanos += nanos;
+        }
+
+        public void set(long nanos) {
+            mNanos = nanos;
+        }
+    }
+
+    private static class Packet {
+        final long mDeliveryNanos;
+        final long mOrder;      // send order, breaks the ties
+        final boolean mReliable;
+        final @NonNull byte[] mData;
+
+        Packet(long deliveryNanos, long order, boolean reliable, @NonNull byte[] data) {
+            mDeliveryNanos = deliveryNanos;
+            mOrder = order;
+            mReliable = reliable;
+            mData = data;
+        }
+    }
+
+    private final boolean mServer;
+    private final @NonNull ClockSync.Clock mClock;
+    private final @NonNull LinkImpairment mImpairment;     // of the packets sent
+    private final @NonNull GameDevice mPeerDevice;
+    private LoopbackGameConnection mPeer;
+    private final int mCapabilities;
+    private final @NonNull ConnectionStats mStats = new ConnectionStats();
+    private final @NonNull ClockSync mClockSync;
+    private final @NonNull MessageDispatcher mDispatcher;
+    private volatile PlayerConnectionListener mListener;
+    private volatile long mClockOffsetNanos;   // simulated, see setClockOffset()
+    private volatile boolean mDisconnected;
+
+    // Sending side, guarded by this
+    private final @NonNull long[] mDelays = new long[LinkImpairment.MAX_COPIES];
+    private long mSendOrder;
+    private final @NonNull int[] mUnreliableSequences = new int[PackMsg.MsgType.SEQUENCE_STREAMS];   // by stream
+    private int mReliableSequence;
+    private long mLastReliableDeliveryNanos;
+
+    // Receiving side: mInbound guarded by itself, the rest by the pumping thread
+    private final @NonNull PriorityQueue<Packet> mInbound = new PriorityQueue<>(64, (a, b) ->
+            (a.mDeliveryNanos != b.mDeliveryNanos) ? Long.compare(a.mDeliveryNanos, b.mDeliveryNanos) : Long.compare(a.mOrder, b.mOrder));
+    private final @NonNull SequenceTracker[] mUnreliableTrackers = new SequenceTracker[PackMsg.MsgType.SEQUENCE_STREAMS];
+    private final @NonNull PackMsg.Reader mReader = new PackMsg.Reader();
+
+    private LoopbackGameConnection(boolean server, @NonNull ClockSync.Clock clock, @NonNull LinkImpairment impairment, @NonNull GameDevice peerDevice, int capabilities) {
+        mServer = server;
+        mClock = clock;
+        mClockSync = new ClockSync(mStats, () -> clock.nanoTime() + mClockOffsetNanos);
+        mDispatcher = new MessageDispatcher(mClockSync);
+        mImpairment = impairment;
+        mPeerDevice = peerDevice;
+        mCapabilities = capabilities;
+        for (int i = 0; i < mUnreliableTrackers.length; ++i) {
+            mUnreliableTrackers[i] = new SequenceTracker(mStats);
+        }
+    }
+
+    /**
+     * @param serverToClient impairment of the messages sent by the server
+     * @param clientToServer impairment of the messages sent by the client, another instance
+     * @param capabilities NetworkCapabilities of both ends, as if agreed during the handshake
+     * @return the server end then the client end. The device of an end is the one of the messages it receives
+     */
+    public static @NonNull LoopbackGameConnection[] createPair(@NonNull ClockSync.Clock clock, @NonNull LinkImpairment serverToClient, @NonNull LinkImpairment clientToServer, int capabilities) {
+        final LoopbackGameConnection server = new LoopbackGameConnection(true, clock, serverToClient, new LoopbackGameDevice("client"), capabilities);
+        final LoopbackGameConnection client = new LoopbackGameConnection(false, clock, clientToServer, new LoopbackGameDevice("server"), capabilities);
+        server.mPeer = client;
+        client.mPeer = server;
+        return new LoopbackGameConnection[] { server, client };
+    }
+
+    /**
+     * Simulates a device whose clock is ahead of the shared one by nanos, for the clock synchronisation (PING / PONG) only:
+     * the packets are still delivered on the shared clock.
+     */
+    public void setClockOffset(long nanos) {
+        mClockOffsetNanos = nanos;
+    }
+
+    /**
+     * @return the other end, the device messages are sent to
+     */
+    public @NonNull GameDevice getPeerDevice() {
+        return mPeerDevice;
+    }
+
+    /**
+     * Copies the message and schedules its copies on the other end. Never blocks.
+     */
+    @Override
+    public void sendMessage(@NonNull PackMsg packMsg) {
+        if (mDisconnected) {
+            return;
+        }
+        final boolean reliable = (packMsg.getSendPolicy() != PackMsg.SendPolicy.SKIP_WHEN_BUSY);
+        final int length = packMsg.getLength();
+        final long now = mClock.nanoTime();
+        synchronized (this) {
+            final byte[] data = Arrays.copyOf(packMsg.getBuffer(), length);
+            PackMsg.writeSequence(data, 0, length, reliable ? mReliableSequence++ : mUnreliableSequences[packMsg.getType().getSequenceStream()]++);
+            final int copies = mImpairment.schedule(now, length, reliable, mDelays);
+            mStats.onSent();
+            mStats.onDatagramSent();
+            for (int i = 0; i < copies; ++i) {
+                long deliveryNanos = now + mDelays[i];
+                if (reliable) {
+                    deliveryNanos = Math.max(deliveryNanos, mLastReliableDeliveryNanos);   // in order, like TCP
+                    mLastReliableDeliveryNanos = deliveryNanos;
+                }
+                mPeer.enqueue(new Packet(deliveryNanos, mSendOrder++, reliable, data));
+            }
+        }
+    }
+
+    private void enqueue(@NonNull Packet packet) {
+        synchronized (mInbound) {
+            mInbound.add(packet);
+        }
+    }
+
+    /**
+     * Receive side: notifies the listeners of the packets due at the current time of the clock.
+     * To call from one thread at a time.
+     * @return number of packets delivered
+     */
+    public int pump() {
+        final long now = mClock.nanoTime();
+        int count = 0;
+        while (!mDisconnected) {
+            final Packet packet;
+            synchronized (mInbound) {
+                packet = mInbound.peek();
+                if ((packet == null) || (packet.mDeliveryNanos > now)) {
+                    break;
+                }
+                mInbound.poll();
+            }
+            mStats.onDatagramReceived();
+            ++count;
+            if (!packet.mReliable) {
+                final int seq = PackMsg.readSequence(packet.mData, 0, packet.mData.length);
+                final int stream = PackMsg.MsgType.get(packet.mData[PackMsg.HEADER_TYPE_IDX]).getSequenceStream();
+                if ((seq >= 0) && !mUnreliableTrackers[stream].onReceive(seq)) {
+                    continue;   // duplicate, or older than a message already delivered
+                }
+            }
+            final PackMsg packMsg = mReader.read(ByteBuffer.wrap(packet.mData), mPeerDevice);
+            if (packMsg != null) {
+                mDispatcher.dispatch(this, packMsg);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return clock time of the next packet to deliver, Long.MAX_VALUE if none: a {@link ManualClock} can jump to it
+     */
+    public long getNextDeliveryNanos() {
+        synchronized (mInbound) {
+            final Packet packet = mInbound.peek();
+            return (packet != null) ? packet.mDeliveryNanos : Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public void addMessageListener(@NonNull PackMsg.MsgType type, @NonNull MessageListener listener) {
+        mDispatcher.addMessageListener(type, listener);
+    }
+
+    @Override
+    public void removeMessageListeners() {
+        mDispatcher.removeMessageListeners();
+    }
+
+    @Override
+    public void flushBatch() {
+        // each message is its own packet
+    }
+
+    @Override
+    public @NonNull ConnectionStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public @NonNull ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    @Override
+    public int getCapabilities() {
+        return mCapabilities;
+    }
+
+    @Override
+    public void registerConnectionListener(@NonNull PlayerConnectionListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void unregisterConnectionListener() {
+        mListener = null;
+    }
+
+    /**
+     * Closes both ends: the packets on the way are lost, the listener of the other end is told.
+     */
+    @Override
+    public void disconnect() {
+        if (mDisconnected) {
+            return;
+        }
+        mDisconnected = true;
+        removeMessageListeners();
+        mPeer.onPeerDisconnected();
+    }
+
+    private void onPeerDisconnected() {
+        if (mDisconnected) {
+            return;
+        }
+        mDisconnected = true;
+        synchronized (mInbound) {
+            mInbound.clear();
+        }
+        final PlayerConnectionListener listener = mListener;
+        if (listener != null) {
+            listener.onPlayerLeft(this, mPeerDevice);
+        }
+    }
+
+    @Override
+    public boolean isServer() {
+        return mServer;
+    }
+
+    public boolean isDisconnected() {
+        return mDisconnected;
+    }
+
+    @Override
+    public @NonNull String toString() {
+        return "LoopbackGameConnection " + (mServer ? "server" : "client") + " " + mStats;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+
+/**
+ * Delivers the messages received by a connection to its listeners, whatever the transport.
+ * The PINGs and PONGs are handled first, as soon as received (see {@link ClockSync}), timed by its clock.
+ * Listeners by type are copied on write: the receive threads read them without lock nor allocation.
+ */
+class MessageDispatcher {
+
+    private static final GameConnection.MessageListener[] NO_LISTENERS = new GameConnection.MessageListener[0];
+
+    private final @NonNull ClockSync mClockSync;
+    private final @NonNull ClockSync.Clock mClock;
+    private volatile @NonNull EnumMap<PackMsg.MsgType, GameConnection.MessageListener[]> mMessageListeners = new EnumMap<>(PackMsg.MsgType.class);
+
+    // Created at the first exchange then refilled, under mClockSyncLock: sendMessage copies them, they are free once it returns
+    private final @NonNull Object mClockSyncLock = new Object();
+    private PackMsg.Ping mPing;
+    private PackMsg.Pong mPong;
+
+    MessageDispatcher(@NonNull ClockSync clockSync) {
+        mClockSync = clockSync;
+        mClock = clockSync.getClock();
+    }
+
+    synchronized void addMessageListener(@NonNull PackMsg.MsgType type, @NonNull GameConnection.MessageListener listener) {
+        EnumMap<PackMsg.MsgType, GameConnection.MessageListener[]> listeners = new EnumMap<>(mMessageListeners);
+        GameConnection.MessageListener[] previous = listeners.get(type);
+        if (previous == null) {
+            previous = NO_LISTENERS;
+        }
+        GameConnection.MessageListener[] typeListeners = Arrays.copyOf(previous, previous.length + 1);
+        typeListeners[previous.length] = listener;
+        listeners.put(type, typeListeners);
+        mMessageListeners = listeners;
+    }
+
+    synchronized void removeMessageListeners() {
+        mMessageListeners = new EnumMap<>(PackMsg.MsgType.class);
+    }
+
+    /**
+     * Handles the clock synchronisation, then notifies the listeners of the other messages.
+     */
+    void dispatch(@NonNull GameConnection connection, @NonNull PackMsg packMsg) {
+        if (!handleClockSync(connection, packMsg)) {
+            notifyListeners(connection, packMsg);
+        }
+    }
+
+    void notifyListeners(@NonNull GameConnection connection, @NonNull PackMsg packMsg) {
+        final GameConnection.MessageListener[] listeners = mMessageListeners.get(packMsg.getType());
+        if (listeners != null) {
+            for (GameConnection.MessageListener listener : listeners) {
+                listener.onMessageReceived(connection, packMsg);
+            }
+        }
+    }
+
+    /**
+     * Answers the PINGs and measures the PONGs, and sends our PINGs on the received traffic,
+     * if the connection has NetworkCapabilities.CLOCK_SYNC.
+     * @return true if packMsg was a PING or a PONG, not to be notified
+     */
+    boolean handleClockSync(@NonNull GameConnection connection, @NonNull PackMsg packMsg) {
+        if (!NetworkCapabilities.has(connection.getCapabilities(), NetworkCapabilities.CLOCK_SYNC)) {
+            return false;
+        }
+        final long now = mClock.nanoTime();
+        final PackMsg.MsgType type = packMsg.getType();
+        if (type == PackMsg.MsgType.PING) {
+            sendPong(connection, ((PackMsg.Ping) packMsg).originateTime, now, packMsg.getDevice());
+            connection.flushBatch();    // don't wait for the next tick, the delay would count in the round trip
+            return true;
+        }
+        if (type == PackMsg.MsgType.PONG) {
+            mClockSync.onPong((PackMsg.Pong) packMsg, now);
+            return true;
+        }
+        if (mClockSync.shouldPing(now)) {
+            sendPing(connection, now, packMsg.getDevice());
+            connection.flushBatch();
+        }
+        return false;
+    }
+
+    private void sendPing(@NonNull GameConnection connection, long now, @NonNull GameDevice device) {
+        synchronized (mClockSyncLock) {
+            if (mPing == null) {
+                mPing = new PackMsg.Ping(now, device);
+            } else {
+                mPing.set(now, device);
+            }
+            connection.sendMessage(mPing);
+        }
+    }
+
+    private void sendPong(@NonNull GameConnection connection, long originateTime, long receiveTime, @NonNull GameDevice device) {
+        synchronized (mClockSyncLock) {
+            final long transmitTime = mClock.nanoTime();
+            if (mPong == null) {
+                mPong = new PackMsg.Pong(originateTime, receiveTime, transmitTime, device);
+            } else {
+                mPong.set(originateTime, receiveTime, transmitTime, device);
+            }
+            connection.sendMessage(mPong);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of outgoing messages: several producers (render, UI, network threads), one consumer (the writer thread).
+ * Slots are preallocated and the message bytes are copied into them, so the producers can reuse their messages.
+ * Each slot has a sequence number telling whether it is free for the producers or ready for the consumer.
+ */
+public class MessageRing {
+
+    private static final int INITIAL_SLOT_SIZE = 64;
+
+    static class Slot {
+        byte[] mData = new byte[INITIAL_SLOT_SIZE];
+        int mLength;
+        PackMsg.MsgType mType;
+        PackMsg.SendPolicy mSendPolicy;
+        GameDevice mDevice;
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final @NonNull Slot[] mSlots;
+    private final @NonNull AtomicLongArray mSequences;
+    private final @NonNull AtomicLong mTail = new AtomicLong();   // next position to fill, shared by the producers
+    private volatile long mHead;                                    // next position to read, consumer only
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    public MessageRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mSlots = new Slot[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            mSlots[i] = new Slot();
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Copies the message in a free slot. Never blocks.
+     * @return false if the ring is full, the message is then dropped
+     */
+    public boolean offer(@NonNull PackMsg message) {
+        long position = mTail.get();
+        int index;
+        for (;;) {
+            index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;   // the consumer has not released this slot yet: full
+            } else {
+                position = mTail.get(); // another producer took it
+            }
+        }
+
+        final Slot slot = mSlots[index];
+        final byte[] buffer = message.getBuffer();
+        final int length = message.getLength();
+        if (slot.mData.length < length) {
+            slot.mData = new byte[length];
+        }
+        System.arraycopy(buffer, 0, slot.mData, 0, length);
+        slot.mLength = length;
+        slot.mType = message.getType();
+        slot.mSendPolicy = message.getSendPolicy();
+        slot.mDevice = message.getDevice();
+        // publish to the consumer. A volatile store, not lazySet: NetworkWriter.send() reads mSleeping right after,
+        // and the writer must not be able to see the ring empty while we see it awake
+        mSequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest message, still owned by the ring until {@link #release()}, or null if empty
+     */
+    @Nullable Slot peek() {
+        final long head = mHead;
+        final int index = (int) (head & mMask);
+        if (mSequences.get(index) != head + 1) {
+            return null;
+        }
+        return mSlots[index];
+    }
+
+    /**
+     * Consumer only. Gives the slot returned by {@link #peek()} back to the producers.
+     */
+    void release() {
+        final long head = mHead;
+        final int index = (int) (head & mMask);
+        mSlots[index].mDevice = null;
+        mSequences.lazySet(index, head + mCapacity);
+        mHead = head + 1;
+    }
+
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * @return approximate number of messages waiting for the consumer
+     */
+    public int size() {
+        long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+/**
+ * Optional features negotiated during the NETWORK_VERSION / START_GAME handshake.
+ * The client sends what it supports, the server answers with what both sides will use.
+ */
+public final class NetworkCapabilities {
+
+    public static final int NONE = 0;
+    public static final int UDP_TRANSPORT = 1;     // SKIP_WHEN_BUSY messages over UDP, see UdpGameConnection
+    public static final int RELIABLE_UDP = 2;      // gameplay STACK_WHEN_BUSY messages over UDP too, see ReliableChannel. Needs UDP_TRANSPORT
+    public static final int PACKED_SHIP_INFO = 4;  // ShipInfo sent as SHIP_INFO_PACKED, quantized on bits
+    public static final int DELTA_SHIP_INFO = 8;   // ShipInfo sent as SHIP_INFO_DELTA, see ShipStateDelta. Needs PACKED_SHIP_INFO
+    public static final int BATCH_MESSAGES = 16;   // messages of a tick sent in one BATCH frame, see OutboundQueue
+    public static final int CLOCK_SYNC = 32;       // PING / PONG answered, see ClockSync
+
+    private NetworkCapabilities() {
+    }
+
+    public static int getSupported() {
+        return UDP_TRANSPORT | RELIABLE_UDP | PACKED_SHIP_INFO | DELTA_SHIP_INFO | BATCH_MESSAGES | CLOCK_SYNC;
+    }
+
+    /**
+     * @return the capabilities both sides can use, without the ones whose requirements are missing
+     */
+    public static int agree(int otherCapabilities) {
+        int capabilities = otherCapabilities & getSupported();
+        if (!has(capabilities, UDP_TRANSPORT)) {
+            capabilities &= ~RELIABLE_UDP;
+        }
+        if (!has(capabilities, PACKED_SHIP_INFO)) {
+            capabilities &= ~DELTA_SHIP_INFO;
+        }
+        return capabilities;
+    }
+
+    public static boolean has(int capabilities, int capability) {
+        return (capabilities & capability) == capability;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread writing the outgoing messages to the sockets, so that a slow socket never blocks the sender (render thread...).
+ * Messages are handed over through a {@link MessageRing}, and dropped when it is full.
+ */
+public class NetworkWriter implements Runnable {
+
+    private static final String TAG = "NetworkWriter";
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long RETRY_PENDING_NANOS = 2_000_000;     // 2ms, to send the SKIP_WHEN_BUSY messages waiting for the socket
+    private static final long MAX_BATCH_DELAY_NANOS = 16_000_000;  // a frame, when nobody calls flushBatch()
+
+    private final @NonNull MessageRing mRing = new MessageRing(QUEUE_CAPACITY);
+    private final @NonNull Sink mSink;
+    private final @NonNull ConnectionStats mStats;
+    private final @NonNull Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile boolean mSleeping = false;
+    private volatile boolean mBatching = false;
+
+    public NetworkWriter(@NonNull Sink sink, @NonNull ConnectionStats stats) {
+        mSink = sink;
+        mStats = stats;
+        mStats.setQueueCapacity(mRing.getCapacity());
+        mThread = new Thread(this, TAG);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Never blocks.
+     * @return false if the message has been dropped because the queue is full
+     */
+    public boolean send(@NonNull PackMsg message) {
+        if (!mRing.offer(message)) {
+            mStats.onDropped();
+            return false;
+        }
+        mStats.onQueued(mRing.size());
+        if (mSleeping && !mBatching) {     // read after the volatile publish of offer(), see run()
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    /**
+     * When batching, the messages sent are only written at the next {@link #flushBatch()}, or at most a frame later.
+     */
+    public void setBatching(boolean batching) {
+        mBatching = batching;
+    }
+
+    /**
+     * End of a simulation tick: writes the messages sent since the previous call, together.
+     */
+    public void flushBatch() {
+        if (mBatching) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Makes the writer check {@link Sink#flushPending()} now, when something else than a message needs to be sent.
+     */
+    public void wakeUp() {
+        if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            MessageRing.Slot slot = mRing.peek();
+            if (slot == null) {
+                boolean pending = mSink.flushPending();
+                mSleeping = true;
+                // checked after mSleeping is set, not to miss an unpark: either we see the message published by send(),
+                // or send() sees us sleeping. Both sides use volatile accesses, so neither read can pass the other's write
+                if (mRing.isEmpty() && mRunning) {
+                    if (pending) {
+                        LockSupport.parkNanos(this, RETRY_PENDING_NANOS);
+                    } else if (mBatching) {
+                        LockSupport.parkNanos(this, MAX_BATCH_DELAY_NANOS);   // send() does not wake us up
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                mSleeping = false;
+                continue;
+            }
+            try {
+                mSink.write(slot.mDevice, slot.mType, slot.mSendPolicy, slot.mData, slot.mLength);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "write " + slot.mType + " failed: " + e.getMessage());
+            }
+            mRing.release();
+            mStats.onDequeued(mRing.size());
+        }
+    }
+
+    /**
+     * Writes to the sockets, on the writer thread.
+     */
+    public interface Sink {
+        void write(@NonNull GameDevice device, @NonNull PackMsg.MsgType type, @NonNull PackMsg.SendPolicy sendPolicy, @NonNull byte[] data, int length);
+
+        /**
+         * @return true if messages are still waiting for a busy socket
+         */
+        boolean flushPending();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outgoing messages of one connection, sent according to their {@link PackMsg.SendPolicy}.
+ * STACK_WHEN_BUSY messages are always sent, in order.
+ * SKIP_WHEN_BUSY messages are only sent when the socket has no pending data: while it is busy,
+ * only the newest message of each type is kept (copied, the sender can reuse its buffer) and older ones are dropped.
+ * When batching, the messages are kept until {@link #flush()} and sent in a single BATCH frame:
+ * [BATCH type: 1 byte] then for each message [length: 2 bytes][message].
+ * Each message is stamped with the next sequence number of the connection when it really leaves, see PackMsg.getSequence().
+ * Used by the {@link NetworkWriter} thread.
+ */
+public class OutboundQueue {
+
+    private static final int NB_TYPES = PackMsg.MsgType.values().length;
+    static final int BATCH_LENGTH_SIZE = 2;
+    private static final int BATCH_INITIAL_CAPACITY = 256;
+
+    private final @NonNull WebSocket mSocket;
+    private final @NonNull ConnectionStats mStats;
+    private final @NonNull byte[][] mLatestBuffers = new byte[NB_TYPES][];     // by MsgType ordinal, reused
+    private final @NonNull ByteBuffer[] mLatestViews = new ByteBuffer[NB_TYPES];
+    private final @NonNull int[] mLatestSizes = new int[NB_TYPES];
+    private final @NonNull boolean[] mLatestPending = new boolean[NB_TYPES];
+    private int mPendingCount;
+    private volatile boolean mBatching;
+    private byte[] mBatch = new byte[BATCH_INITIAL_CAPACITY];
+    private ByteBuffer mBatchView = ByteBuffer.wrap(mBatch);
+    private int mBatchSize;
+    private int mBatchCount;
+    private int mSequence;
+
+    public OutboundQueue(@NonNull WebSocket socket, @NonNull ConnectionStats stats) {
+        mSocket = socket;
+        mStats = stats;
+    }
+
+    /**
+     * @param batching true if the other side reads BATCH frames, see NetworkCapabilities.BATCH_MESSAGES
+     */
+    public void setBatching(boolean batching) {
+        mBatching = batching;
+    }
+
+    /**
+     * The bytes are framed synchronously by the socket, or copied when batching: the buffer can be reused when this returns.
+     */
+    public synchronized void send(@NonNull PackMsg.MsgType type, @NonNull PackMsg.SendPolicy sendPolicy, @NonNull byte[] data, int length) {
+        if (sendPolicy == PackMsg.SendPolicy.SKIP_WHEN_BUSY) {
+            keepLatest(type, data, length);
+        } else if (mBatching) {
+            addToBatch(data, length);
+            return;     // sent by flush(), at the end of the tick
+        } else if (mSocket.isOpen()) {
+            PackMsg.writeSequence(data, 0, length, mSequence++);
+            mSocket.send(ByteBuffer.wrap(data, 0, length));
+            mStats.onSent();
+        }
+        if (!mBatching) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the batch, and the pending SKIP_WHEN_BUSY messages if the socket is not busy anymore.
+     * @return true if messages are still pending
+     */
+    public synchronized boolean flush() {
+        if ((mPendingCount == 0) && (mBatchCount == 0)) {
+            return false;
+        }
+        if (!mSocket.isOpen()) {
+            clearBatch();   // like STACK_WHEN_BUSY messages sent to a closed socket
+            return true;
+        }
+        if (!mSocket.hasBufferedData()) {
+            for (int type = 0; type < NB_TYPES; ++type) {
+                if (mLatestPending[type]) {
+                    mLatestPending[type] = false;
+                    if (mBatching) {
+                        addToBatch(mLatestBuffers[type], mLatestSizes[type]);
+                    } else {
+                        PackMsg.writeSequence(mLatestBuffers[type], 0, mLatestSizes[type], mSequence++);
+                        ByteBuffer view = mLatestViews[type];
+                        view.clear();
+                        view.limit(mLatestSizes[type]);
+                        mSocket.send(view);
+                        mStats.onSent();
+                    }
+                }
+            }
+            mPendingCount = 0;
+        }
+        sendBatch();
+        return (mPendingCount > 0);
+    }
+
+    private void addToBatch(@NonNull byte[] data, int length) {
+        if (mBatchCount == 0) {
+            mBatch[0] = PackMsg.MsgType.BATCH.getHeaderByte();
+            mBatchSize = PackMsg.LEGACY_HEADER_SIZE;
+        }
+        final int needed = mBatchSize + BATCH_LENGTH_SIZE + length;
+        if (needed > mBatch.length) {
+            byte[] batch = new byte[Math.max(needed, mBatch.length * 2)];
+            System.arraycopy(mBatch, 0, batch, 0, mBatchSize);
+            mBatch = batch;
+            mBatchView = ByteBuffer.wrap(batch);
+        }
+        mBatchView.putShort(mBatchSize, (short) length);
+        System.arraycopy(data, 0, mBatch, mBatchSize + BATCH_LENGTH_SIZE, length);
+        PackMsg.writeSequence(mBatch, mBatchSize + BATCH_LENGTH_SIZE, length, mSequence++);
+        mBatchSize = needed;
+        ++mBatchCount;
+    }
+
+    private void sendBatch() {
+        if (mBatchCount == 0) {
+            return;
+        }
+        mBatchView.clear();
+        if (mBatchCount == 1) {     // no need for an envelope
+            mBatchView.position(PackMsg.LEGACY_HEADER_SIZE + BATCH_LENGTH_SIZE);
+        }
+        mBatchView.limit(mBatchSize);
+        mSocket.send(mBatchView);
+        mStats.onBatchSent(mBatchCount);
+        clearBatch();
+    }
+
+    private void clearBatch() {
+        mBatchCount = 0;
+        mBatchSize = 0;
+    }
+
+    private void keepLatest(@NonNull PackMsg.MsgType msgType, @NonNull byte[] data, int length) {
+        final int type = msgType.ordinal();
+        byte[] latest = mLatestBuffers[type];
+        if ((latest == null) || (latest.length < length)) {
+            latest = new byte[length];
+            mLatestBuffers[type] = latest;
+            mLatestViews[type] = ByteBuffer.wrap(latest);
+        }
+        System.arraycopy(data, 0, latest, 0, length);
+        mLatestSizes[type] = length;
+        if (mLatestPending[type]) {
+            mStats.onSkipped();    // the previous one is stale
+        } else {
+            mLatestPending[type] = true;
+            ++mPendingCount;
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+}
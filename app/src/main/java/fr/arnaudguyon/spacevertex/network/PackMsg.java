@@ -6,6 +6,7 @@
 package fr.arnaudguyon.spacevertex.network;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
 
@@ -14,17 +15,35 @@ import fr.arnaudguyon.spacevertex.objects.ShipLocal;
 
 public abstract class PackMsg {
 
-    private static final int HEADER_TYPE_IDX = 0;
-    private static final int HEADER_SIZE = HEADER_TYPE_IDX + 1;
+    // Header: [header version: 2 bits, type: 6 bits] then, from version 1, [sequence: 2 bytes][tick: 2 bytes].
+    // The handshake messages keep the version 0 header, the type byte alone, so that any version can read them.
+    static final int HEADER_TYPE_IDX = 0;
+    static final int LEGACY_HEADER_SIZE = HEADER_TYPE_IDX + 1;
+    private static final int HEADER_SEQUENCE_IDX = LEGACY_HEADER_SIZE;
+    private static final int HEADER_TICK_IDX = HEADER_SEQUENCE_IDX + 2;
+    static final int HEADER_SIZE = HEADER_TICK_IDX + 2;
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_VERSION_SHIFT = 6;
+    private static final int HEADER_TYPE_MASK = (1 << HEADER_VERSION_SHIFT) - 1;
 
     private static final int SHIPINFO_X_IDX = HEADER_SIZE;
     private static final int SHIPINFO_Y_IDX = SHIPINFO_X_IDX + 4;
-    private static final int SHIPINFO_ROTATION_IDX = SHIPINFO_Y_IDX + 2; //4;
-    private static final int SHIPINFO_SPEED_X_IDX = SHIPINFO_ROTATION_IDX + 4;
+    private static final int SHIPINFO_ROTATION_IDX = SHIPINFO_Y_IDX + 4;
+    private static final int SHIPINFO_SPEED_X_IDX = SHIPINFO_ROTATION_IDX + 2;
     private static final int SHIPINFO_SPEED_Y_IDX = SHIPINFO_SPEED_X_IDX + 4;
     private static final int SHIPINFO_REACTOR_IDX = SHIPINFO_SPEED_Y_IDX + 4;
     private static final int SHIPINFO_SIZE = SHIPINFO_REACTOR_IDX + 1;
 
+    // SHIP_INFO_PACKED: quantized ShipInfo, see NetworkCapabilities.PACKED_SHIP_INFO. Also used by ShipStateDelta
+    static final float PACKED_POSITION_RANGE = 4096;      // around the center of the space, exact float beyond
+    static final int PACKED_POSITION_BITS = 19;           // 1/64 unit
+    static final float PACKED_SPEED_RANGE = 1.5f;         // Ship.MAXSPEED_BOOST
+    static final int PACKED_SPEED_BITS = 12;
+    static final float PACKED_ROTATION_PRECISION = 0.1f;  // degrees
+    static final int PACKED_ROTATION_BITS = 32 - Integer.numberOfLeadingZeros((int) Math.ceil(360 / PACKED_ROTATION_PRECISION) - 1);
+    static final int PACKED_REACTOR_BITS = 2;
+    private static final int SHIPINFO_PACKED_MAX_SIZE = HEADER_SIZE + (2 * (1 + 32) + 2 * PACKED_SPEED_BITS + PACKED_ROTATION_BITS + PACKED_REACTOR_BITS + 7) / 8;
+
     private static final int SHIPFIRE_X_IDX = HEADER_SIZE;
     private static final int SHIPFIRE_Y_IDX = SHIPFIRE_X_IDX + 4;
     private static final int SHIPFIRE_ROTATION_IDX = SHIPFIRE_Y_IDX + 4;
@@ -37,14 +56,28 @@ public abstract class PackMsg {
     private static final int SCORE_SCORER_IDX = SCORE_VALUE_IDX + 4;
     private static final int SCORE_SIZE = SCORE_SCORER_IDX + 1;
 
-    private static final int NETWORKVERSION_VALUE_IDX = HEADER_SIZE;
-    private static final int NETWORKVERSION_SIZE = NETWORKVERSION_VALUE_IDX + 4;
+    private static final int NETWORKVERSION_VALUE_IDX = LEGACY_HEADER_SIZE;
+    private static final int NETWORKVERSION_CAPABILITIES_IDX = NETWORKVERSION_VALUE_IDX + 4;
+    private static final int NETWORKVERSION_UDP_PORT_IDX = NETWORKVERSION_CAPABILITIES_IDX + 4;
+    private static final int NETWORKVERSION_SIZE = NETWORKVERSION_UDP_PORT_IDX + 4;
+
+    private static final int PING_ORIGINATE_IDX = HEADER_SIZE;
+    private static final int PING_SIZE = PING_ORIGINATE_IDX + 8;
+
+    private static final int PONG_ORIGINATE_IDX = HEADER_SIZE;
+    private static final int PONG_RECEIVE_IDX = PONG_ORIGINATE_IDX + 8;
+    private static final int PONG_TRANSMIT_IDX = PONG_RECEIVE_IDX + 8;
+    private static final int PONG_SIZE = PONG_TRANSMIT_IDX + 8;
+
+    private static final int STARTGAME_CAPABILITIES_IDX = HEADER_SIZE;
+    private static final int STARTGAME_UDP_PORT_IDX = STARTGAME_CAPABILITIES_IDX + 4;
+    private static final int STARTGAME_SIZE = STARTGAME_UDP_PORT_IDX + 4;
 
     public enum MsgType {
         UNKNOWN((byte) 0),
-        NETWORK_VERSION((byte) 1),  // TODO: rename COMPATIBILITY_VERSION ?
-        WRONG_NETWORK_VERSION((byte) 2),
-        SESSION_FULL((byte) 3),
+        NETWORK_VERSION((byte) 1, true),  // TODO: rename COMPATIBILITY_VERSION ?
+        WRONG_NETWORK_VERSION((byte) 2, true),
+        SESSION_FULL((byte) 3, true),
         QUITTING((byte) 4),
         START_GAME((byte) 5),
         GAME_RESTART((byte) 6),
@@ -52,22 +85,65 @@ public abstract class PackMsg {
         SHIP_INFO((byte) 8),
         SHIP_FIRE((byte) 9),
         SHIP_SCORE((byte) 10),
-        KILLED((byte) 11);
+        KILLED((byte) 11),
+        SHIP_INFO_PACKED((byte) 12),
+        SHIP_INFO_DELTA((byte) 13),
+        BATCH((byte) 14, true), // several messages in one frame, see OutboundQueue
+        PING((byte) 15),        // clock synchronisation, see ClockSync
+        PONG((byte) 16);
+
+        private static final MsgType[] TYPES_BY_RAW_VALUE = new MsgType[256];  // values() clones the array at each call
+        static {
+            for (MsgType type : MsgType.values()) {
+                TYPES_BY_RAW_VALUE[type.rawValue & 0xFF] = type;
+            }
+        }
 
         private final byte rawValue;
+        private final boolean legacyHeader;
 
         MsgType(byte rawValue) {
+            this(rawValue, false);
+        }
+
+        MsgType(byte rawValue, boolean legacyHeader) {
             this.rawValue = rawValue;
+            this.legacyHeader = legacyHeader;
+        }
+
+        /**
+         * @return first byte of the messages of this type: the type and the header version
+         */
+        byte getHeaderByte() {
+            return legacyHeader ? rawValue : (byte) (rawValue | (HEADER_VERSION << HEADER_VERSION_SHIFT));
+        }
+
+        int getHeaderSize() {
+            return legacyHeader ? LEGACY_HEADER_SIZE : HEADER_SIZE;
+        }
+
+        static final int SEQUENCE_STREAMS = values().length;
+
+        /**
+         * @return stream of the unreliable sequence numbers of this type, in [0, SEQUENCE_STREAMS[: one per type, so that
+         * a message is only late against a newer one of the same kind. The ShipInfo formats share one
+         */
+        int getSequenceStream() {
+            return ((this == SHIP_INFO_PACKED) || (this == SHIP_INFO_DELTA)) ? SHIP_INFO.ordinal() : ordinal();
+        }
+
+        /**
+         * @return true if the sequence number is set when the message is encoded, and kept by the transports.
+         * ShipStateDelta numbers its states with it
+         */
+        boolean isSequencedByEncoder() {
+            return this == SHIP_INFO_DELTA;
         }
 
         static @NonNull
         MsgType get(byte value) {
-            for (MsgType type : MsgType.values()) {
-                if (type.rawValue == value) {
-                    return type;
-                }
-            }
-            return UNKNOWN;
+            MsgType type = TYPES_BY_RAW_VALUE[value & HEADER_TYPE_MASK];
+            return (type != null) ? type : UNKNOWN;
         }
     }
 
@@ -76,71 +152,245 @@ public abstract class PackMsg {
         SKIP_WHEN_BUSY
     }
 
-    protected final byte[] buffer;
+    private static final ByteBuffer NO_BYTES = ByteBuffer.allocate(0);
+
+    protected byte[] buffer;                // owned bytes: messages to send, or copies. Null for a received view
+    protected @NonNull ByteBuffer byteBuffer;   // single view on buffer to encode / decode the fields, or the received bytes
+    protected int base;                     // index of the message in byteBuffer, 0 unless it is a received view
+    protected int length;   // bytes to send, the end of buffer can be unused
     private SendPolicy sendPolicy = SendPolicy.STACK_WHEN_BUSY;
-    private final @NonNull GameDevice gameDevice;
+    private GameDevice gameDevice;
 
     public @NonNull
     byte[] getBuffer() {
         return buffer;
     }
 
+    public int getLength() {
+        return length;
+    }
+
     public SendPolicy getSendPolicy() {
         return sendPolicy;
     }
 
     public MsgType getType() {
-        return MsgType.get(buffer[HEADER_TYPE_IDX]);
+        return MsgType.get(byteBuffer.get(base + HEADER_TYPE_IDX));
+    }
+
+    /**
+     * @return sequence number of the message on its connection (16 bits, wraps), stamped when sent. 0 for the handshake messages
+     */
+    public int getSequence() {
+        return (length >= HEADER_SIZE) && hasSequence(byteBuffer.get(base + HEADER_TYPE_IDX)) ? byteBuffer.getShort(base + HEADER_SEQUENCE_IDX) & 0xFFFF : 0;
+    }
+
+    /**
+     * @return frame of the sender when the message was made (16 bits, wraps), its send time in ms for a ShipInfo. 0 for the handshake messages
+     */
+    public int getTick() {
+        return hasTick() ? byteBuffer.getShort(base + HEADER_TICK_IDX) & 0xFFFF : 0;
+    }
+
+    /**
+     * @return false for the handshake messages and the messages of the versions before the sequence numbers
+     */
+    public boolean hasTick() {
+        return (length >= HEADER_SIZE) && hasSequence(byteBuffer.get(base + HEADER_TYPE_IDX));
+    }
+
+    protected void setTick(int frame) {
+        if (hasSequence(buffer[HEADER_TYPE_IDX])) {
+            byteBuffer.putShort(HEADER_TICK_IDX, (short) frame);
+        }
+    }
+
+    /**
+     * Sets the sequence number of a message {@link MsgType#isSequencedByEncoder()}, see {@link #getSequence()}.
+     */
+    void setSequence(int sequence) {
+        if (hasSequence(buffer[HEADER_TYPE_IDX])) {
+            byteBuffer.putShort(HEADER_SEQUENCE_IDX, (short) sequence);
+        }
+    }
+
+    private static boolean hasSequence(byte headerByte) {
+        return ((headerByte & 0xFF) >>> HEADER_VERSION_SHIFT) >= HEADER_VERSION;
+    }
+
+    /**
+     * Stamps the sequence number in the copy of a message about to be sent, see {@link #getSequence()}.
+     * Kept if the type is {@link MsgType#isSequencedByEncoder()}.
+     */
+    static void writeSequence(@NonNull byte[] data, int offset, int length, int sequence) {
+        if ((length >= HEADER_SIZE) && hasSequence(data[offset + HEADER_TYPE_IDX]) && !MsgType.get(data[offset + HEADER_TYPE_IDX]).isSequencedByEncoder()) {
+            data[offset + HEADER_SEQUENCE_IDX] = (byte) (sequence >> 8);
+            data[offset + HEADER_SEQUENCE_IDX + 1] = (byte) sequence;
+        }
+    }
+
+    /**
+     * @return sequence number of the message starting at offset in data, -1 if it has none
+     */
+    static int readSequence(@NonNull byte[] data, int offset, int length) {
+        if ((length < HEADER_SIZE) || !hasSequence(data[offset + HEADER_TYPE_IDX])) {
+            return -1;
+        }
+        return ((data[offset + HEADER_SEQUENCE_IDX] & 0xFF) << 8) | (data[offset + HEADER_SEQUENCE_IDX + 1] & 0xFF);
     }
 
     public @NonNull GameDevice getDevice() {
         return gameDevice;  // can be target device when message is sent, or source device if message is received
     }
 
+    protected void setTargetDevice(@NonNull GameDevice targetDevice) {
+        gameDevice = targetDevice;
+    }
+
     private PackMsg(MsgType type, int bufferSize, int frame, SendPolicy sendPolicy, @NonNull GameDevice gameDevice) {
         buffer = new byte[bufferSize];
-        buffer[HEADER_TYPE_IDX] = type.rawValue;
+        byteBuffer = ByteBuffer.wrap(buffer);
+        length = bufferSize;
+        buffer[HEADER_TYPE_IDX] = type.getHeaderByte();
+        setTick(frame);
         this.sendPolicy = sendPolicy;
         this.gameDevice = gameDevice;
     }
 
-    private PackMsg(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-        this.buffer = buffer;
+    private PackMsg() {
+        byteBuffer = NO_BYTES;  // received message, see Reader
+    }
+
+    /**
+     * Reads the fields from byteBuffer, starting at base. Does nothing for the messages without fields.
+     */
+    protected void decode() {
+    }
+
+    private void wrap(@NonNull ByteBuffer data, int offset, int length, @NonNull GameDevice gameDevice) {
+        buffer = null;
+        byteBuffer = data;
+        base = offset;
+        this.length = length;
         this.gameDevice = gameDevice;
+        decode();
     }
 
-    public static PackMsg create(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-        if (buffer.length >= HEADER_SIZE) {
-            byte type = buffer[HEADER_TYPE_IDX];
-            MsgType msgType = MsgType.get(type);
-            switch (msgType) {
-                case SHIP_INFO:
-                    return new ShipInfo(buffer, gameDevice);
-                case SHIP_FIRE:
-                    return new ShipFire(buffer, gameDevice);
-                case SHIP_SCORE:
-                    return new ShipScore(buffer, gameDevice);
-                case KILLED:
-                    return new Killed(buffer, gameDevice);
-                case GAME_CHRONO:
-                    return new GameChrono(buffer, gameDevice);
-                case GAME_RESTART:
-                    return new GameRestart(buffer, gameDevice);
-                case NETWORK_VERSION:
-                    return new NetworkVersion(buffer, gameDevice);
-                case QUITTING:
-                    return new QuitGame(buffer, gameDevice);
-                case SESSION_FULL:
-                    return new SessionFull(buffer, gameDevice);
-                case WRONG_NETWORK_VERSION:
-                    return new WrongNetworkVersion(buffer, gameDevice);
-                case START_GAME:
-                    return new StartGame(buffer, gameDevice);
+    /**
+     * Makes this message an owned copy of other, a message of the same type, to keep it after the callback which received it.
+     * No allocation once the buffer of this message is big enough.
+     */
+    public void copyFrom(@NonNull PackMsg other) {
+        if ((buffer == null) || (buffer.length < other.length)) {
+            buffer = new byte[other.length];
+        }
+        if (!byteBuffer.hasArray() || (byteBuffer.array() != buffer) || (base != 0)) {
+            byteBuffer = ByteBuffer.wrap(buffer);
+            base = 0;
+        }
+        final ByteBuffer source = other.byteBuffer;
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + other.base, buffer, 0, other.length);
+        } else {
+            for (int i = 0; i < other.length; ++i) {
+                buffer[i] = source.get(other.base + i);  // direct buffer
             }
         }
+        length = other.length;
+        sendPolicy = other.sendPolicy;
+        gameDevice = other.gameDevice;
+        decode();
+    }
+
+    /**
+     * @return a new owned copy of this message, see {@link #copyFrom(PackMsg)}
+     */
+    public @NonNull PackMsg copy() {
+        PackMsg copy = newMessage(getType());
+        if (copy == null) {
+            throw new IllegalStateException("cannot copy " + getType());
+        }
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    private static @Nullable PackMsg newMessage(@NonNull MsgType msgType) {
+        switch (msgType) {
+            case SHIP_INFO:
+            case SHIP_INFO_PACKED:
+            case SHIP_INFO_DELTA:
+                return new ShipInfo();
+            case SHIP_FIRE:
+                return new ShipFire();
+            case SHIP_SCORE:
+                return new ShipScore();
+            case KILLED:
+                return new Killed();
+            case GAME_CHRONO:
+                return new GameChrono();
+            case GAME_RESTART:
+                return new GameRestart();
+            case NETWORK_VERSION:
+                return new NetworkVersion();
+            case QUITTING:
+                return new QuitGame();
+            case SESSION_FULL:
+                return new SessionFull();
+            case WRONG_NETWORK_VERSION:
+                return new WrongNetworkVersion();
+            case START_GAME:
+                return new StartGame();
+            case PING:
+                return new Ping();
+            case PONG:
+                return new Pong();
+        }
         return null;
     }
 
+    /**
+     * Decodes the received messages in place, from the bytes given by the transport: no copy and no allocation.
+     * Keeps one view per type and reuses it, so a message read is only valid until the next one of its type,
+     * in practice during the callback which receives it: {@link #copy()} it to keep it longer.
+     * One Reader per receive thread.
+     */
+    public static class Reader {
+
+        private final @NonNull PackMsg[] mViews = new PackMsg[MsgType.values().length];    // by MsgType ordinal
+
+        /**
+         * @param data a message between its position and its limit, big endian. Neither data nor its position are modified
+         * @return the message, null if it is not a known one
+         */
+        public @Nullable PackMsg read(@NonNull ByteBuffer data, @NonNull GameDevice gameDevice) {
+            return read(data, data.position(), data.remaining(), gameDevice);
+        }
+
+        /**
+         * @param offset absolute index of the message in data
+         */
+        public @Nullable PackMsg read(@NonNull ByteBuffer data, int offset, int length, @NonNull GameDevice gameDevice) {
+            if (length < LEGACY_HEADER_SIZE) {
+                return null;
+            }
+            final byte type = data.get(offset + HEADER_TYPE_IDX);
+            final MsgType msgType = MsgType.get(type);
+            if ((length < msgType.getHeaderSize()) || (type != msgType.getHeaderByte())) {
+                return null;    // other header version
+            }
+            PackMsg view = mViews[msgType.ordinal()];
+            if (view == null) {
+                view = newMessage(msgType);
+                if (view == null) {
+                    return null;    // UNKNOWN, BATCH
+                }
+                mViews[msgType.ordinal()] = view;
+            }
+            view.wrap(data, offset, length, gameDevice);
+            return view;
+        }
+    }
+
     protected short floatToShort(float value) {
         return (short) (value * 10000);
     }
@@ -149,65 +399,197 @@ public abstract class PackMsg {
         return (value / 10000f);
     }
 
+    /**
+     * Sent every frame: the sender keeps one instance and updates it, see {@link #update(Scene, ShipLocal, long)}.
+     * The tick is the send time, in ms of System.nanoTime() of the sender, so that the other side can place the states in time.
+     */
     public static class ShipInfo extends PackMsg {
 
-        public final float x;
-        public final float y;
-        public final float rotation;
-        public final float speedX;
-        public final float speedY;
-        public final byte reactor;
+        public float x;
+        public float y;
+        public float rotation;
+        public float speedX;
+        public float speedY;
+        public byte reactor;
+        private boolean packed;
+        private final ShipStateDelta delta;     // SHIP_INFO_DELTA when sent
+        private BitWriter bitWriter;    // reused by update() when packed
+        private BitReader bitReader;    // reused by decode() when packed
+
+        /**
+         * @param packed SHIP_INFO_PACKED format, if the other side has NetworkCapabilities.PACKED_SHIP_INFO
+         */
+        public ShipInfo(Scene scene, ShipLocal ship, long sendTimeMs, boolean packed, @NonNull GameDevice targetDevice) {
+            super(packed ? MsgType.SHIP_INFO_PACKED : MsgType.SHIP_INFO, packed ? SHIPINFO_PACKED_MAX_SIZE : SHIPINFO_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            this.packed = packed;
+            this.delta = null;
+            update(scene, ship, sendTimeMs);
+        }
 
-        public ShipInfo(Scene scene, ShipLocal ship, int frame, @NonNull GameDevice targetDevice) {
-            super(MsgType.SHIP_INFO, SHIPINFO_SIZE, frame, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
-            x = ship.getPosX();
-            y = ship.getPosY();
-            rotation = ship.getRotation();
-            speedX = ship.getSpeedX();
-            speedY = ship.getSpeedY();
-            reactor = (byte) ship.getReactorForNetwork(scene);
-            ByteBuffer.wrap(buffer).putFloat(SHIPINFO_X_IDX, x);
-            ByteBuffer.wrap(buffer).putFloat(SHIPINFO_Y_IDX, y);
-//            ByteBuffer.wrap(buffer).putFloat(SHIPINFO_ROTATION_IDX, rotation);
-            ByteBuffer.wrap(buffer).putShort(SHIPINFO_ROTATION_IDX, floatToShort(rotation));
-            ByteBuffer.wrap(buffer).putFloat(SHIPINFO_SPEED_X_IDX, speedX);
-            ByteBuffer.wrap(buffer).putFloat(SHIPINFO_SPEED_Y_IDX, speedY);
+        /**
+         * SHIP_INFO_DELTA format, if the other side has NetworkCapabilities.DELTA_SHIP_INFO
+         * @param delta of the connection to targetDevice
+         */
+        public ShipInfo(Scene scene, ShipLocal ship, long sendTimeMs, @NonNull ShipStateDelta delta, @NonNull GameDevice targetDevice) {
+            super(MsgType.SHIP_INFO_DELTA, ShipStateDelta.MAX_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            this.packed = true;
+            this.delta = delta;
+            update(scene, ship, sendTimeMs);
+        }
+
+        public boolean isPacked() {
+            return packed;
+        }
+
+        /**
+         * @return true if the fields must be rebuilt by {@link ShipStateDelta#decode(ShipInfo)} when received
+         */
+        public boolean isDelta() {
+            return getType() == MsgType.SHIP_INFO_DELTA;
+        }
+
+        /**
+         * Message without a ship, filled by {@link #encode(long, float, float, float, float, float, byte)}.
+         */
+        ShipInfo(boolean packed, @NonNull GameDevice targetDevice) {
+            super(packed ? MsgType.SHIP_INFO_PACKED : MsgType.SHIP_INFO, packed ? SHIPINFO_PACKED_MAX_SIZE : SHIPINFO_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            this.packed = packed;
+            this.delta = null;
+        }
+
+        /**
+         * SHIP_INFO_DELTA message without a ship, filled by {@link #encode(long, float, float, float, float, float, byte)}.
+         */
+        ShipInfo(@NonNull ShipStateDelta delta, @NonNull GameDevice targetDevice) {
+            super(MsgType.SHIP_INFO_DELTA, ShipStateDelta.MAX_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            this.packed = true;
+            this.delta = delta;
+        }
+
+        /**
+         * Encodes the current state of the ship in the existing buffer. The message must not be in use anymore (sent).
+         * @param sendTimeMs System.nanoTime() in ms
+         */
+        public void update(Scene scene, ShipLocal ship, long sendTimeMs) {
+            encode(sendTimeMs, ship.getPosX(), ship.getPosY(), ship.getRotation(), ship.getSpeedX(), ship.getSpeedY(), (byte) ship.getReactorForNetwork(scene));
+        }
+
+        void encode(long sendTimeMs, float x, float y, float rotation, float speedX, float speedY, byte reactor) {
+            setTick((int) sendTimeMs);
+            this.x = x;
+            this.y = y;
+            this.rotation = rotation;
+            this.speedX = speedX;
+            this.speedY = speedY;
+            this.reactor = reactor;
+            if (delta != null) {
+                delta.encode(this, sendTimeMs);
+                return;
+            }
+            if (packed) {
+                encodePacked();
+                return;
+            }
+            byteBuffer.putFloat(SHIPINFO_X_IDX, x);
+            byteBuffer.putFloat(SHIPINFO_Y_IDX, y);
+            byteBuffer.putShort(SHIPINFO_ROTATION_IDX, floatToShort(rotation));
+            byteBuffer.putFloat(SHIPINFO_SPEED_X_IDX, speedX);
+            byteBuffer.putFloat(SHIPINFO_SPEED_Y_IDX, speedY);
             buffer[SHIPINFO_REACTOR_IDX] = reactor;
         }
 
-        public ShipInfo(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
-            x = ByteBuffer.wrap(buffer).getFloat(SHIPINFO_X_IDX);
-            y = ByteBuffer.wrap(buffer).getFloat(SHIPINFO_Y_IDX);
-//            rotation = ByteBuffer.wrap(buffer).getFloat(SHIPINFO_ROTATION_IDX);
-            rotation = shortToFloat(ByteBuffer.wrap(buffer).getShort(SHIPINFO_ROTATION_IDX));
-            speedX = ByteBuffer.wrap(buffer).getFloat(SHIPINFO_SPEED_X_IDX);
-            speedY = ByteBuffer.wrap(buffer).getFloat(SHIPINFO_SPEED_Y_IDX);
-            reactor = buffer[SHIPINFO_REACTOR_IDX];
+        private ShipInfo() {
+            delta = null;
+        }
+
+        @Override
+        protected void decode() {
+            packed = (getType() != MsgType.SHIP_INFO);
+            if (isDelta()) {
+                return;     // decoded by the ShipStateDelta of the connection
+            }
+            if (packed) {
+                decodePacked();
+                return;
+            }
+            x = byteBuffer.getFloat(base + SHIPINFO_X_IDX);
+            y = byteBuffer.getFloat(base + SHIPINFO_Y_IDX);
+            rotation = shortToFloat(byteBuffer.getShort(base + SHIPINFO_ROTATION_IDX));
+            speedX = byteBuffer.getFloat(base + SHIPINFO_SPEED_X_IDX);
+            speedY = byteBuffer.getFloat(base + SHIPINFO_SPEED_Y_IDX);
+            reactor = byteBuffer.get(base + SHIPINFO_REACTOR_IDX);
+        }
+
+        // Packed: [in range: 1 bit][x, y: 19 bits each, or 32 bits floats][speedX, speedY: 12 bits][rotation: 12 bits][reactor: 2 bits]
+        private void encodePacked() {
+            if (bitWriter == null) {
+                bitWriter = new BitWriter();
+            }
+            BitWriter writer = bitWriter.reset(buffer, HEADER_SIZE);
+            writePosition(writer, x);
+            writePosition(writer, y);
+            writer.writeSignedFloat(speedX, PACKED_SPEED_RANGE, PACKED_SPEED_BITS);
+            writer.writeSignedFloat(speedY, PACKED_SPEED_RANGE, PACKED_SPEED_BITS);
+            writer.writeAngle(rotation, PACKED_ROTATION_BITS);
+            writer.writeBits(reactor, PACKED_REACTOR_BITS);
+            length = writer.getByteLength();
+        }
+
+        private void decodePacked() {
+            if (bitReader == null) {
+                bitReader = new BitReader();
+            }
+            BitReader reader = bitReader.reset(byteBuffer, base + HEADER_SIZE, base + length);
+            x = readPosition(reader);
+            y = readPosition(reader);
+            speedX = reader.readSignedFloat(PACKED_SPEED_RANGE, PACKED_SPEED_BITS);
+            speedY = reader.readSignedFloat(PACKED_SPEED_RANGE, PACKED_SPEED_BITS);
+            rotation = reader.readAngle(PACKED_ROTATION_BITS);
+            reactor = (byte) reader.readBits(PACKED_REACTOR_BITS);
+        }
+
+        private static void writePosition(@NonNull BitWriter writer, float position) {
+            final boolean inRange = (Math.abs(position) <= PACKED_POSITION_RANGE);
+            writer.writeBoolean(inRange);
+            if (inRange) {
+                writer.writeSignedFloat(position, PACKED_POSITION_RANGE, PACKED_POSITION_BITS);
+            } else {
+                writer.writeFloat(position);    // ships can fly away from the arena
+            }
+        }
+
+        private static float readPosition(@NonNull BitReader reader) {
+            if (reader.readBoolean()) {
+                return reader.readSignedFloat(PACKED_POSITION_RANGE, PACKED_POSITION_BITS);
+            }
+            return reader.readFloat();
         }
     }
 
     public static class ShipFire extends PackMsg {
 
-        public final float x;
-        public final float y;
-        public final float rotation;
+        public float x;
+        public float y;
+        public float rotation;
 
         public ShipFire(ShipLocal ship, int frame, @NonNull GameDevice targetDevice) {
             super(MsgType.SHIP_FIRE, SHIPFIRE_SIZE, frame, SendPolicy.STACK_WHEN_BUSY, targetDevice);
             x = ship.getPosX();
             y = ship.getPosY();
             rotation = ship.getRotation();
-            ByteBuffer.wrap(buffer).putFloat(SHIPFIRE_X_IDX, x);
-            ByteBuffer.wrap(buffer).putFloat(SHIPFIRE_Y_IDX, y);
-            ByteBuffer.wrap(buffer).putFloat(SHIPFIRE_ROTATION_IDX, rotation);
+            byteBuffer.putFloat(SHIPFIRE_X_IDX, x);
+            byteBuffer.putFloat(SHIPFIRE_Y_IDX, y);
+            byteBuffer.putFloat(SHIPFIRE_ROTATION_IDX, rotation);
+        }
+
+        private ShipFire() {
         }
 
-        public ShipFire(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
-            x = ByteBuffer.wrap(buffer).getFloat(SHIPFIRE_X_IDX);
-            y = ByteBuffer.wrap(buffer).getFloat(SHIPFIRE_Y_IDX);
-            rotation = ByteBuffer.wrap(buffer).getFloat(SHIPFIRE_ROTATION_IDX);
+        @Override
+        protected void decode() {
+            x = byteBuffer.getFloat(base + SHIPFIRE_X_IDX);
+            y = byteBuffer.getFloat(base + SHIPFIRE_Y_IDX);
+            rotation = byteBuffer.getFloat(base + SHIPFIRE_ROTATION_IDX);
         }
     }
 
@@ -217,24 +599,26 @@ public abstract class PackMsg {
             super(MsgType.GAME_RESTART, HEADER_SIZE + 1, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
         }
 
-        public GameRestart(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        private GameRestart() {
         }
     }
 
     public static class GameChrono extends PackMsg {
 
-        public final int value;
+        public int value;
 
         public GameChrono(int value, @NonNull GameDevice targetDevice) {
             super(MsgType.GAME_CHRONO, GAMECHRONO_SIZE, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
             this.value = value;
-            ByteBuffer.wrap(buffer).putInt(GAMECHRONO_VALUE_IDX, value);
+            byteBuffer.putInt(GAMECHRONO_VALUE_IDX, value);
         }
 
-        public GameChrono(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
-            value = ByteBuffer.wrap(buffer).getInt(GAMECHRONO_VALUE_IDX);
+        private GameChrono() {
+        }
+
+        @Override
+        protected void decode() {
+            value = byteBuffer.getInt(base + GAMECHRONO_VALUE_IDX);
         }
 
     }
@@ -249,8 +633,10 @@ public abstract class PackMsg {
                 this.scorer = raw;
             }
 
+            private static final Scorer[] VALUES = values();
+
             static Scorer findScorer(int raw, Scorer defaultValue) {
-                for (Scorer scorer : Scorer.values()) {
+                for (Scorer scorer : VALUES) {
                     if (scorer.scorer == raw) {
                         return scorer;
                     }
@@ -259,38 +645,57 @@ public abstract class PackMsg {
             }
         }
 
-        public final Scorer scorer;
-        public final int score;
+        public Scorer scorer;
+        public int score;
 
         public ShipScore(Scorer scorer, int score, @NonNull GameDevice targetDevice) {
             super(MsgType.SHIP_SCORE, SCORE_SIZE, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
             this.scorer = scorer;
             this.score = score;
             buffer[SCORE_SCORER_IDX] = (byte) scorer.scorer;
-            ByteBuffer.wrap(buffer).putInt(SCORE_VALUE_IDX, score);
+            byteBuffer.putInt(SCORE_VALUE_IDX, score);
         }
 
-        public ShipScore(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
-            scorer = Scorer.findScorer(buffer[SCORE_SCORER_IDX], Scorer.CAT);
-            score = ByteBuffer.wrap(buffer).getInt(SCORE_VALUE_IDX);
+        private ShipScore() {
+        }
+
+        @Override
+        protected void decode() {
+            scorer = Scorer.findScorer(byteBuffer.get(base + SCORE_SCORER_IDX), Scorer.CAT);
+            score = byteBuffer.getInt(base + SCORE_VALUE_IDX);
         }
 
     }
 
     public static class NetworkVersion extends PackMsg {
 
-        public final int version;
+        public int version;
+        public int capabilities;  // NetworkCapabilities supported by the client
+        public int udpPort;       // client UDP port if it supports UDP_TRANSPORT
 
-        public NetworkVersion(int version, @NonNull GameDevice targetDevice) {
+        public NetworkVersion(int version, int capabilities, int udpPort, @NonNull GameDevice targetDevice) {
             super(MsgType.NETWORK_VERSION, NETWORKVERSION_SIZE, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
             this.version = version;
-            ByteBuffer.wrap(buffer).putInt(NETWORKVERSION_VALUE_IDX, version);
+            this.capabilities = capabilities;
+            this.udpPort = udpPort;
+            byteBuffer.putInt(NETWORKVERSION_VALUE_IDX, version);
+            byteBuffer.putInt(NETWORKVERSION_CAPABILITIES_IDX, capabilities);
+            byteBuffer.putInt(NETWORKVERSION_UDP_PORT_IDX, udpPort);
         }
 
-        public NetworkVersion(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
-            version = ByteBuffer.wrap(buffer).getInt(NETWORKVERSION_VALUE_IDX);
+        private NetworkVersion() {
+        }
+
+        @Override
+        protected void decode() {
+            version = byteBuffer.getInt(base + NETWORKVERSION_VALUE_IDX);
+            if (length >= NETWORKVERSION_SIZE) {    // older versions only send the version
+                capabilities = byteBuffer.getInt(base + NETWORKVERSION_CAPABILITIES_IDX);
+                udpPort = byteBuffer.getInt(base + NETWORKVERSION_UDP_PORT_IDX);
+            } else {
+                capabilities = NetworkCapabilities.NONE;
+                udpPort = 0;
+            }
         }
 
     }
@@ -298,11 +703,10 @@ public abstract class PackMsg {
     public static abstract class SimpleMsg extends PackMsg {
 
         protected SimpleMsg(MsgType type, @NonNull GameDevice targetDevice) {
-            super(type, HEADER_SIZE, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
+            super(type, type.getHeaderSize(), 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
         }
 
-        protected SimpleMsg(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        protected SimpleMsg() {
         }
     }
 
@@ -311,8 +715,7 @@ public abstract class PackMsg {
             super(MsgType.KILLED, targetDevice);
         }
 
-        protected Killed(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        private Killed() {
         }
     }
 
@@ -321,8 +724,7 @@ public abstract class PackMsg {
             super(MsgType.SESSION_FULL, targetDevice);
         }
 
-        protected SessionFull(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        private SessionFull() {
         }
     }
 
@@ -331,18 +733,100 @@ public abstract class PackMsg {
             super(MsgType.WRONG_NETWORK_VERSION, targetDevice);
         }
 
-        protected WrongNetworkVersion(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        private WrongNetworkVersion() {
+        }
+    }
+
+    public static class StartGame extends PackMsg {
+
+        public int capabilities;  // NetworkCapabilities agreed by the server
+        public int udpPort;       // server UDP port if UDP_TRANSPORT is agreed
+
+        public StartGame(int capabilities, int udpPort, @NonNull GameDevice targetDevice) {
+            super(MsgType.START_GAME, STARTGAME_SIZE, 0, SendPolicy.STACK_WHEN_BUSY, targetDevice);
+            this.capabilities = capabilities;
+            this.udpPort = udpPort;
+            byteBuffer.putInt(STARTGAME_CAPABILITIES_IDX, capabilities);
+            byteBuffer.putInt(STARTGAME_UDP_PORT_IDX, udpPort);
+        }
+
+        private StartGame() {
+        }
+
+        @Override
+        protected void decode() {
+            if (length >= STARTGAME_SIZE) {
+                capabilities = byteBuffer.getInt(base + STARTGAME_CAPABILITIES_IDX);
+                udpPort = byteBuffer.getInt(base + STARTGAME_UDP_PORT_IDX);
+            } else {
+                capabilities = NetworkCapabilities.NONE;
+                udpPort = 0;
+            }
+        }
+    }
+
+    /**
+     * Asks the other side for its clock, answered by a {@link Pong}. Times are System.nanoTime() of each side.
+     */
+    public static class Ping extends PackMsg {
+
+        public long originateTime;    // sender clock when sent
+
+        public Ping(long originateTime, @NonNull GameDevice targetDevice) {
+            super(MsgType.PING, PING_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            set(originateTime, targetDevice);
+        }
+
+        /**
+         * Refills the message, to send it again. It must not be in use anymore (sent).
+         */
+        public void set(long originateTime, @NonNull GameDevice targetDevice) {
+            this.originateTime = originateTime;
+            setTargetDevice(targetDevice);
+            byteBuffer.putLong(PING_ORIGINATE_IDX, originateTime);
+        }
+
+        private Ping() {
+        }
+
+        @Override
+        protected void decode() {
+            originateTime = byteBuffer.getLong(base + PING_ORIGINATE_IDX);
         }
     }
 
-    public static class StartGame extends SimpleMsg {
-        public StartGame(@NonNull GameDevice targetDevice) {
-            super(MsgType.START_GAME, targetDevice);
+    public static class Pong extends PackMsg {
+
+        public long originateTime;    // copied from the Ping, clock of the Ping sender
+        public long receiveTime;      // Ping received, clock of the Pong sender
+        public long transmitTime;     // Pong sent, clock of the Pong sender
+
+        public Pong(long originateTime, long receiveTime, long transmitTime, @NonNull GameDevice targetDevice) {
+            super(MsgType.PONG, PONG_SIZE, 0, SendPolicy.SKIP_WHEN_BUSY, targetDevice);
+            set(originateTime, receiveTime, transmitTime, targetDevice);
+        }
+
+        /**
+         * Refills the message, to send it again. It must not be in use anymore (sent).
+         */
+        public void set(long originateTime, long receiveTime, long transmitTime, @NonNull GameDevice targetDevice) {
+            this.originateTime = originateTime;
+            setTargetDevice(targetDevice);
+            this.receiveTime = receiveTime;
+            this.transmitTime = transmitTime;
+            byteBuffer.putLong(PONG_ORIGINATE_IDX, originateTime);
+            byteBuffer.putLong(PONG_RECEIVE_IDX, receiveTime);
+            byteBuffer.putLong(PONG_TRANSMIT_IDX, transmitTime);
+        }
+
+        private Pong() {
         }
 
-        protected StartGame(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        @Override
+        protected void decode() {
+            originateTime = byteBuffer.getLong(base + PONG_ORIGINATE_IDX);
+            receiveTime = byteBuffer.getLong(base + PONG_RECEIVE_IDX);
+            transmitTime = byteBuffer.getLong(base + PONG_TRANSMIT_IDX);
         }
     }
 
@@ -351,8 +835,7 @@ public abstract class PackMsg {
             super(MsgType.QUITTING, targetDevice);
         }
 
-        protected QuitGame(@NonNull byte[] buffer, @NonNull GameDevice gameDevice) {
-            super(buffer, gameDevice);
+        private QuitGame() {
         }
     }
 
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * Configurable {@link LinkImpairment}: fixed and random delay, jitter, loss, duplication, reordering and a bandwidth cap.
+ * Seeded, so that a run can be replayed. Everything is off until set. One instance per direction.
+ * <p>
+ * The bandwidth cap is a bottleneck queue: the packets leave one after the other at the given rate,
+ * and the ones which don't fit in the queue are lost (reliable ones wait for a retransmission).
+ */
+public class RandomImpairment implements LinkImpairment {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long DEFAULT_RETRANSMIT_NANOS = 200_000_000L;     // usual minimum TCP retransmission timeout
+    private static final int MAX_RETRANSMITS = 16;      // then a reliable packet goes through anyway, even with a 100% loss rate
+
+    private final @NonNull Random mRandom;
+    private long mFixedDelayNanos;
+    private long mRandomDelayNanos;
+    private long mJitterNanos;
+    private float mLossRate;
+    private float mDuplicateRate;
+    private float mReorderRate;
+    private long mReorderDelayNanos;
+    private long mBytesPerSecond;       // 0: unlimited
+    private int mQueueBytes;
+    private long mRetransmitNanos = DEFAULT_RETRANSMIT_NANOS;
+    private long mLinkFreeNanos;        // when the bottleneck has sent everything queued
+
+    public RandomImpairment(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @param nanos added to every packet: half of the round trip time
+     */
+    public void setFixedDelay(long nanos) {
+        mFixedDelayNanos = nanos;
+    }
+
+    /**
+     * @param maxNanos uniform extra delay of each packet, between 0 and maxNanos
+     */
+    public void setRandomDelay(long maxNanos) {
+        mRandomDelayNanos = maxNanos;
+    }
+
+    /**
+     * @param nanos standard deviation of a gaussian variation of the delay, which never goes below the fixed delay
+     */
+    public void setJitter(long nanos) {
+        mJitterNanos = nanos;
+    }
+
+    /**
+     * @param rate 0 to 1, independent losses
+     */
+    public void setLossRate(float rate) {
+        mLossRate = rate;
+    }
+
+    /**
+     * @param rate 0 to 1, the copy takes its own delay
+     */
+    public void setDuplicateRate(float rate) {
+        mDuplicateRate = rate;
+    }
+
+    /**
+     * @param rate 0 to 1, the packets held back
+     * @param extraNanos delay added to them, the next packets overtake them
+     */
+    public void setReordering(float rate, long extraNanos) {
+        mReorderRate = rate;
+        mReorderDelayNanos = extraNanos;
+    }
+
+    /**
+     * @param bytesPerSecond 0 for unlimited
+     * @param queueBytes room of the bottleneck queue
+     */
+    public void setBandwidth(long bytesPerSecond, int queueBytes) {
+        mBytesPerSecond = bytesPerSecond;
+        mQueueBytes = queueBytes;
+    }
+
+    /**
+     * @param nanos delay added for each loss of a reliable packet
+     */
+    public void setRetransmitDelay(long nanos) {
+        mRetransmitNanos = nanos;
+    }
+
+    @Override
+    public int schedule(long nowNanos, int size, boolean reliable, @NonNull long[] delays) {
+        long retransmitNanos = 0;
+        long sendNanos;
+        for (int attempt = 0; ; ++attempt) {
+            sendNanos = transmit(nowNanos + retransmitNanos, size);
+            if ((sendNanos >= 0) && (!isLost() || (attempt >= MAX_RETRANSMITS))) {
+                break;
+            }
+            if (!reliable) {
+                return 0;
+            }
+            retransmitNanos += mRetransmitNanos;
+        }
+        delays[0] = sendNanos - nowNanos + travelNanos();
+        if (reliable || (mDuplicateRate <= 0) || (mRandom.nextFloat() >= mDuplicateRate)) {
+            return 1;
+        }
+        delays[1] = sendNanos - nowNanos + travelNanos();
+        return 2;
+    }
+
+    // Bandwidth cap: returns when the last byte leaves the bottleneck, -1 if the queue is full
+    private long transmit(long nowNanos, int size) {
+        if (mBytesPerSecond <= 0) {
+            return nowNanos;
+        }
+        final long startNanos = Math.max(nowNanos, mLinkFreeNanos);
+        final long queuedBytes = (startNanos - nowNanos) * mBytesPerSecond / NANOS_PER_SECOND;
+        if ((queuedBytes > 0) && (queuedBytes + size > mQueueBytes)) {
+            return -1;      // an empty queue always takes a packet
+        }
+        mLinkFreeNanos = startNanos + size * NANOS_PER_SECOND / mBytesPerSecond;
+        return mLinkFreeNanos;
+    }
+
+    private boolean isLost() {
+        return (mLossRate > 0) && (mRandom.nextFloat() < mLossRate);
+    }
+
+    private long travelNanos() {
+        long delay = mFixedDelayNanos;
+        if (mRandomDelayNanos > 0) {
+            delay += (long) (mRandom.nextDouble() * mRandomDelayNanos);
+        }
+        if (mJitterNanos > 0) {
+            delay = Math.max(mFixedDelayNanos, delay + (long) (mRandom.nextGaussian() * mJitterNanos));
+        }
+        if ((mReorderRate > 0) && (mRandom.nextFloat() < mReorderRate)) {
+            delay += mReorderDelayNanos;
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reliability layer for messages sent over datagrams: sequence numbers, acks, selective resend and in-order delivery.
+ * Every datagram carries the ack of the last received sequence and a bitfield of the 32 previous ones,
+ * each reliable message is resent until acked when its retransmission timeout expires.
+ * Sender methods are called by the writer thread, receiver methods by the receive thread.
+ */
+public class ReliableChannel {
+
+    private static final int ACK_BITS = 32;
+    private static final int WINDOW_SIZE = ACK_BITS;   // messages in flight: any of them stays covered by the acks of the receiver
+    private static final long MIN_RTO_NANOS = 30_000_000L;
+    private static final long MAX_RTO_NANOS = 1_000_000_000L;
+    private static final long INITIAL_RTO_NANOS = 200_000_000L;
+    private static final long ACK_DELAY_NANOS = 10_000_000L;   // max delay before an ack is sent alone
+    private static final int INITIAL_RECEIVED_SIZE = 64;        // bytes of a held message, grows if needed
+
+    private static class SentMessage {
+        int mSeq;
+        byte[] mData;
+        int mLength;
+        long mFirstSendNanos;
+        long mLastSendNanos;
+        int mSendCount;
+        boolean mInFlight;
+    }
+
+    // Message received ahead of a missing one, copied until its turn comes
+    private static class ReceivedMessage {
+        int mSeq;
+        @NonNull byte[] mData = new byte[INITIAL_RECEIVED_SIZE];
+        @NonNull ByteBuffer mView = ByteBuffer.wrap(mData);
+        int mLength;
+        boolean mPresent;
+    }
+
+    // Sender
+    private final @NonNull SentMessage[] mSent = new SentMessage[WINDOW_SIZE];
+    private final @NonNull ArrayDeque<byte[]> mBacklog = new ArrayDeque<>();   // waiting for room in the window
+    private int mNextSendSeq = 1;
+    private int mOldestUnackedSeq = 1;
+    private long mSmoothedRttNanos;
+    private long mRttVarianceNanos;
+    private long mRtoNanos = INITIAL_RTO_NANOS;
+    private long mResendCount;
+
+    // Receiver
+    private final @NonNull ReceivedMessage[] mReceived = new ReceivedMessage[WINDOW_SIZE];
+    private int mNextDeliverSeq = 1;
+    private int mHighestReceivedSeq = 0;
+    private int mReceivedBits;          // bit i: mHighestReceivedSeq - 1 - i has been received
+    private long mAckNeededSinceNanos;  // 0 when no ack is owed
+
+    public ReliableChannel() {
+        for (int i = 0; i < WINDOW_SIZE; ++i) {
+            mSent[i] = new SentMessage();
+            mReceived[i] = new ReceivedMessage();
+        }
+    }
+
+    // ************************ Sender ************************
+
+    /**
+     * Queues a message. It is sent by {@link #pollToSend(long, Sender)}.
+     */
+    public synchronized void queue(@NonNull byte[] data, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        mBacklog.add(copy);
+    }
+
+    /**
+     * Sends the new messages which fit in the window, and resends the ones whose timeout expired.
+     * @return true if messages are still waiting for an ack or for room in the window
+     */
+    public synchronized boolean pollToSend(long nowNanos, @NonNull Sender sender) {
+        // Resend first, oldest first
+        for (int seq = mOldestUnackedSeq; seq - mNextSendSeq < 0; ++seq) {
+            SentMessage message = mSent[seq % WINDOW_SIZE];
+            if (message.mInFlight && (nowNanos - message.mLastSendNanos >= mRtoNanos)) {
+                message.mLastSendNanos = nowNanos;
+                ++message.mSendCount;
+                ++mResendCount;
+                sender.sendReliable(message.mSeq, message.mData, message.mLength);
+            }
+        }
+        // New messages
+        while (!mBacklog.isEmpty() && (mNextSendSeq - mOldestUnackedSeq < WINDOW_SIZE)) {
+            byte[] data = mBacklog.poll();
+            SentMessage message = mSent[mNextSendSeq % WINDOW_SIZE];
+            message.mSeq = mNextSendSeq++;
+            message.mData = data;
+            message.mLength = data.length;
+            message.mFirstSendNanos = nowNanos;
+            message.mLastSendNanos = nowNanos;
+            message.mSendCount = 1;
+            message.mInFlight = true;
+            sender.sendReliable(message.mSeq, message.mData, message.mLength);
+        }
+        return (mOldestUnackedSeq != mNextSendSeq) || !mBacklog.isEmpty();
+    }
+
+    /**
+     * Acks received from the other side, piggybacked on any datagram.
+     */
+    public synchronized void onAck(int ackSeq, int ackBits, long nowNanos) {
+        if (ackSeq <= 0) {
+            return;
+        }
+        acknowledge(ackSeq, nowNanos);
+        for (int i = 0; i < ACK_BITS; ++i) {
+            if ((ackBits & (1 << i)) != 0) {
+                acknowledge(ackSeq - 1 - i, nowNanos);
+            }
+        }
+        while ((mOldestUnackedSeq != mNextSendSeq) && !mSent[mOldestUnackedSeq % WINDOW_SIZE].mInFlight) {
+            ++mOldestUnackedSeq;
+        }
+    }
+
+    private void acknowledge(int seq, long nowNanos) {
+        if ((seq - mOldestUnackedSeq < 0) || (seq - mNextSendSeq >= 0)) {
+            return; // outside of the window
+        }
+        SentMessage message = mSent[seq % WINDOW_SIZE];
+        if (!message.mInFlight || (message.mSeq != seq)) {
+            return;
+        }
+        message.mInFlight = false;
+        message.mData = null;
+        if (message.mSendCount == 1) {  // Karn: no RTT sample from resent messages
+            updateRto(nowNanos - message.mFirstSendNanos);
+        }
+    }
+
+    private void updateRto(long rttNanos) {
+        if (mSmoothedRttNanos == 0) {
+            mSmoothedRttNanos = rttNanos;
+            mRttVarianceNanos = rttNanos / 2;
+        } else {
+            long error = Math.abs(mSmoothedRttNanos - rttNanos);
+            mRttVarianceNanos = (3 * mRttVarianceNanos + error) / 4;
+            mSmoothedRttNanos = (7 * mSmoothedRttNanos + rttNanos) / 8;
+        }
+        mRtoNanos = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, mSmoothedRttNanos + 4 * mRttVarianceNanos));
+    }
+
+    // ************************ Receiver ************************
+
+    /**
+     * A reliable message has been received: delivers it, and the following ones it unblocks, in order.
+     * The expected message is delivered in place, from data. A message received ahead is copied in a preallocated slot.
+     * @param offset absolute index of the message in data
+     */
+    public synchronized void onReceive(int seq, @NonNull ByteBuffer data, int offset, int length, long nowNanos, @NonNull Receiver receiver) {
+        recordForAck(seq, nowNanos);
+        if ((seq - mNextDeliverSeq < 0) || (seq - mNextDeliverSeq >= WINDOW_SIZE)) {
+            return; // duplicate, or too far ahead (the sender window prevents it)
+        }
+        if (seq != mNextDeliverSeq) {
+            hold(seq, data, offset, length);
+            return;
+        }
+        ++mNextDeliverSeq;
+        receiver.deliver(data, offset, length);
+
+        ReceivedMessage next = mReceived[mNextDeliverSeq % WINDOW_SIZE];
+        while (next.mPresent && (next.mSeq == mNextDeliverSeq)) {
+            next.mPresent = false;
+            ++mNextDeliverSeq;
+            receiver.deliver(next.mView, 0, next.mLength);
+            next = mReceived[mNextDeliverSeq % WINDOW_SIZE];
+        }
+    }
+
+    private void hold(int seq, @NonNull ByteBuffer data, int offset, int length) {
+        ReceivedMessage slot = mReceived[seq % WINDOW_SIZE];
+        if (slot.mPresent && (slot.mSeq == seq)) {
+            return; // duplicate
+        }
+        if (slot.mData.length < length) {
+            slot.mData = new byte[length];
+            slot.mView = ByteBuffer.wrap(slot.mData);
+        }
+        for (int i = 0; i < length; ++i) {
+            slot.mData[i] = data.get(offset + i);
+        }
+        slot.mSeq = seq;
+        slot.mLength = length;
+        slot.mPresent = true;
+    }
+
+    private void recordForAck(int seq, long nowNanos) {
+        if (seq - mHighestReceivedSeq > 0) {
+            final int shift = seq - mHighestReceivedSeq;
+            if ((mHighestReceivedSeq == 0) || (shift > ACK_BITS)) {
+                mReceivedBits = 0;
+            } else {
+                mReceivedBits = (shift == ACK_BITS) ? 0 : (mReceivedBits << shift);   // int << 32 would not shift
+                mReceivedBits |= 1 << (shift - 1);  // the previous highest
+            }
+            mHighestReceivedSeq = seq;
+        } else if (seq != mHighestReceivedSeq) {
+            int bit = mHighestReceivedSeq - 1 - seq;
+            if (bit < ACK_BITS) {
+                mReceivedBits |= (1 << bit);
+            }
+        }
+        if (mAckNeededSinceNanos == 0) {
+            mAckNeededSinceNanos = nowNanos;
+        }
+    }
+
+    public synchronized int getAckSeq() {
+        return mHighestReceivedSeq;
+    }
+
+    public synchronized int getAckBits() {
+        return mReceivedBits;
+    }
+
+    /**
+     * To call when the acks have been sent in a datagram.
+     */
+    public synchronized void onAckSent() {
+        mAckNeededSinceNanos = 0;
+    }
+
+    /**
+     * @return true if an ack is owed for too long and no datagram carried it: send one alone
+     */
+    public synchronized boolean isAckOverdue(long nowNanos) {
+        return (mAckNeededSinceNanos != 0) && (nowNanos - mAckNeededSinceNanos >= ACK_DELAY_NANOS);
+    }
+
+    public synchronized boolean isAckPending() {
+        return mAckNeededSinceNanos != 0;
+    }
+
+    public synchronized long getRtoNanos() {
+        return mRtoNanos;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return mSmoothedRttNanos;
+    }
+
+    public synchronized long getResendCount() {
+        return mResendCount;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mNextSendSeq - mOldestUnackedSeq;
+    }
+
+    public interface Sender {
+        void sendReliable(int seq, @NonNull byte[] data, int length);
+    }
+
+    public interface Receiver {
+        /**
+         * @param data only valid during the call
+         */
+        void deliver(@NonNull ByteBuffer data, int offset, int length);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receive side of the sequence numbers of an unreliable stream (see {@link PackMsg#getSequence()} and {@link PackMsg.MsgType#getSequenceStream()}):
+ * counts the lost, duplicated and reordered messages, and rejects the ones older than a message already delivered,
+ * so that an old ShipInfo never overwrites a newer one.
+ * A message counted as lost and received later is counted as reordered instead.
+ * Used by the receive thread.
+ */
+class SequenceTracker {
+
+    private static final int WINDOW_SIZE = 64;     // messages remembered behind the newest one
+
+    private final @NonNull ConnectionStats mStats;
+    private boolean mStarted;
+    private int mNewestSeq;
+    private long mReceivedBits;     // bit i: mNewestSeq - i has been received
+
+    SequenceTracker(@NonNull ConnectionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @param seq 16 bits sequence number of a received message
+     * @return true if the message is newer than all the previous ones and can be delivered
+     */
+    boolean onReceive(int seq) {
+        if (!mStarted) {
+            mStarted = true;
+            mNewestSeq = seq;
+            mReceivedBits = 1;
+            return true;
+        }
+        final int diff = (short) (seq - mNewestSeq);     // wraps
+        if (diff > 0) {
+            if (diff > 1) {
+                mStats.onSequenceLost(diff - 1);
+            }
+            mReceivedBits = (diff < WINDOW_SIZE) ? (mReceivedBits << diff) | 1 : 1;
+            mNewestSeq = seq;
+            return true;
+        }
+        final int age = -diff;
+        if (age >= WINDOW_SIZE) {
+            mStats.onSequenceLate(false);       // too old to know if it was counted as lost
+            return false;
+        }
+        final long bit = 1L << age;
+        if ((mReceivedBits & bit) != 0) {
+            mStats.onSequenceDuplicate();
+            return false;
+        }
+        mReceivedBits |= bit;
+        mStats.onSequenceLate(true);
+        return false;   // stale, a newer one has been delivered
+    }
+}
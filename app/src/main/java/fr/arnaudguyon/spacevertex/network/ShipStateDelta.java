@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Delta encoding of the SHIP_INFO_DELTA messages, for one connection, see {@link NetworkCapabilities#DELTA_SHIP_INFO}.
+ * Each state is encoded against the last state the other side acknowledged (its baseline): only the changed fields are sent,
+ * positions as the difference with the one predicted from the baseline speed, so that coasting costs almost nothing.
+ * Acks are carried by the SHIP_INFO_DELTA messages of the other side. A full state (keyframe) is sent when there is
+ * no usable baseline, and periodically to recover.
+ * Quantized like SHIP_INFO_PACKED. Both sides keep the quantized states, so they reconstruct exactly the same values.
+ * Used by the render thread only: encode from ShipLocal, decode from ShipRemote.
+ * <p>
+ * The states are numbered by the sequence of the PackMsg header (see {@link PackMsg.MsgType#isSequencedByEncoder()}),
+ * the time between a state and its baseline is the difference of their ticks (send times in ms).
+ * Message: [has ack: 1 bit][ack: low 6 bits of the sequence][baseline offset: 5 bits, 0 for a keyframe]
+ * then for a keyframe all the fields as SHIP_INFO_PACKED, else [changed fields: 6 bits] and the changed fields.
+ */
+public class ShipStateDelta {
+
+    private static final int SEQ_MASK = 0xFFFF;             // PackMsg header sequence
+    private static final int TICK_MASK = 0xFFFF;            // PackMsg header tick
+    private static final int BASELINE_OFFSET_BITS = 5;
+    private static final int HISTORY_SIZE = 1 << BASELINE_OFFSET_BITS;     // divides SEQ_MASK + 1
+    private static final int ACK_BITS = BASELINE_OFFSET_BITS + 1;         // twice the history: the acked state is the newest sent with these bits
+    private static final int ACK_MASK = (1 << ACK_BITS) - 1;
+    private static final int MAX_ELAPSED_MS = 255;          // between the baseline and the state, ShipStateScheduler heartbeats stay below
+    private static final long KEYFRAME_INTERVAL_MS = 1000;  // by time: the states are only sent on change, see ShipStateScheduler
+    private static final int SMALL_RESIDUAL_BITS = 7;       // position error of the prediction, zigzag encoded
+    private static final int MAX_SMALL_RESIDUAL = (1 << (SMALL_RESIDUAL_BITS - 1)) - 1;
+
+    private static final int FIELD_X = 0;
+    private static final int FIELD_Y = 1;
+    private static final int FIELD_SPEED_X = 2;
+    private static final int FIELD_SPEED_Y = 3;
+    private static final int FIELD_ROTATION = 4;
+    private static final int FIELD_REACTOR = 5;
+    private static final int NB_FIELDS = 6;
+
+    private static final int HEADER_BITS = 1 + ACK_BITS + BASELINE_OFFSET_BITS;
+    private static final int MAX_POSITION_DELTA_BITS = 1 + 1 + 32;
+    static final int MAX_SIZE = PackMsg.HEADER_SIZE + (HEADER_BITS + NB_FIELDS + 2 * MAX_POSITION_DELTA_BITS
+            + 2 * PackMsg.PACKED_SPEED_BITS + PackMsg.PACKED_ROTATION_BITS + PackMsg.PACKED_REACTOR_BITS + 7) / 8;
+
+    // Quantized state
+    private static class State {
+        int mSeq = -1;
+        long mTimeMs;   // send time, its tick when received
+        final @NonNull Position mX = new Position();
+        final @NonNull Position mY = new Position();
+        int mSpeedX;
+        int mSpeedY;
+        int mRotation;
+        int mReactor;
+
+        void copy(@NonNull State other) {
+            mTimeMs = other.mTimeMs;
+            mX.copy(other.mX);
+            mY.copy(other.mY);
+            mSpeedX = other.mSpeedX;
+            mSpeedY = other.mSpeedY;
+            mRotation = other.mRotation;
+            mReactor = other.mReactor;
+        }
+    }
+
+    private static class Position {
+        boolean mInRange;
+        int mStep;      // if in range
+        float mRaw;     // else
+
+        void set(float position) {
+            mInRange = (Math.abs(position) <= PackMsg.PACKED_POSITION_RANGE);
+            mStep = mInRange ? BitWriter.quantizeSigned(position, PackMsg.PACKED_POSITION_RANGE, PackMsg.PACKED_POSITION_BITS) : 0;
+            mRaw = mInRange ? 0 : position;
+        }
+
+        float get() {
+            return mInRange ? BitReader.dequantizeSigned(mStep, PackMsg.PACKED_POSITION_RANGE, PackMsg.PACKED_POSITION_BITS) : mRaw;
+        }
+
+        void copy(@NonNull Position other) {
+            mInRange = other.mInRange;
+            mStep = other.mStep;
+            mRaw = other.mRaw;
+        }
+
+        boolean equalsTo(@NonNull Position other) {
+            return (mInRange == other.mInRange) && (mStep == other.mStep) && (Float.floatToRawIntBits(mRaw) == Float.floatToRawIntBits(other.mRaw));
+        }
+
+        int getBits() {
+            return 1 + (mInRange ? PackMsg.PACKED_POSITION_BITS : 32);
+        }
+    }
+
+    private final @NonNull ConnectionStats mStats;
+    private final @NonNull BitWriter mWriter = new BitWriter();
+    private final @NonNull BitReader mReader = new BitReader();
+    private final @NonNull State[] mSent = new State[HISTORY_SIZE];
+    private final @NonNull State[] mReceived = new State[HISTORY_SIZE];
+    private final @NonNull State mPredicted = new State();      // scratch
+    private int mNextSeq = 0;
+    private int mPeerAckedSeq = -1;         // our last state received by the other side
+    private long mLastKeyframeMs = Long.MIN_VALUE / 2;
+    private int mLastReceivedSeq = -1;      // to ack
+
+    public ShipStateDelta(@NonNull ConnectionStats stats) {
+        mStats = stats;
+        for (int i = 0; i < HISTORY_SIZE; ++i) {
+            mSent[i] = new State();
+            mReceived[i] = new State();
+        }
+    }
+
+    /**
+     * Encodes the fields of shipInfo in its buffer, sets its sequence and its length. Its tick must be nowMs.
+     */
+    void encode(@NonNull PackMsg.ShipInfo shipInfo, long nowMs) {
+        final int seq = mNextSeq;
+        mNextSeq = (mNextSeq + 1) & SEQ_MASK;
+        shipInfo.setSequence(seq);
+        final State state = mSent[seq % HISTORY_SIZE];
+        state.mSeq = seq;
+        state.mTimeMs = nowMs;
+        state.mX.set(shipInfo.x);
+        state.mY.set(shipInfo.y);
+        state.mSpeedX = BitWriter.quantizeSigned(shipInfo.speedX, PackMsg.PACKED_SPEED_RANGE, PackMsg.PACKED_SPEED_BITS);
+        state.mSpeedY = BitWriter.quantizeSigned(shipInfo.speedY, PackMsg.PACKED_SPEED_RANGE, PackMsg.PACKED_SPEED_BITS);
+        state.mRotation = BitWriter.quantizeAngle(shipInfo.rotation, PackMsg.PACKED_ROTATION_BITS);
+        state.mReactor = shipInfo.reactor & ((1 << PackMsg.PACKED_REACTOR_BITS) - 1);
+
+        final State baseline = findBaseline(seq, nowMs);
+        final BitWriter writer = mWriter.reset(shipInfo.buffer, PackMsg.HEADER_SIZE);
+        writer.writeBoolean(mLastReceivedSeq >= 0);
+        writer.writeBits(mLastReceivedSeq & ACK_MASK, ACK_BITS);
+        if (baseline == null) {
+            writer.writeBits(0, BASELINE_OFFSET_BITS);
+            writeFull(writer, state);
+            mLastKeyframeMs = nowMs;
+        } else {
+            writer.writeBits((seq - baseline.mSeq) & SEQ_MASK, BASELINE_OFFSET_BITS);
+            writeDelta(writer, state, baseline, (int) (nowMs - baseline.mTimeMs));
+        }
+        shipInfo.length = writer.getByteLength();
+        mStats.onShipStateEncoded(PackMsg.HEADER_SIZE + (getFullBits(state) + 7) / 8, shipInfo.length);
+    }
+
+    private State findBaseline(int seq, long nowMs) {
+        if ((mPeerAckedSeq < 0) || (nowMs - mLastKeyframeMs >= KEYFRAME_INTERVAL_MS)) {
+            return null;
+        }
+        final int offset = (seq - mPeerAckedSeq) & SEQ_MASK;
+        final State baseline = mSent[mPeerAckedSeq % HISTORY_SIZE];
+        if ((offset == 0) || (offset >= HISTORY_SIZE) || (baseline.mSeq != mPeerAckedSeq) || (nowMs - baseline.mTimeMs > MAX_ELAPSED_MS)) {
+            return null;
+        }
+        return baseline;
+    }
+
+    /**
+     * Rebuilds the fields of a received shipInfo from its baseline.
+     * @return false if it cannot be used: out of date, duplicated or its baseline is unknown
+     */
+    public boolean decode(@NonNull PackMsg.ShipInfo shipInfo) {
+        final int seq = shipInfo.getSequence();
+        final int tick = shipInfo.getTick();
+        final BitReader reader = mReader.reset(shipInfo.byteBuffer, shipInfo.base + PackMsg.HEADER_SIZE, shipInfo.base + shipInfo.length);
+        final boolean hasAck = reader.readBoolean();
+        final int ack = reader.readBits(ACK_BITS);
+        final int offset = reader.readBits(BASELINE_OFFSET_BITS);
+        if (hasAck) {
+            onPeerAck(ack);
+        }
+        if ((mLastReceivedSeq >= 0) && !isNewer(seq, mLastReceivedSeq)) {
+            return false;
+        }
+        final State state = mReceived[seq % HISTORY_SIZE];
+        if (offset == 0) {
+            readFull(reader, state);
+        } else {
+            final int baselineSeq = (seq - offset) & SEQ_MASK;
+            final State baseline = mReceived[baselineSeq % HISTORY_SIZE];
+            final int elapsedMs = (int) ((tick - baseline.mTimeMs) & TICK_MASK);
+            if ((baseline.mSeq != baselineSeq) || (elapsedMs > MAX_ELAPSED_MS)) {
+                return false;   // wait for the next keyframe
+            }
+            readDelta(reader, state, baseline, elapsedMs);
+        }
+        if (reader.isOverflow()) {
+            state.mSeq = -1;
+            return false;
+        }
+        state.mSeq = seq;
+        state.mTimeMs = tick;
+        mLastReceivedSeq = seq;
+        shipInfo.x = state.mX.get();
+        shipInfo.y = state.mY.get();
+        shipInfo.speedX = BitReader.dequantizeSigned(state.mSpeedX, PackMsg.PACKED_SPEED_RANGE, PackMsg.PACKED_SPEED_BITS);
+        shipInfo.speedY = BitReader.dequantizeSigned(state.mSpeedY, PackMsg.PACKED_SPEED_RANGE, PackMsg.PACKED_SPEED_BITS);
+        shipInfo.rotation = BitReader.dequantizeAngle(state.mRotation, PackMsg.PACKED_ROTATION_BITS);
+        shipInfo.reactor = (byte) state.mReactor;
+        return true;
+    }
+
+    // ackBits: low bits of the sequence of our state, the newest sent with them. Ignored if it is not in the history anymore
+    private void onPeerAck(int ackBits) {
+        final int newest = (mNextSeq - 1) & SEQ_MASK;
+        final int ack = (newest - ((newest - ackBits) & ACK_MASK)) & SEQ_MASK;
+        if (mSent[ack % HISTORY_SIZE].mSeq != ack) {
+            return;
+        }
+        if ((mPeerAckedSeq < 0) || isNewer(ack, mPeerAckedSeq)) {
+            mPeerAckedSeq = ack;
+        }
+    }
+
+    private static boolean isNewer(int seq, int than) {
+        final int diff = (seq - than) & SEQ_MASK;
+        return (diff != 0) && (diff <= (SEQ_MASK >> 1));
+    }
+
+    // ************************ Fields ************************
+
+    private static int getFullBits(@NonNull State state) {
+        return state.mX.getBits() + state.mY.getBits() + 2 * PackMsg.PACKED_SPEED_BITS + PackMsg.PACKED_ROTATION_BITS + PackMsg.PACKED_REACTOR_BITS;
+    }
+
+    private static void writeFull(@NonNull BitWriter writer, @NonNull State state) {
+        writePosition(writer, state.mX);
+        writePosition(writer, state.mY);
+        writer.writeSignedStep(state.mSpeedX, PackMsg.PACKED_SPEED_BITS);
+        writer.writeSignedStep(state.mSpeedY, PackMsg.PACKED_SPEED_BITS);
+        writer.writeBits(state.mRotation, PackMsg.PACKED_ROTATION_BITS);
+        writer.writeBits(state.mReactor, PackMsg.PACKED_REACTOR_BITS);
+    }
+
+    private static void readFull(@NonNull BitReader reader, @NonNull State state) {
+        readPosition(reader, state.mX);
+        readPosition(reader, state.mY);
+        state.mSpeedX = reader.readSignedStep(PackMsg.PACKED_SPEED_BITS);
+        state.mSpeedY = reader.readSignedStep(PackMsg.PACKED_SPEED_BITS);
+        state.mRotation = reader.readBits(PackMsg.PACKED_ROTATION_BITS);
+        state.mReactor = reader.readBits(PackMsg.PACKED_REACTOR_BITS);
+    }
+
+    private void writeDelta(@NonNull BitWriter writer, @NonNull State state, @NonNull State baseline, int elapsedMs) {
+        final State predicted = predict(baseline, elapsedMs);
+        int changed = 0;
+        changed |= state.mX.equalsTo(predicted.mX) ? 0 : (1 << FIELD_X);
+        changed |= state.mY.equalsTo(predicted.mY) ? 0 : (1 << FIELD_Y);
+        changed |= (state.mSpeedX == baseline.mSpeedX) ? 0 : (1 << FIELD_SPEED_X);
+        changed |= (state.mSpeedY == baseline.mSpeedY) ? 0 : (1 << FIELD_SPEED_Y);
+        changed |= (state.mRotation == baseline.mRotation) ? 0 : (1 << FIELD_ROTATION);
+        changed |= (state.mReactor == baseline.mReactor) ? 0 : (1 << FIELD_REACTOR);
+        writer.writeBits(changed, NB_FIELDS);
+        if ((changed & (1 << FIELD_X)) != 0) {
+            writePositionDelta(writer, state.mX, predicted.mX);
+        }
+        if ((changed & (1 << FIELD_Y)) != 0) {
+            writePositionDelta(writer, state.mY, predicted.mY);
+        }
+        if ((changed & (1 << FIELD_SPEED_X)) != 0) {
+            writer.writeSignedStep(state.mSpeedX, PackMsg.PACKED_SPEED_BITS);
+        }
+        if ((changed & (1 << FIELD_SPEED_Y)) != 0) {
+            writer.writeSignedStep(state.mSpeedY, PackMsg.PACKED_SPEED_BITS);
+        }
+        if ((changed & (1 << FIELD_ROTATION)) != 0) {
+            writer.writeBits(state.mRotation, PackMsg.PACKED_ROTATION_BITS);
+        }
+        if ((changed & (1 << FIELD_REACTOR)) != 0) {
+            writer.writeBits(state.mReactor, PackMsg.PACKED_REACTOR_BITS);
+        }
+    }
+
+    private void readDelta(@NonNull BitReader reader, @NonNull State state, @NonNull State baseline, int elapsedMs) {
+        final State predicted = predict(baseline, elapsedMs);
+        final int changed = reader.readBits(NB_FIELDS);
+        state.copy(predicted);
+        if ((changed & (1 << FIELD_X)) != 0) {
+            readPositionDelta(reader, state.mX, predicted.mX);
+        }
+        if ((changed & (1 << FIELD_Y)) != 0) {
+            readPositionDelta(reader, state.mY, predicted.mY);
+        }
+        if ((changed & (1 << FIELD_SPEED_X)) != 0) {
+            state.mSpeedX = reader.readSignedStep(PackMsg.PACKED_SPEED_BITS);
+        }
+        if ((changed & (1 << FIELD_SPEED_Y)) != 0) {
+            state.mSpeedY = reader.readSignedStep(PackMsg.PACKED_SPEED_BITS);
+        }
+        if ((changed & (1 << FIELD_ROTATION)) != 0) {
+            state.mRotation = reader.readBits(PackMsg.PACKED_ROTATION_BITS);
+        }
+        if ((changed & (1 << FIELD_REACTOR)) != 0) {
+            state.mReactor = reader.readBits(PackMsg.PACKED_REACTOR_BITS);
+        }
+    }
+
+    /**
+     * @return the baseline moved with its speed for elapsedMs, same result on both sides (integer steps)
+     */
+    private @NonNull State predict(@NonNull State baseline, int elapsedMs) {
+        final State predicted = mPredicted;
+        predicted.copy(baseline);
+        predicted.mTimeMs = baseline.mTimeMs + elapsedMs;
+        predictPosition(predicted.mX, baseline.mSpeedX, elapsedMs);
+        predictPosition(predicted.mY, baseline.mSpeedY, elapsedMs);
+        return predicted;
+    }
+
+    private static void predictPosition(@NonNull Position position, int speedStep, int elapsedMs) {
+        if (!position.mInRange) {
+            return;
+        }
+        final int maxStep = (1 << (PackMsg.PACKED_POSITION_BITS - 1)) - 1;
+        final double speed = BitReader.dequantizeSigned(speedStep, PackMsg.PACKED_SPEED_RANGE, PackMsg.PACKED_SPEED_BITS);
+        final long step = position.mStep + Math.round(speed * elapsedMs * maxStep / PackMsg.PACKED_POSITION_RANGE);
+        if (Math.abs(step) <= maxStep) {
+            position.mStep = (int) step;
+        }
+    }
+
+    private static void writePosition(@NonNull BitWriter writer, @NonNull Position position) {
+        writer.writeBoolean(position.mInRange);
+        if (position.mInRange) {
+            writer.writeSignedStep(position.mStep, PackMsg.PACKED_POSITION_BITS);
+        } else {
+            writer.writeFloat(position.mRaw);
+        }
+    }
+
+    private static void readPosition(@NonNull BitReader reader, @NonNull Position position) {
+        position.mInRange = reader.readBoolean();
+        if (position.mInRange) {
+            position.mStep = reader.readSignedStep(PackMsg.PACKED_POSITION_BITS);
+            position.mRaw = 0;
+        } else {
+            position.mStep = 0;
+            position.mRaw = reader.readFloat();
+        }
+    }
+
+    // [small: 1 bit] then the zigzag residual, or the full position
+    private static void writePositionDelta(@NonNull BitWriter writer, @NonNull Position position, @NonNull Position predicted) {
+        final int residual = position.mStep - predicted.mStep;
+        final boolean small = position.mInRange && predicted.mInRange && (Math.abs(residual) <= MAX_SMALL_RESIDUAL);
+        writer.writeBoolean(small);
+        if (small) {
+            writer.writeBits((residual << 1) ^ (residual >> 31), SMALL_RESIDUAL_BITS);
+        } else {
+            writePosition(writer, position);
+        }
+    }
+
+    private static void readPositionDelta(@NonNull BitReader reader, @NonNull Position position, @NonNull Position predicted) {
+        if (reader.readBoolean()) {
+            final int zigzag = reader.readBits(SMALL_RESIDUAL_BITS);
+            position.mInRange = true;
+            position.mStep = predicted.mStep + ((zigzag >>> 1) ^ -(zigzag & 1));
+            position.mRaw = 0;
+        } else {
+            readPosition(reader, position);
+        }
+    }
+}
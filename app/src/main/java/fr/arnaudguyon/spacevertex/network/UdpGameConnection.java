@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * GameConnection sending the SKIP_WHEN_BUSY messages (ship states) over UDP, so that a lost packet delays nothing else.
+ * With {@link NetworkCapabilities#RELIABLE_UDP}, the other gameplay messages (fire, killed, restart...) go over UDP too,
+ * through a {@link ReliableChannel}: a lost ship state then never delays a fire message behind a TCP retransmission.
+ * Otherwise, and for the session messages, the reliable WebSocket connection is used.
+ * The UDP ports are exchanged during the NETWORK_VERSION / START_GAME handshake, see {@link NetworkCapabilities#UDP_TRANSPORT}.
+ * <p>
+ * Datagram: [kind: 1 byte][ack seq: int][ack bits: int] then [seq: int] for reliable messages, then the PackMsg bytes.
+ * Unreliable and reliable messages have their own PackMsg sequence numbers: the unreliable ones received late are dropped.
+ */
+public class UdpGameConnection implements GameConnection, NetworkWriter.Sink, ReliableChannel.Sender {
+
+    private static final String TAG = "UdpGameConnection";
+    private static final int MAX_DATAGRAM_SIZE = 1400;     // below the usual MTU
+
+    private static final byte KIND_UNRELIABLE = 0;
+    private static final byte KIND_RELIABLE = 1;
+    private static final byte KIND_ACK = 2;     // acks only, when no datagram carried them in time
+    private static final int KIND_IDX = 0;
+    private static final int ACK_SEQ_IDX = 1;
+    private static final int ACK_BITS_IDX = 5;
+    private static final int SEQ_IDX = 9;
+    private static final int HEADER_SIZE = 9;
+    private static final int RELIABLE_HEADER_SIZE = 13;
+
+    private final @NonNull WebSocketHelper mReliable;
+    private final @NonNull DatagramSocket mSocket;
+    private final @NonNull InetAddress mPeerAddress;
+    private final int mPeerPort;
+    private final @NonNull GameDevice mPeerDevice;
+    private final @NonNull ConnectionStats mStats;
+    private final @NonNull NetworkWriter mWriter;
+    private final @NonNull ReliableChannel mChannel = new ReliableChannel();
+    private final @NonNull SequenceTracker[] mUnreliableTrackers = new SequenceTracker[PackMsg.MsgType.SEQUENCE_STREAMS];    // receive thread only
+    private final @NonNull int[] mUnreliableSequences = new int[PackMsg.MsgType.SEQUENCE_STREAMS];     // writer thread only, by stream
+    private int mReliableSequence;
+    private final boolean mReliableOverUdp;
+    private final @NonNull byte[] mSendBuffer = new byte[MAX_DATAGRAM_SIZE];    // writer thread only
+    private final @NonNull ByteBuffer mSendView = ByteBuffer.wrap(mSendBuffer);
+    private final @NonNull PackMsg.Reader mReader = new PackMsg.Reader();       // receive thread only
+    private final @NonNull DatagramPacket mSendPacket;     // writer thread only
+    private final @NonNull Thread mReceiveThread;
+
+    /**
+     * @param socket owned by the connection from now on
+     * @param capabilities agreed during the handshake
+     */
+    public UdpGameConnection(@NonNull WebSocketHelper reliable, @NonNull DatagramSocket socket, @NonNull InetAddress peerAddress, int peerPort, @NonNull GameDevice peerDevice, int capabilities) {
+        mReliable = reliable;
+        mReliableOverUdp = NetworkCapabilities.has(capabilities, NetworkCapabilities.RELIABLE_UDP);
+        mSocket = socket;
+        mPeerAddress = peerAddress;
+        mPeerPort = peerPort;
+        mPeerDevice = peerDevice;
+        mStats = reliable.getStats();
+        for (int i = 0; i < mUnreliableTrackers.length; ++i) {
+            mUnreliableTrackers[i] = new SequenceTracker(mStats);
+        }
+        mSendPacket = new DatagramPacket(new byte[0], 0, peerAddress, peerPort);
+        mWriter = new NetworkWriter(this, mStats);
+        mReceiveThread = new Thread(this::receiveLoop, "UdpReceiver");
+        mWriter.start();
+        mReceiveThread.start();
+        Log.i(TAG, "UDP " + socket.getLocalPort() + " <-> " + peerAddress.getHostAddress() + ":" + peerPort + (mReliableOverUdp ? " reliable" : ""));
+    }
+
+    /**
+     * Opens a UDP socket on any free port, to advertise during the handshake.
+     * @return null if UDP is not available
+     */
+    public static @Nullable DatagramSocket openSocket() {
+        try {
+            return new DatagramSocket(0);
+        } catch (SocketException e) {
+            Log.w(TAG, "openSocket failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return a UdpGameConnection over connection if possible, else connection itself (and the socket is closed)
+     */
+    public static @NonNull GameConnection wrap(@NonNull GameConnection connection, @Nullable DatagramSocket socket, @NonNull GameDevice peerDevice, int peerPort, int capabilities) {
+        if ((socket != null) && (peerPort > 0) && (connection instanceof WebSocketHelper)) {
+            WebSocketHelper reliable = (WebSocketHelper) connection;
+            InetAddress peerAddress = reliable.getPeerAddress(peerDevice);
+            if (peerAddress != null) {
+                return new UdpGameConnection(reliable, socket, peerAddress, peerPort, peerDevice, capabilities);
+            }
+        }
+        if (socket != null) {
+            socket.close();
+        }
+        return connection;
+    }
+
+    public int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+
+    @Override
+    public void sendMessage(@NonNull PackMsg packMsg) {
+        if ((packMsg.getSendPolicy() == PackMsg.SendPolicy.SKIP_WHEN_BUSY)
+                || (mReliableOverUdp && !isSessionMessage(packMsg.getType()))) {
+            mWriter.send(packMsg);
+        } else {
+            mReliable.sendMessage(packMsg);
+        }
+    }
+
+    @Override
+    public void flushBatch() {
+        mReliable.flushBatch();
+    }
+
+    /**
+     * Session messages stay on the WebSocket, which also tells when the other player leaves.
+     */
+    private static boolean isSessionMessage(@NonNull PackMsg.MsgType type) {
+        switch (type) {
+            case NETWORK_VERSION:
+            case WRONG_NETWORK_VERSION:
+            case SESSION_FULL:
+            case START_GAME:
+            case QUITTING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Writer Thread
+    @Override
+    public void write(@NonNull GameDevice device, @NonNull PackMsg.MsgType type, @NonNull PackMsg.SendPolicy sendPolicy, @NonNull byte[] data, int length) {
+        if (sendPolicy == PackMsg.SendPolicy.SKIP_WHEN_BUSY) {
+            PackMsg.writeSequence(data, 0, length, mUnreliableSequences[type.getSequenceStream()]++);
+            sendDatagram(KIND_UNRELIABLE, 0, data, length);
+        } else {
+            PackMsg.writeSequence(data, 0, length, mReliableSequence++);
+            mChannel.queue(data, length);
+            mChannel.pollToSend(System.nanoTime(), this);
+        }
+    }
+
+    // Writer Thread
+    @Override
+    public boolean flushPending() {
+        final long now = System.nanoTime();
+        final boolean inFlight = mChannel.pollToSend(now, this);
+        if (mChannel.isAckOverdue(now)) {
+            sendDatagram(KIND_ACK, 0, mSendBuffer, 0);
+        }
+        mStats.setReliableState(mChannel.getResendCount(), mChannel.getSmoothedRttNanos(), mChannel.getInFlightCount());
+        return inFlight || mChannel.isAckPending();
+    }
+
+    // Writer Thread
+    @Override
+    public void sendReliable(int seq, @NonNull byte[] data, int length) {
+        sendDatagram(KIND_RELIABLE, seq, data, length);
+    }
+
+    // Writer Thread. Every datagram carries the acks of the messages received.
+    private void sendDatagram(byte kind, int seq, @NonNull byte[] data, int length) {
+        final int headerSize = (kind == KIND_RELIABLE) ? RELIABLE_HEADER_SIZE : HEADER_SIZE;
+        if (headerSize + length > MAX_DATAGRAM_SIZE) {
+            Log.w(TAG, "datagram too big: " + length);
+            return;
+        }
+        mSendView.put(KIND_IDX, kind);
+        mSendView.putInt(ACK_SEQ_IDX, mChannel.getAckSeq());
+        mSendView.putInt(ACK_BITS_IDX, mChannel.getAckBits());
+        if (kind == KIND_RELIABLE) {
+            mSendView.putInt(SEQ_IDX, seq);
+        }
+        System.arraycopy(data, 0, mSendBuffer, headerSize, length);
+        mSendPacket.setData(mSendBuffer, 0, headerSize + length);
+        try {
+            mSocket.send(mSendPacket);
+            mChannel.onAckSent();
+            mStats.onDatagramSent();
+        } catch (IOException e) {
+            Log.w(TAG, "send datagram failed: " + e.getMessage());
+        }
+    }
+
+    // Receive Thread
+    private void receiveLoop() {
+        final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        final ByteBuffer view = ByteBuffer.wrap(buffer);
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        final ReliableChannel.Receiver receiver = this::deliver;
+        while (!mSocket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                mSocket.receive(packet);
+            } catch (IOException e) {
+                if (!mSocket.isClosed()) {
+                    Log.w(TAG, "receive failed: " + e.getMessage());
+                }
+                break;
+            }
+            final int length = packet.getLength();
+            if (!isFromPeer(packet) || (length < HEADER_SIZE)) {
+                continue;   // not from our opponent, or from an old socket of the same host
+            }
+            mStats.onDatagramReceived();
+            final long now = System.nanoTime();
+            final byte kind = view.get(KIND_IDX);
+            mChannel.onAck(view.getInt(ACK_SEQ_IDX), view.getInt(ACK_BITS_IDX), now);
+            if (kind == KIND_UNRELIABLE) {
+                final int seq = PackMsg.readSequence(buffer, HEADER_SIZE, length - HEADER_SIZE);
+                final int stream = PackMsg.MsgType.get(buffer[HEADER_SIZE + PackMsg.HEADER_TYPE_IDX]).getSequenceStream();
+                if ((seq >= 0) && !mUnreliableTrackers[stream].onReceive(seq)) {
+                    continue;   // duplicate, or older than a message already delivered
+                }
+                deliver(view, HEADER_SIZE, length - HEADER_SIZE);   // decoded in place, valid until the next datagram
+            } else if ((kind == KIND_RELIABLE) && (length > RELIABLE_HEADER_SIZE)) {
+                final int seq = view.getInt(SEQ_IDX);
+                mChannel.onReceive(seq, view, RELIABLE_HEADER_SIZE, length - RELIABLE_HEADER_SIZE, now, receiver);
+                mWriter.wakeUp();   // an ack is owed
+            }
+        }
+    }
+
+    // Same address and port as negotiated during the handshake. packet.getSocketAddress() would allocate
+    private boolean isFromPeer(@NonNull DatagramPacket packet) {
+        return (packet.getPort() == mPeerPort) && mPeerAddress.equals(packet.getAddress());
+    }
+
+    // Receive Thread
+    private void deliver(@NonNull ByteBuffer data, int offset, int length) {
+        PackMsg packMsg = mReader.read(data, offset, length, mPeerDevice);
+        if (packMsg != null) {
+            mReliable.dispatchMessage(this, packMsg);
+        }
+    }
+
+    @Override
+    public void addMessageListener(@NonNull PackMsg.MsgType type, @NonNull MessageListener listener) {
+        mReliable.addMessageListener(type, listener);
+    }
+
+    @Override
+    public void removeMessageListeners() {
+        mReliable.removeMessageListeners();
+    }
+
+    @Override
+    public int getCapabilities() {
+        return mReliable.getCapabilities();
+    }
+
+    @Override
+    public @NonNull ClockSync getClockSync() {
+        return mReliable.getClockSync();
+    }
+
+    @Override
+    public void registerConnectionListener(@NonNull PlayerConnectionListener listener) {
+        mReliable.registerConnectionListener(listener);
+    }
+
+    @Override
+    public void unregisterConnectionListener() {
+        mReliable.unregisterConnectionListener();
+    }
+
+    @Override
+    public void disconnect() {
+        mWriter.stop();
+        mSocket.close();    // unblocks the receive thread
+        mReliable.disconnect();
+    }
+
+    @Override
+    public boolean isServer() {
+        return mReliable.isServer();
+    }
+
+    @Override
+    public @NonNull ConnectionStats getStats() {
+        return mStats;
+    }
+}
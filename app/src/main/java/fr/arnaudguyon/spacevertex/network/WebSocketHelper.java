@@ -6,6 +6,7 @@
 package fr.arnaudguyon.spacevertex.network;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import android.util.Log;
 
@@ -23,29 +24,31 @@ import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import fr.arnaudguyon.spacevertex.network.wifi.WifiGameDevice;
 
 // TODO: rename to something like WebSocketGameConnection
-public abstract class WebSocketHelper implements GameConnection {
+public abstract class WebSocketHelper implements GameConnection, NetworkWriter.Sink {
 
     private static final String TAG = "WebSocketHelper";
-    public static final int NETWORK_VERSION = 2;
+    public static final int NETWORK_VERSION = 6;
 
-    private final @NonNull ArrayList<MessageListenerInfo> mMessageListeners = new ArrayList<>();         // People registered for messages to be sent asap and not stacked (cannot mix stack + registered type)
     protected boolean mDisconnecting = false;
     protected String mServerIp;
     protected PlayerConnectionListener listener;
-
-    static class MessageListenerInfo {
-        PackMsg.MsgType mType;
-        MessageListener mListener;
-
-        MessageListenerInfo(PackMsg.MsgType type, MessageListener listener) {
-            mType = type;
-            mListener = listener;
+    protected final @NonNull ConnectionStats mStats = new ConnectionStats();
+    private final @NonNull NetworkWriter mWriter = new NetworkWriter(this, mStats);
+    private final @NonNull ClockSync mClockSync = new ClockSync(mStats, ClockSync.SYSTEM_CLOCK);
+    private final @NonNull MessageDispatcher mDispatcher = new MessageDispatcher(mClockSync);
+    private volatile int mCapabilities = NetworkCapabilities.NONE;
+    // The server receives on several threads: one Reader each, its views are reused for every message
+    private final @NonNull ThreadLocal<PackMsg.Reader> mReaders = new ThreadLocal<PackMsg.Reader>() {
+        @Override
+        protected PackMsg.Reader initialValue() {
+            return new PackMsg.Reader();
         }
-    }
+    };
 
     public WebSocketHelper() {
     }
@@ -56,12 +59,63 @@ public abstract class WebSocketHelper implements GameConnection {
 
     public void disconnect() {
         mDisconnecting = true;
-        synchronized (this) {
-            mMessageListeners.clear();
-        }
+        removeMessageListeners();
         close();
+        mWriter.stop();
+    }
+
+    /**
+     * To call at the end of the subclass constructor, once it can write.
+     */
+    protected void startWriter() {
+        mWriter.start();
+    }
+
+    /**
+     * Never blocks: the message is copied and written by the writer thread, or dropped if its queue is full.
+     */
+    @Override
+    public void sendMessage(@NonNull PackMsg message) {
+        logMessage((isServer() ? "Server" : "Client") + " sendMessage ", message);
+        mWriter.send(message);
+    }
+
+    @Override
+    public void flushBatch() {
+        mWriter.flushBatch();
+    }
+
+    @Override
+    public @NonNull ConnectionStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public int getCapabilities() {
+        return mCapabilities;
     }
 
+    @Override
+    public @NonNull ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Sets the NetworkCapabilities agreed during the handshake.
+     */
+    public void setCapabilities(int capabilities) {
+        mCapabilities = capabilities;
+        final boolean batching = isBatching();
+        setQueuesBatching(batching);
+        mWriter.setBatching(batching);
+    }
+
+    protected boolean isBatching() {
+        return NetworkCapabilities.has(mCapabilities, NetworkCapabilities.BATCH_MESSAGES);
+    }
+
+    protected abstract void setQueuesBatching(boolean batching);
+
     @Override
     public void registerConnectionListener(@NonNull PlayerConnectionListener listener) {
         this.listener = listener;
@@ -74,17 +128,12 @@ public abstract class WebSocketHelper implements GameConnection {
 
     @Override
     public void addMessageListener(@NonNull PackMsg.MsgType type, @NonNull MessageListener listener) {
-        MessageListenerInfo info = new MessageListenerInfo(type, listener);
-        synchronized (this) {
-            mMessageListeners.add(info);
-        }
+        mDispatcher.addMessageListener(type, listener);
     }
 
     @Override
     public void removeMessageListeners() {
-        synchronized (this) {
-            mMessageListeners.clear();
-        }
+        mDispatcher.removeMessageListeners();
     }
 
     public boolean isServer() {
@@ -93,30 +142,63 @@ public abstract class WebSocketHelper implements GameConnection {
 
     protected void logMessage(String prefix, @NonNull PackMsg message) {
         PackMsg.MsgType type = message.getType();
-        if ((type != PackMsg.MsgType.SHIP_INFO) && (type != PackMsg.MsgType.SHIP_FIRE) && (type != PackMsg.MsgType.SHIP_SCORE) && (type != PackMsg.MsgType.GAME_CHRONO)) {
+        if ((type != PackMsg.MsgType.SHIP_INFO) && (type != PackMsg.MsgType.SHIP_INFO_PACKED) && (type != PackMsg.MsgType.SHIP_INFO_DELTA) && (type != PackMsg.MsgType.SHIP_FIRE) && (type != PackMsg.MsgType.SHIP_SCORE) && (type != PackMsg.MsgType.GAME_CHRONO)) {
             Log.i(TAG, prefix + message.getType().name());
         }
     }
 
-    protected void notifyMessage(WebSocketHelper socketHelper, byte[] message, WebSocket client) {
-
-        WifiGameDevice gameDevice = new WifiGameDevice(client);
-        PackMsg packMsg = PackMsg.create(message, gameDevice);
+    /**
+     * @return the device of a connection, the same instance for all its messages
+     */
+    protected abstract @NonNull WifiGameDevice getGameDevice(@NonNull WebSocket connection);
+
+    /**
+     * Decodes the message in place, between the position and the limit of message: the PackMsg dispatched is a view
+     * on these bytes, only valid during the call of the listeners.
+     */
+    protected void notifyMessage(WebSocketHelper socketHelper, @NonNull ByteBuffer message, WebSocket client) {
+
+        WifiGameDevice gameDevice = getGameDevice(client);
+        final PackMsg.Reader reader = mReaders.get();
+        final int start = message.position();
+        final int end = message.limit();
+        if ((end > start) && (PackMsg.MsgType.get(message.get(start)) == PackMsg.MsgType.BATCH)) {
+            notifyBatch(socketHelper, reader, message, start, end, gameDevice);
+            return;
+        }
+        PackMsg packMsg = reader.read(message, gameDevice);
         if (packMsg != null) {
-            // check if someone has been registered for this kind of messages
-            logMessage("receive Message ", packMsg);
+            dispatchMessage(socketHelper, packMsg);
+        }
+    }
 
-            final ArrayList<MessageListenerInfo> listeners;
-            synchronized (this) {
-                listeners = new ArrayList<>(mMessageListeners);  // avoid concurrent access with message sent et receiver which unregisters
+    // Unpacks the messages of a BATCH frame, see OutboundQueue
+    private void notifyBatch(WebSocketHelper socketHelper, @NonNull PackMsg.Reader reader, @NonNull ByteBuffer message, int start, int end, @NonNull GameDevice gameDevice) {
+        int position = start + PackMsg.LEGACY_HEADER_SIZE;
+        while (position + OutboundQueue.BATCH_LENGTH_SIZE <= end) {
+            final int length = message.getShort(position) & 0xFFFF;
+            position += OutboundQueue.BATCH_LENGTH_SIZE;
+            if (position + length > end) {
+                Log.w(TAG, "truncated BATCH");
+                return;
             }
-            PackMsg.MsgType type = packMsg.getType();
-            for (MessageListenerInfo messageListenerInfo : listeners) {
-                if (messageListenerInfo.mType.equals(type)) {
-                    messageListenerInfo.mListener.onMessageReceived(socketHelper, packMsg);
-                }
+            PackMsg packMsg = reader.read(message, position, length, gameDevice);
+            if (packMsg != null) {
+                dispatchMessage(socketHelper, packMsg);
             }
+            position += length;
+        }
+    }
+
+    /**
+     * Notifies the listeners registered for the type of the message. Also used for messages received by another transport.
+     */
+    public void dispatchMessage(@NonNull GameConnection connection, @NonNull PackMsg packMsg) {
+        if (mDispatcher.handleClockSync(connection, packMsg)) {
+            return;
         }
+        logMessage("receive Message ", packMsg);
+        mDispatcher.notifyListeners(connection, packMsg);
     }
 
     protected abstract void close();
@@ -132,6 +214,19 @@ public abstract class WebSocketHelper implements GameConnection {
 
     public abstract String getRemoteAddress(WebSocket connection);
 
+    /**
+     * @return IP address of the other side of the device connection, null if unknown
+     */
+    public @Nullable InetAddress getPeerAddress(@NonNull GameDevice device) {
+        if (device instanceof WifiGameDevice) {
+            InetSocketAddress socketAddress = ((WifiGameDevice) device).getDevice().getRemoteSocketAddress();
+            if (socketAddress != null) {
+                return socketAddress.getAddress();
+            }
+        }
+        return null;
+    }
+
 //    public abstract String getLocalAddress();   // for only connection available, TODO: add an index or ID
 //    public abstract String getRemoteAddress();
 
@@ -147,6 +242,9 @@ public abstract class WebSocketHelper implements GameConnection {
         private static final String TAG = "SocketServer";
         private final @NonNull WebSocketServer mSocketServer;
         private final @NonNull HashMap<String, WifiGameDevice> connectedDevices = new HashMap<>(); // String is ? mac/ip?
+        private final @NonNull ConcurrentHashMap<WebSocket, WifiGameDevice> mDevices = new ConcurrentHashMap<>();  // read by the receive threads
+        private final @NonNull HashMap<WebSocket, OutboundQueue> mOutboundQueues = new HashMap<>();
+        private final @NonNull ArrayList<OutboundQueue> mOutboundQueueList = new ArrayList<>();    // same queues, iterated without allocation
 
         public SocketServer(String serverIp, int port) {
             super();
@@ -163,9 +261,17 @@ public abstract class WebSocketHelper implements GameConnection {
 
                     String remoteAddress = connection.getRemoteSocketAddress().getAddress().toString();
                     Log.w(TAG, "onOpen REMOTE ADDRESS = " + remoteAddress);
-                    connectedDevices.put(remoteAddress, new WifiGameDevice(connection));
+                    WifiGameDevice device = new WifiGameDevice(connection);
+                    connectedDevices.put(remoteAddress, device);
+                    mDevices.put(connection, device);
+                    synchronized (SocketServer.this) {
+                        OutboundQueue queue = new OutboundQueue(connection, mStats);
+                        queue.setBatching(isBatching());
+                        mOutboundQueues.put(connection, queue);
+                        mOutboundQueueList.add(queue);
+                    }
                     if (listener != null) {
-                        listener.onPlayerJoined(SocketServer.this, new WifiGameDevice(connection));
+                        listener.onPlayerJoined(SocketServer.this, device);
                     }
                 }
 
@@ -175,8 +281,14 @@ public abstract class WebSocketHelper implements GameConnection {
                     String remoteAddress = connection.getRemoteSocketAddress().getAddress().toString();
                     Log.w(TAG, "onOpen REMOTE ADDRESS = " + remoteAddress);
                     connectedDevices.remove(remoteAddress);
+                    WifiGameDevice device = getGameDevice(connection);
+                    mDevices.remove(connection);
+                    synchronized (SocketServer.this) {
+                        OutboundQueue queue = mOutboundQueues.remove(connection);
+                        mOutboundQueueList.remove(queue);
+                    }
                     if (listener != null) {
-                        listener.onPlayerLeft(SocketServer.this, new WifiGameDevice(connection));
+                        listener.onPlayerLeft(SocketServer.this, device);
                     }
                 }
 
@@ -186,7 +298,7 @@ public abstract class WebSocketHelper implements GameConnection {
 
                 @Override
                 public void onMessage(WebSocket connection, ByteBuffer message) {
-                    notifyMessage(SocketServer.this, message.array(), connection);
+                    notifyMessage(SocketServer.this, message, connection);
                 }
 
                 @Override
@@ -199,18 +311,39 @@ public abstract class WebSocketHelper implements GameConnection {
                 }
             };
             mSocketServer.start();
+            startWriter();
         }
 
+        // Writer Thread
         @Override
-        public void sendMessage(@NonNull PackMsg message) {
-            logMessage("Server sendMessage ", message);
+        public void write(@NonNull GameDevice device, @NonNull PackMsg.MsgType type, @NonNull PackMsg.SendPolicy sendPolicy, @NonNull byte[] data, int length) {
+            WebSocket destinationSocket = ((WifiGameDevice) device).getDevice();
+            final OutboundQueue queue;
             synchronized (this) {
-                WifiGameDevice messageDevice = (WifiGameDevice) message.getDevice();
-                WebSocket destinationSocket = messageDevice.getDevice();
-                if (destinationSocket.isOpen()) {
-                    destinationSocket.send(message.getBuffer());
+                queue = mOutboundQueues.get(destinationSocket);
+            }
+            if (queue != null) {
+                queue.send(type, sendPolicy, data, length);
+            }
+        }
+
+        @Override
+        protected synchronized void setQueuesBatching(boolean batching) {
+            for (int i = 0; i < mOutboundQueueList.size(); ++i) {
+                mOutboundQueueList.get(i).setBatching(batching);
+            }
+        }
+
+        // Writer Thread
+        @Override
+        public boolean flushPending() {
+            boolean pending = false;
+            synchronized (this) {
+                for (int i = 0; i < mOutboundQueueList.size(); ++i) {
+                    pending |= mOutboundQueueList.get(i).flush();
                 }
             }
+            return pending;
         }
 
         @Override
@@ -222,6 +355,12 @@ public abstract class WebSocketHelper implements GameConnection {
             }
         }
 
+        @Override
+        protected @NonNull WifiGameDevice getGameDevice(@NonNull WebSocket connection) {
+            WifiGameDevice device = mDevices.get(connection);
+            return (device != null) ? device : new WifiGameDevice(connection);     // closed meanwhile
+        }
+
         @Override
         public String getRemoteAddress(WebSocket connection) {
             InetSocketAddress socketAddress = connection.getRemoteSocketAddress();
@@ -240,8 +379,10 @@ public abstract class WebSocketHelper implements GameConnection {
 
         private static final String TAG = "SocketClient";
         private final @NonNull WebSocketClient mSocketClient;
-        boolean mConnected = false;
+        volatile boolean mConnected = false;
         private final int mServerPort;
+        private OutboundQueue mOutboundQueue;
+        private volatile WifiGameDevice mDevice;
 
         public SocketClient(String serverIp, int serverPort) {
             super();
@@ -256,9 +397,14 @@ public abstract class WebSocketHelper implements GameConnection {
                 @Override
                 public void onOpen(ServerHandshake handshakedata) {
                     Log.i(TAG, "onOpen");
+                    synchronized (SocketClient.this) {
+                        mOutboundQueue = new OutboundQueue(mSocketClient.getConnection(), mStats);
+                        mOutboundQueue.setBatching(isBatching());
+                    }
+                    mDevice = new WifiGameDevice(mSocketClient.getConnection());
                     mConnected = true;
                     if (listener != null) {
-                        listener.onPlayerJoined(SocketClient.this, new WifiGameDevice(mSocketClient.getConnection()));
+                        listener.onPlayerJoined(SocketClient.this, mDevice);
                     }
                 }
 
@@ -268,7 +414,7 @@ public abstract class WebSocketHelper implements GameConnection {
 
                 @Override
                 public void onMessage(ByteBuffer message) {
-                    notifyMessage(SocketClient.this, message.array(), mSocketClient.getConnection());
+                    notifyMessage(SocketClient.this, message, mSocketClient.getConnection());
                 }
 
                 @Override
@@ -279,7 +425,7 @@ public abstract class WebSocketHelper implements GameConnection {
                     if (wasConnected) {
                         WebSocket socket = mSocketClient.getConnection();
                         if (listener != null) {
-                            listener.onPlayerLeft(SocketClient.this, new WifiGameDevice(socket));
+                            listener.onPlayerLeft(SocketClient.this, getGameDevice(socket));
                         }
                     }
                 }
@@ -298,20 +444,47 @@ public abstract class WebSocketHelper implements GameConnection {
                 }
             };
             mSocketClient.connect();
+            startWriter();
         }
 
+        // Writer Thread
         @Override
-        public void sendMessage(@NonNull PackMsg message) {
-            logMessage("Client sendMessage ", message);
+        public void write(@NonNull GameDevice device, @NonNull PackMsg.MsgType type, @NonNull PackMsg.SendPolicy sendPolicy, @NonNull byte[] data, int length) {
+            final OutboundQueue queue;
             synchronized (this) {
-                if (mConnected) {
-                    try {
-                        mSocketClient.send(message.getBuffer());
-                    } catch(WebsocketNotConnectedException e) {
-                        Log.w(TAG, "WebsocketNotConnectedException sendMessage " + message.getType().name());
-                    }
+                queue = mOutboundQueue;
+            }
+            if (mConnected && (queue != null)) {
+                try {
+                    queue.send(type, sendPolicy, data, length);
+                } catch(WebsocketNotConnectedException e) {
+                    Log.w(TAG, "WebsocketNotConnectedException sendMessage " + type.name());
+                }
+            }
+        }
+
+        @Override
+        protected synchronized void setQueuesBatching(boolean batching) {
+            if (mOutboundQueue != null) {
+                mOutboundQueue.setBatching(batching);
+            }
+        }
+
+        // Writer Thread
+        @Override
+        public boolean flushPending() {
+            final OutboundQueue queue;
+            synchronized (this) {
+                queue = mOutboundQueue;
+            }
+            if (mConnected && (queue != null)) {
+                try {
+                    return queue.flush();
+                } catch(WebsocketNotConnectedException e) {
+                    Log.w(TAG, "WebsocketNotConnectedException flushPending");
                 }
             }
+            return false;
         }
 
         @Override
@@ -323,6 +496,12 @@ public abstract class WebSocketHelper implements GameConnection {
             return mServerPort;
         }
 
+        @Override
+        protected @NonNull WifiGameDevice getGameDevice(@NonNull WebSocket connection) {
+            WifiGameDevice device = mDevice;
+            return ((device != null) && (device.getDevice() == connection)) ? device : new WifiGameDevice(connection);
+        }
+
         @Override
         public String getRemoteAddress(WebSocket connection) {
             return getServerAddress();
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network.loopback;
+
+import androidx.annotation.NonNull;
+
+import fr.arnaudguyon.spacevertex.network.GameDevice;
+
+/**
+ * One end of a {@link fr.arnaudguyon.spacevertex.network.LoopbackGameConnection} pair.
+ */
+public class LoopbackGameDevice extends GameDevice {
+
+    private final @NonNull String name;
+
+    public LoopbackGameDevice(@NonNull String name) {
+        this.name = name;
+    }
+
+    public @NonNull
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equalsTo(@NonNull GameDevice other) {
+        return (other == this);     // one instance per end
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + name;
+    }
+}
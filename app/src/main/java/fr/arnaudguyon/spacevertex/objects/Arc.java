@@ -56,6 +56,7 @@ public class Arc {
         float startAngle = (float) (mStartAngle - (angle * 180 / Math.PI));
 
         mRect.set(newX - radius, newY - radius, newX + radius, newY + radius);
+        parent.getLineBatcher().flushIfOverlaps(mRect.left, mRect.top, mRect.right, mRect.bottom);
         canvas.drawArc(mRect, startAngle, mSweepAngle, false, mPaint);
     }
 
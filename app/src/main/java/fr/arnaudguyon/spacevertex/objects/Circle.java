@@ -47,6 +47,7 @@ public class Circle {
         // y2 = y*cos(a) - x*sin(a) + translationY;
         float newY = (posY*cos - posX*sin) + translationY;
 
+        parent.getLineBatcher().flushIfOverlaps(newX - radius, newY - radius, newX + radius, newY + radius);
         canvas.drawCircle(newX, newY, radius, mPaint);
     }
 
@@ -17,17 +17,18 @@ public class Explosion extends SpaceObject {
     private static final long DISPLAY_DURATION = 700;
     private static final long TOTAL_DURATION = 2000;
 
-    private final float mScreenSize;
+    private float mScreenSize;
     private final float[] mLinesX = new float[NUMBER_OF_LINES];
     private final float[] mLinesY = new float[NUMBER_OF_LINES];
-    private final long mTime;
+    private long mTime;
     private final @NonNull SpaceObject mParent;
     private boolean mExplosionFinished = false;
 
+    /**
+     * The explosion can be added to the Scene again once finished, it restarts from scratch.
+     */
     public Explosion(@NonNull SpaceObject parent) {
         mParent = parent;
-        mScreenSize = parent.getOriginalSize() * parent.getScreenScale();
-        mTime = SystemClock.uptimeMillis();
     }
 
     public boolean isExplosionFinished() {
@@ -50,6 +51,9 @@ public class Explosion extends SpaceObject {
 
     @Override
     protected void buildStructure(Scene scene) {
+        mScreenSize = mParent.getOriginalSize() * mParent.getScreenScale();
+        mTime = SystemClock.uptimeMillis();
+        mExplosionFinished = false;
         float angle = (float) (Math.random() * 2 * Math.PI);
         for (int i = 0; i < NUMBER_OF_LINES; ++i) {
             float size = (float) ((mScreenSize / 4) + Math.random() * mScreenSize);
@@ -79,11 +83,15 @@ public class Explosion extends SpaceObject {
         float xScreen = mParent.getScreenWidth() / 2 + (mParent.getPosX() - spaceCenterX) * screenScale;
         float yScreen = mParent.getScreenHeight() / 2 + (mParent.getPosY() - spaceCenterY) * screenScale;
 
+        final Paint paint = getPaint();
+        final int color = paint.getColor();
+        final float strokeWidth = paint.getStrokeWidth();
+        final LineBatcher lineBatcher = getLineBatcher();
         float scale = elapsed / 50.f;
         for (int i = 0; i < NUMBER_OF_LINES; ++i) {
             float xStop = xScreen + mLinesX[i] * scale;
             float yStop = yScreen + mLinesY[i] * scale;
-            canvas.drawLine(xScreen, yScreen, xStop, yStop, getPaint());
+            lineBatcher.addLine(color, strokeWidth, xScreen, yScreen, xStop, yStop);
         }
     }
 
@@ -6,7 +6,6 @@
 package fr.arnaudguyon.spacevertex.objects;
 
 import android.graphics.Canvas;
-import android.os.SystemClock;
 
 public class FireBall extends SpaceObject {
 
@@ -15,9 +14,13 @@ public class FireBall extends SpaceObject {
     private float mShipSize = 1;
     private float mSpeedX = 1;
     private float mSpeedY = 0.5f;
-    private long mFireDate;
+    private float mAge;     // ms, the sum of the frame durations: frozen with the objects while the scene is paused
+    private final Circle mCircle = new Circle(0, 0, 0.3f, 0xFF00FFFF);
 
-    public FireBall(float shipSize) {
+    public FireBall() {
+    }
+
+    public void setShipSize(float shipSize) {
         mShipSize = shipSize;
     }
 
@@ -33,15 +36,14 @@ public class FireBall extends SpaceObject {
 
     @Override
     protected void buildStructure(Scene scene) {
-        Circle circle = new Circle(0, 0, 0.3f, 0xFF00FFFF);
-        addCircle(circle);
-        mFireDate = SystemClock.uptimeMillis();
+        addCircle(mCircle);
+        mAge = 0;
     }
 
     @Override
     public void preDraw(Scene scene, float frameDuration) {
-        final long now = SystemClock.uptimeMillis();
-        if (now - mFireDate > FIRE_DURATION) {
+        mAge += frameDuration;
+        if (mAge > FIRE_DURATION) {
             destroy();
         }
         setPos(getPosX() + (mSpeedX * frameDuration), getPosY() + (mSpeedY * frameDuration));
@@ -57,4 +59,9 @@ public class FireBall extends SpaceObject {
         mSpeedY = speedY;
     }
 
+    @Override
+    public void onRemovedFromScene(Scene scene) {
+        scene.releaseFireBall(this);
+    }
+
 }
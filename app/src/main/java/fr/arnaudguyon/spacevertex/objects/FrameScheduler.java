@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Vsync driven frame loop, based on the {@link Choreographer} of the thread that starts it.
+ * Follows the display refresh rate (60, 90, 120Hz...) and keeps track of the frame pacing.
+ * start / stop / pause / resume must be called from that same Looper thread.
+ */
+public class FrameScheduler implements Choreographer.FrameCallback, RenderLoop {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final float DEFAULT_REFRESH_RATE = 60;
+    private static final float JANK_FACTOR = 1.5f;     // a frame longer than 1.5 vsync is a jank
+    private static final long FRAME_RATE_WINDOW_NANOS = NANOS_PER_SECOND;
+
+    private final @NonNull FrameListener mListener;
+    private Choreographer mChoreographer;
+    private boolean mStarted = false;
+    private boolean mPaused = false;
+    private boolean mCallbackPosted = false;
+    private long mVsyncPeriodNanos = (long) (NANOS_PER_SECOND / DEFAULT_REFRESH_RATE);
+    private long mLastFrameTimeNanos;
+
+    private long mFrameCount;
+    private long mJankCount;
+    private long mMissedVsyncCount;
+    private long mFrameRateWindowStart;
+    private int mFrameRateWindowFrames;
+    private float mMeasuredFrameRate;
+
+    public FrameScheduler(@NonNull FrameListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            mVsyncPeriodNanos = (long) (NANOS_PER_SECOND / refreshRate);
+        }
+    }
+
+    public float getRefreshRate() {
+        return (float) NANOS_PER_SECOND / mVsyncPeriodNanos;
+    }
+
+    @Override
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        scheduleNextFrame();
+    }
+
+    @Override
+    public void stop() {
+        mStarted = false;
+        cancelNextFrame();
+    }
+
+    @Override
+    public void pause() {
+        mPaused = true;
+        cancelNextFrame();
+    }
+
+    @Override
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        scheduleNextFrame();
+    }
+
+    @Override
+    public @NonNull FrameScheduler getFrameScheduler() {
+        return this;
+    }
+
+    public boolean isRunning() {
+        return mStarted && !mPaused;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mCallbackPosted = false;
+        if (!isRunning()) {
+            return;
+        }
+
+        if (mLastFrameTimeNanos != 0) {
+            final long elapsed = frameTimeNanos - mLastFrameTimeNanos;
+            if (elapsed > mVsyncPeriodNanos * JANK_FACTOR) {
+                ++mJankCount;
+                // number of vsync we did not render, rounded to the nearest vsync
+                mMissedVsyncCount += ((elapsed + (mVsyncPeriodNanos / 2)) / mVsyncPeriodNanos) - 1;
+            }
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        ++mFrameCount;
+        updateMeasuredFrameRate(frameTimeNanos);
+
+        scheduleNextFrame();
+        mListener.onFrame(frameTimeNanos);
+    }
+
+    private void updateMeasuredFrameRate(long frameTimeNanos) {
+        if (mFrameRateWindowStart == 0) {
+            mFrameRateWindowStart = frameTimeNanos;
+            mFrameRateWindowFrames = 0;
+            return;
+        }
+        ++mFrameRateWindowFrames;
+        final long elapsed = frameTimeNanos - mFrameRateWindowStart;
+        if (elapsed >= FRAME_RATE_WINDOW_NANOS) {
+            mMeasuredFrameRate = (float) mFrameRateWindowFrames * NANOS_PER_SECOND / elapsed;
+            mFrameRateWindowStart = frameTimeNanos;
+            mFrameRateWindowFrames = 0;
+        }
+    }
+
+    private void scheduleNextFrame() {
+        if (!isRunning() || mCallbackPosted) {
+            return;
+        }
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mChoreographer.postFrameCallback(this);
+        mCallbackPosted = true;
+    }
+
+    private void cancelNextFrame() {
+        if ((mChoreographer != null) && mCallbackPosted) {
+            mChoreographer.removeFrameCallback(this);
+        }
+        mCallbackPosted = false;
+        mLastFrameTimeNanos = 0;    // don't count the pause as a jank
+        mFrameRateWindowStart = 0;
+        mMeasuredFrameRate = 0;
+    }
+
+    /**
+     * @return frames per second really rendered during the last second, 0 when not running
+     */
+    public float getMeasuredFrameRate() {
+        return mMeasuredFrameRate;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getJankCount() {
+        return mJankCount;
+    }
+
+    public long getMissedVsyncCount() {
+        return mMissedVsyncCount;
+    }
+
+    public void resetStats() {
+        mFrameCount = 0;
+        mJankCount = 0;
+        mMissedVsyncCount = 0;
+    }
+
+    public interface FrameListener {
+        void onFrame(long frameTimeNanos);
+    }
+}
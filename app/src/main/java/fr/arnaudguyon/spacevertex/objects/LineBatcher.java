@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Collects the lines of all the objects during a frame, grouped by color and stroke width,
+ * and draws each group with a single drawLines.
+ * A line never joins a group that would be drawn below a more recent group it overlaps, so the
+ * draw order is kept where colors overlap.
+ * Buffers are reused from frame to frame.
+ */
+public class LineBatcher {
+
+    private static final int MAX_BATCHES = 32;
+    private static final int INITIAL_BATCH_CAPACITY = 64 * 4;   // 64 lines
+
+    private static class Batch {
+        int mColor;
+        float mStrokeWidth;
+        float[] mPoints = new float[INITIAL_BATCH_CAPACITY];
+        int mSize;      // number of floats used in mPoints
+        float mLeft, mTop, mRight, mBottom;
+
+        void reset(int color, float strokeWidth) {
+            mColor = color;
+            mStrokeWidth = strokeWidth;
+            mSize = 0;
+            mLeft = Float.MAX_VALUE;
+            mTop = Float.MAX_VALUE;
+            mRight = -Float.MAX_VALUE;
+            mBottom = -Float.MAX_VALUE;
+        }
+
+        boolean matches(int color, float strokeWidth) {
+            return (mColor == color) && (mStrokeWidth == strokeWidth);
+        }
+
+        boolean intersects(float left, float top, float right, float bottom) {
+            return (left <= mRight) && (right >= mLeft) && (top <= mBottom) && (bottom >= mTop);
+        }
+
+        void add(float x1, float y1, float x2, float y2, float left, float top, float right, float bottom) {
+            if (mSize + 4 > mPoints.length) {
+                float[] points = new float[mPoints.length * 2];
+                System.arraycopy(mPoints, 0, points, 0, mSize);
+                mPoints = points;
+            }
+            mPoints[mSize] = x1;
+            mPoints[mSize + 1] = y1;
+            mPoints[mSize + 2] = x2;
+            mPoints[mSize + 3] = y2;
+            mSize += 4;
+            mLeft = Math.min(mLeft, left);
+            mTop = Math.min(mTop, top);
+            mRight = Math.max(mRight, right);
+            mBottom = Math.max(mBottom, bottom);
+        }
+    }
+
+    private final @NonNull Batch[] mBatches = new Batch[MAX_BATCHES];
+    private int mBatchCount;
+    private final @NonNull Paint mPaint = new Paint();
+    private Canvas mCanvas;
+    private int mDrawCallCount;
+
+    public LineBatcher() {
+        mPaint.setAntiAlias(true);
+        mPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    public void begin(@NonNull Canvas canvas) {
+        mCanvas = canvas;
+        mBatchCount = 0;
+        mDrawCallCount = 0;
+    }
+
+    public void addLine(int color, float strokeWidth, float x1, float y1, float x2, float y2) {
+        final float halfStroke = strokeWidth / 2;
+        final float left = Math.min(x1, x2) - halfStroke;
+        final float top = Math.min(y1, y2) - halfStroke;
+        final float right = Math.max(x1, x2) + halfStroke;
+        final float bottom = Math.max(y1, y2) + halfStroke;
+        Batch batch = findBatch(color, strokeWidth, left, top, right, bottom);
+        batch.add(x1, y1, x2, y2, left, top, right, bottom);
+    }
+
+    /**
+     * Adds the polyline going through the given points (x,y pairs) in the order of the indices.
+     */
+    public void addPolyline(int color, float strokeWidth, @NonNull float[] points, @NonNull int[] indices) {
+        for (int i = 0; i < indices.length - 1; ++i) {
+            int indiceStart = indices[i] * 2;
+            int indiceStop = indices[i + 1] * 2;
+            addLine(color, strokeWidth, points[indiceStart], points[indiceStart + 1], points[indiceStop], points[indiceStop + 1]);
+        }
+    }
+
+    /**
+     * To call before drawing something else than lines in the given area, so that it is drawn over the previous lines.
+     */
+    public void flushIfOverlaps(float left, float top, float right, float bottom) {
+        for (int i = 0; i < mBatchCount; ++i) {
+            if (mBatches[i].intersects(left, top, right, bottom)) {
+                flush();
+                return;
+            }
+        }
+    }
+
+    public void flush() {
+        final Canvas canvas = mCanvas;
+        if (canvas != null) {
+            for (int i = 0; i < mBatchCount; ++i) {
+                Batch batch = mBatches[i];
+                mPaint.setColor(batch.mColor);
+                mPaint.setStrokeWidth(batch.mStrokeWidth);
+                canvas.drawLines(batch.mPoints, 0, batch.mSize, mPaint);
+                ++mDrawCallCount;
+            }
+        }
+        mBatchCount = 0;
+    }
+
+    /**
+     * @return number of drawLines since the beginning of the frame
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    private @NonNull Batch findBatch(int color, float strokeWidth, float left, float top, float right, float bottom) {
+        // most recent batches first: stop when the line would be drawn below a more recent batch
+        for (int i = mBatchCount - 1; i >= 0; --i) {
+            Batch batch = mBatches[i];
+            if (batch.matches(color, strokeWidth)) {
+                return batch;
+            }
+            if (batch.intersects(left, top, right, bottom)) {
+                break;
+            }
+        }
+        if (mBatchCount == MAX_BATCHES) {
+            flush();
+        }
+        Batch batch = mBatches[mBatchCount];
+        if (batch == null) {
+            batch = new Batch();
+            mBatches[mBatchCount] = batch;
+        }
+        ++mBatchCount;
+        batch.reset(color, strokeWidth);
+        return batch;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.arnaudguyon.spacevertex.network.PackMsg;
+
+/**
+ * States (ShipInfo) received by the network thread, waiting for the render thread. Neither side ever waits for the other.
+ * The messages offered are views only valid during their callback (see PackMsg.Reader): they are copied in messages owned
+ * by the inbox, allocated once and reused.
+ * Only the newest state of each type is kept, in a triple buffer: a stalled frame doesn't replay a backlog of old states.
+ * Single producer, the thread of the transport which carries the states. The ordered messages go through {@link SceneCommandQueue}.
+ */
+public class MessageInbox {
+
+    private static final int NB_TYPES = PackMsg.MsgType.values().length;
+    private static final int FRESH = 4;             // in mStateMiddles: written and not read yet
+    private static final int INDEX_MASK = FRESH - 1;
+
+    // By MsgType ordinal. 3 copies per state type: the producer writes in its own, the consumer reads its own,
+    // the middle one is exchanged atomically by each side
+    private final @NonNull PackMsg[][] mStates = new PackMsg[NB_TYPES][];
+    private final @NonNull AtomicInteger[] mStateMiddles = new AtomicInteger[NB_TYPES];
+    private final @NonNull int[] mStateBacks = new int[NB_TYPES];      // producer only
+    private final @NonNull int[] mStateFronts = new int[NB_TYPES];     // consumer only
+    private int mNextStateType;             // consumer only
+    private final @NonNull AtomicLong mCollapsedCount = new AtomicLong();
+
+    public MessageInbox() {
+        for (int i = 0; i < NB_TYPES; ++i) {
+            mStateMiddles[i] = new AtomicInteger(1);
+            mStateBacks[i] = 0;
+            mStateFronts[i] = 2;
+        }
+    }
+
+    private static boolean isState(@NonNull PackMsg.MsgType type) {
+        switch (type) {
+            case SHIP_INFO:
+            case SHIP_INFO_PACKED:
+            case SHIP_INFO_DELTA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Network thread. Never blocks. packMsg is copied, it can be reused once this returns.
+     */
+    public void offer(@NonNull PackMsg packMsg) {
+        final PackMsg.MsgType type = packMsg.getType();
+        if (!isState(type)) {
+            throw new IllegalArgumentException("not a state: " + type);
+        }
+        final int ordinal = type.ordinal();
+        PackMsg[] states = mStates[ordinal];
+        if (states == null) {
+            states = new PackMsg[] { packMsg.copy(), packMsg.copy(), packMsg.copy() };
+            mStates[ordinal] = states;      // published by the getAndSet below
+        }
+        final int back = mStateBacks[ordinal];
+        states[back].copyFrom(packMsg);
+        final int previous = mStateMiddles[ordinal].getAndSet(back | FRESH);
+        mStateBacks[ordinal] = previous & INDEX_MASK;
+        if ((previous & FRESH) != 0) {
+            mCollapsedCount.incrementAndGet();  // the previous one was not read, it is stale now
+        }
+    }
+
+    /**
+     * Render thread. The newest state of each type received since the previous frame.
+     * A message returned is valid until the next frame.
+     * @return the next state, null when there is none left
+     */
+    public @Nullable PackMsg poll() {
+        while (mNextStateType < NB_TYPES) {
+            final int ordinal = mNextStateType++;
+            final AtomicInteger middle = mStateMiddles[ordinal];
+            if ((middle.get() & FRESH) != 0) {
+                final int front = middle.getAndSet(mStateFronts[ordinal]) & INDEX_MASK;
+                mStateFronts[ordinal] = front;
+                return mStates[ordinal][front];
+            }
+        }
+        mNextStateType = 0;     // for the next frame
+        return null;
+    }
+
+    /**
+     * @return states replaced by a newer one before the render thread read them
+     */
+    public long getCollapsedCount() {
+        return mCollapsedCount.get();
+    }
+}
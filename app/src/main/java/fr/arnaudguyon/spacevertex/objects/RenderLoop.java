@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A way to render the Scene every frame: in the View hierarchy, or on a dedicated Surface thread.
+ */
+public interface RenderLoop {
+
+    void start();
+
+    void stop();
+
+    void pause();
+
+    void resume();
+
+    void setRefreshRate(float refreshRate);
+
+    @NonNull FrameScheduler getFrameScheduler();
+}
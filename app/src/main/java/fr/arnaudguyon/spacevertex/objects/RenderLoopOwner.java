@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the single render loop of a Scene, and keeps it running as long as one client needs it.
+ * Acquiring twice with the same client has no effect, so callers don't have to check it.
+ */
+public class RenderLoopOwner {
+
+    private static final String TAG = "RenderLoopOwner";
+    private static final @NonNull AtomicInteger sActiveLoopCount = new AtomicInteger();
+
+    private final @NonNull RenderLoop mLoop;
+    private final @NonNull ArrayList<Object> mClients = new ArrayList<>();
+
+    public RenderLoopOwner(@NonNull RenderLoop loop) {
+        mLoop = loop;
+    }
+
+    public @NonNull RenderLoop getLoop() {
+        return mLoop;
+    }
+
+    /**
+     * @return true if the loop has been started by this call
+     */
+    public boolean acquire(@NonNull Object client) {
+        if (mClients.contains(client)) {
+            return false;
+        }
+        mClients.add(client);
+        if (mClients.size() == 1) {
+            mLoop.start();
+            int count = sActiveLoopCount.incrementAndGet();
+            Log.i(TAG, "Render loop started, " + count + " active");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the loop has been stopped by this call
+     */
+    public boolean release(@NonNull Object client) {
+        if (!mClients.remove(client)) {
+            return false;
+        }
+        if (mClients.isEmpty()) {
+            mLoop.stop();
+            int count = sActiveLoopCount.decrementAndGet();
+            Log.i(TAG, "Render loop stopped, " + count + " active");
+            return true;
+        }
+        return false;
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    public float getFrameRate() {
+        return mLoop.getFrameScheduler().getMeasuredFrameRate();
+    }
+
+    public static int getActiveLoopCount() {
+        return sActiveLoopCount.get();
+    }
+}
@@ -10,29 +10,39 @@ import android.graphics.Canvas;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Display;
+import android.view.SurfaceView;
+import android.view.View;
 
 import androidx.annotation.NonNull;
-import androidx.appcompat.widget.AppCompatImageView;
+import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 
 import fr.arnaudguyon.spacevertex.network.GameConnection;
 import fr.arnaudguyon.spacevertex.network.PackMsg;
+import fr.arnaudguyon.spacevertex.network.ShipStateDelta;
 
-public class Scene extends AppCompatImageView {
+/**
+ * Space of the game: simulates and draws its objects at each frame. Draws everything itself, so a plain View
+ * (that the JVM tests can build).
+ */
+public class Scene extends View {
 
     private static final String TAG = "Scene";
 
-    private static final long FRAME_DURATION_MS = 16;
     private static final int BACKGROUND_COLOR = 0xFF000015;
-    private static final float NEAR_MOUSE_DISTANCE = 400;
+    static final float NEAR_MOUSE_DISTANCE = 400;
     private static final float FAR_MOUSE_DISTANCE = 1000;
+    static final int FIREBALL_POOL_INITIAL_SIZE = 40;  // 2 ships * 2 canons * (FireBall duration / time between shots)
+    static final int FIREBALL_POOL_MAX_SIZE = 64;
 
     private ShipLocal mLocalShip;
     private ShipRemote mRemoteShip;
     private SceneListener mListener;
     private SceneReadyListener mSceneReadyListener;
-    private long mPreviousDraw;
+    private long mPreviousDraw;                     // render thread only
+    private volatile boolean mResetFrameClock;      // set by the UI thread, applied by the render thread at its next frame
     private final @NonNull ArrayList<SpaceObject> mObjects = new ArrayList<>();
     private final @NonNull ArrayList<SpaceObject> mKillingObjects = new ArrayList<>();
 
@@ -40,8 +50,17 @@ public class Scene extends AppCompatImageView {
     private int mChrono = 0;
     private int mFrameNumberToSend = 0;
     private GameConnection gameConnection;
-    private final ArrayList<PackMsg> mLastReceivedMessages = new ArrayList<>();
+    private @Nullable ShipStateDelta mShipStateDelta;
+    private int mFireBallsInFlight;     // render thread
+    private final @NonNull MessageInbox mReceivedMessages = new MessageInbox();
+    private final @NonNull SceneCommandQueue mCommands = new SceneCommandQueue();
+    private final @NonNull SceneCommandQueue.Executor mCommandExecutor = this::applyCommand;
     private long scoreUpdateDate = 0;
+    private final @NonNull FrameScheduler mViewScheduler = new FrameScheduler(frameTimeNanos -> invalidate());
+    private @NonNull RenderLoopOwner mRenderLoopOwner = new RenderLoopOwner(mViewScheduler);
+    private SceneSurfaceRenderer mSurfaceRenderer;
+    private final @NonNull LineBatcher mLineBatcher = new LineBatcher();
+    private final @NonNull SpaceObjectPool<FireBall> mFireBallPool = new SpaceObjectPool<>(FIREBALL_POOL_INITIAL_SIZE, FIREBALL_POOL_MAX_SIZE, FireBall::new);
 
     public Scene(Context context) {
         super(context);
@@ -60,6 +79,18 @@ public class Scene extends AppCompatImageView {
 
     public void setGameConnection(GameConnection gameConnection) {
         this.gameConnection = gameConnection;
+        mShipStateDelta = (gameConnection != null) ? new ShipStateDelta(gameConnection.getStats()) : null;
+    }
+
+    /**
+     * @return delta encoding of the ship states for the current connection, null if none
+     */
+    public @Nullable GameConnection getGameConnection() {
+        return gameConnection;
+    }
+
+    public @Nullable ShipStateDelta getShipStateDelta() {
+        return mShipStateDelta;
     }
 
     public void setLocalShip(ShipLocal ship) {
@@ -85,9 +116,57 @@ public class Scene extends AppCompatImageView {
         return mLocalShip;
     }
 
-    // TODO: check called once
-    public void startRendering() {
-        startThread();
+    /**
+     * Renders on a dedicated thread into the given SurfaceView instead of this View.
+     * Must be called before the first startRendering.
+     */
+    public void useSurfaceBackend(@NonNull SurfaceView surfaceView) {
+        if (mRenderLoopOwner.getClientCount() > 0) {
+            Log.e(TAG, "useSurfaceBackend called while rendering, ignored");
+            return;
+        }
+        mSurfaceRenderer = new SceneSurfaceRenderer(this, surfaceView);
+        mRenderLoopOwner = new RenderLoopOwner(mSurfaceRenderer);
+    }
+
+    /**
+     * Starts the render loop if needed. Can be called several times by the same client.
+     */
+    public void startRendering(@NonNull Object client) {
+        Display display = getDisplay();
+        if (display != null) {
+            mRenderLoopOwner.getLoop().setRefreshRate(display.getRefreshRate());
+        }
+        mRenderLoopOwner.acquire(client);
+    }
+
+    /**
+     * Stops the render loop when the last client is gone.
+     */
+    public void stopRendering(@NonNull Object client) {
+        mRenderLoopOwner.release(client);
+    }
+
+    public void pauseRendering() {
+        RenderLoop loop = mRenderLoopOwner.getLoop();
+        loop.pause();
+        mResetFrameClock = true;    // don't simulate the time spent in background
+        FrameScheduler scheduler = loop.getFrameScheduler();
+        Log.i(TAG, "Frame pacing: " + scheduler.getFrameCount() + " frames, "
+                + scheduler.getJankCount() + " janks, "
+                + scheduler.getMissedVsyncCount() + " missed vsyncs");
+    }
+
+    public void resumeRendering() {
+        mRenderLoopOwner.getLoop().resume();
+    }
+
+    public @NonNull FrameScheduler getFrameScheduler() {
+        return mRenderLoopOwner.getLoop().getFrameScheduler();
+    }
+
+    public @NonNull RenderLoopOwner getRenderLoopOwner() {
+        return mRenderLoopOwner;
     }
 
     public long getElapsedTime() {
@@ -116,7 +195,21 @@ public class Scene extends AppCompatImageView {
             return;
         }
 
+        if (mSurfaceRenderer == null) {
+            renderFrame(canvas);
+        }   // else rendered by the Surface thread
+    }
+
+    /**
+     * Simulates and draws one frame. Called by the UI thread or by the Surface render thread.
+     */
+    public void renderFrame(@NonNull Canvas canvas) {
+
         final long now = SystemClock.uptimeMillis();
+        if (mResetFrameClock) {
+            mResetFrameClock = false;
+            mPreviousDraw = 0;
+        }
         final long frameDuration = (mPreviousDraw == 0) ? 16 : now - mPreviousDraw;
         mPreviousDraw = now;
 
@@ -158,67 +251,73 @@ public class Scene extends AppCompatImageView {
             ++mFrameNumberToSend;
         }
 
-        // PreDraw Loop
-        for (int i = 0; i < mObjects.size(); ++i) {
-            SpaceObject object = mObjects.get(i);
-            object.preDraw(this, frameDuration);
-            if (object.isToBeDestroyed()) {
-                mObjects.remove(i);
-                synchronized (mKillingObjects) {
-                    mKillingObjects.remove(object);
+        mCommands.applyAll(mCommandExecutor);
+
+        synchronized (mObjects) {    // objects can be added by the UI thread while the game starts
+            // PreDraw Loop
+            int fireBalls = 0;
+            for (int i = 0; i < mObjects.size(); ++i) {
+                SpaceObject object = mObjects.get(i);
+                if (object instanceof FireBall) {
+                    ++fireBalls;
                 }
-                --i;
-            } else {
-                if (gameConnection != null) {       // get local information for network
-                    PackMsg packMsg = object.prepareNetworkMessage(this, mFrameNumberToSend);
-                    if (packMsg != null) {
-                        gameConnection.sendMessage(packMsg);
+                object.preDraw(this, frameDuration);
+                if (object.isToBeDestroyed()) {
+                    mObjects.remove(i);
+                    synchronized (mKillingObjects) {
+                        mKillingObjects.remove(object);
+                    }
+                    object.onRemovedFromScene(this);
+                    --i;
+                } else {
+                    if (gameConnection != null) {       // get local information for network
+                        PackMsg packMsg = object.prepareNetworkMessage(this, mFrameNumberToSend);
+                        if (packMsg != null) {
+                            gameConnection.sendMessage(packMsg);
+                        }
                     }
                 }
             }
-        }
 
-        synchronized (mLastReceivedMessages) {
-            for(PackMsg messageReceived : mLastReceivedMessages) {
+            mFireBallsInFlight = fireBalls;
+            if (gameConnection != null) {
+                gameConnection.flushBatch();    // messages of this tick leave together
+            }
+
+            PackMsg messageReceived;
+            while ((messageReceived = mReceivedMessages.poll()) != null) {
                 for (int i = 0; i < mObjects.size(); ++i) {
                     SpaceObject object = mObjects.get(i);
                     object.onNetworkMessageReceived(this, messageReceived);
                 }
             }
-            mLastReceivedMessages.clear();
-        }
 
 
-        // Draw Loop
-        float xShip = 0;
-        float yShip = 0;
-        if (mLocalShip != null) {
-            xShip = mLocalShip.getPosX();
-            yShip = mLocalShip.getPosY();
-        }
-        for (int i = 0; i < mObjects.size(); ++i) {
-            SpaceObject object = mObjects.get(i);
-            object.draw(canvas, xShip, yShip);
+            // Draw Loop
+            float xShip = 0;
+            float yShip = 0;
+            if (mLocalShip != null) {
+                xShip = mLocalShip.getPosX();
+                yShip = mLocalShip.getPosY();
+            }
+            mLineBatcher.begin(canvas);
+            for (int i = 0; i < mObjects.size(); ++i) {
+                SpaceObject object = mObjects.get(i);
+                object.draw(canvas, xShip, yShip);
+            }
+            mLineBatcher.flush();
         }
     }
 
-    private void startThread() {
-        Thread thread = new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(FRAME_DURATION_MS);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Scene Thread error " + e.getMessage());
-                }
-                postInvalidate();
-            }
-        });
-        thread.start();
+    public @NonNull LineBatcher getLineBatcher() {
+        return mLineBatcher;
     }
 
     public void addObject(SpaceObject object) {
         object.prepare(this, getWidth(), getHeight());
-        mObjects.add(object);
+        synchronized (mObjects) {
+            mObjects.add(object);
+        }
         if (object.canKill()) {
             synchronized (mKillingObjects) {
                 mKillingObjects.add(object);
@@ -227,19 +326,48 @@ public class Scene extends AppCompatImageView {
     }
 
     public void removeAllObjects() {
-        mObjects.clear();
+        synchronized (mObjects) {
+            mObjects.clear();
+        }
     }
 
     private void removeObject(SpaceObject object) {
-        mObjects.remove(object);
+        synchronized (mObjects) {
+            mObjects.remove(object);
+        }
     }
 
-    public ArrayList<SpaceObject> getKillersCopy() {
-        final ArrayList<SpaceObject> copy;
+    /**
+     * Copies the objects that can kill the local ship into the given list, to avoid allocating a copy each frame.
+     */
+    public void copyKillers(@NonNull ArrayList<SpaceObject> killers) {
+        killers.clear();
         synchronized (mKillingObjects) {
-            copy = new ArrayList<>(mKillingObjects);
+            for (int i = 0; i < mKillingObjects.size(); ++i) {     // addAll would allocate an array
+                killers.add(mKillingObjects.get(i));
+            }
         }
-        return copy;
+    }
+
+    public @NonNull FireBall obtainFireBall(float shipSize) {
+        FireBall fireBall = mFireBallPool.obtain();
+        fireBall.setShipSize(shipSize);
+        return fireBall;
+    }
+
+    void releaseFireBall(@NonNull FireBall fireBall) {
+        mFireBallPool.release(fireBall);
+    }
+
+    /**
+     * @return fireballs in the scene at the last frame
+     */
+    public int getFireBallsInFlight() {
+        return mFireBallsInFlight;
+    }
+
+    public @NonNull SpaceObjectPool<FireBall> getFireBallPool() {
+        return mFireBallPool;
     }
 
     public void setSceneReadyListener(SceneReadyListener listener) {
@@ -263,6 +391,14 @@ public class Scene extends AppCompatImageView {
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mSurfaceRenderer != null) {
+            mSurfaceRenderer.release();
+        }
+        super.onDetachedFromWindow();
+    }
+
     public void invertRoles() {
 
         synchronized (mKillingObjects) {
@@ -282,12 +418,61 @@ public class Scene extends AppCompatImageView {
         }
     }
 
-    public void onMessageReceived(PackMsg packMsg) {
-        synchronized (mLastReceivedMessages) {
-            mLastReceivedMessages.add(packMsg);
+    /**
+     * Changes the scene at the start of the next frame, on the render thread. Any thread, never blocks.
+     */
+    public void postCommand(@NonNull SceneCommandQueue.Type type, @Nullable PackMsg payload) {
+        if (!mCommands.post(type, payload)) {
+            Log.w(TAG, "Command queue full, " + type + " lost");
         }
     }
 
+    // Render thread
+    private void applyCommand(@NonNull SceneCommandQueue.Type type, @Nullable PackMsg payload) {
+        switch (type) {
+            case REMOTE_FIRE:
+                if ((mRemoteShip != null) && (payload instanceof PackMsg.ShipFire)) {
+                    mRemoteShip.fire(this, (PackMsg.ShipFire) payload, mLocalShip);
+                }
+                break;
+            case REMOTE_DESTROYED:
+                if (mRemoteShip != null) {
+                    mRemoteShip.setDestroyed(this);
+                }
+                break;
+            case RESTART:
+                if (mListener != null) {
+                    mListener.onGameRestarted();
+                }
+                if ((mLocalShip != null) && (mRemoteShip != null)) {
+                    invertRoles();
+                }
+                break;
+            case GAME_CHRONO:
+                if ((mListener != null) && (payload instanceof PackMsg.GameChrono)) {
+                    mListener.onRemoteChrono(((PackMsg.GameChrono) payload).value);
+                }
+                break;
+            case SHIP_SCORE:
+                if (mListener != null) {
+                    mListener.onRemoteScore();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Called by the network thread with a state (ShipInfo), only the newest one is handled at the next frame. Never blocks.
+     * The other messages are posted with {@link #postCommand}.
+     */
+    public void onMessageReceived(@NonNull PackMsg packMsg) {
+        mReceivedMessages.offer(packMsg);
+    }
+
+    public @NonNull MessageInbox getReceivedMessages() {
+        return mReceivedMessages;
+    }
+
     public void sendMessage(PackMsg message) {
         if (gameConnection != null) {
             gameConnection.sendMessage(message);
@@ -318,6 +503,21 @@ public class Scene extends AppCompatImageView {
 
         void onRolesHaveChanged();
 
+        /**
+         * Render thread, at the start of a new game, just before the roles are inverted
+         */
+        void onGameRestarted();
+
+        /**
+         * Render thread, chrono received from the server
+         */
+        void onRemoteChrono(int chrono);
+
+        /**
+         * Render thread, the server counted a point for the mouse
+         */
+        void onRemoteScore();
+
         void sendMessage(PackMsg message);
 
         boolean isGameOver();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fr.arnaudguyon.spacevertex.network.PackMsg;
+
+/**
+ * Changes of the {@link Scene} asked by other threads (network, UI), applied by the render thread at the start of a frame:
+ * the objects are only modified by the thread which simulates and draws them.
+ * Bounded lock-free queue, several producers and one consumer, with preallocated slots like the network MessageRing.
+ * A payload is copied in a message owned by its slot: the received ones are views only valid during their callback.
+ */
+public class SceneCommandQueue {
+
+    private static final int CAPACITY = 32;     // power of 2
+
+    public enum Type {
+        REMOTE_FIRE,        // payload: the PackMsg.ShipFire received
+        REMOTE_DESTROYED,   // the local ship killed the remote one
+        RESTART,            // new game, the roles are inverted
+        GAME_CHRONO,        // payload: the PackMsg.GameChrono received from the server
+        SHIP_SCORE          // the mouse scored, told by the server
+    }
+
+    interface Executor {
+        void execute(@NonNull Type type, @Nullable PackMsg payload);
+    }
+
+    private static class Command {
+        Type mType;
+        PackMsg mPayload;       // null, or mCopy
+        PackMsg mCopy;          // reused by the next commands of the same payload type
+    }
+
+    private final @NonNull Command[] mCommands = new Command[CAPACITY];
+    private final @NonNull AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);   // slot free for the producers at position, ready at position + 1
+    private final @NonNull AtomicLong mTail = new AtomicLong();     // next position to fill, shared by the producers
+    private long mHead;                                             // next position to apply, render thread only
+
+    public SceneCommandQueue() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            mCommands[i] = new Command();
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Any thread. Never blocks. payload is copied, it can be reused once this returns.
+     * @return false if the queue is full, the command is then lost
+     */
+    public boolean post(@NonNull Type type, @Nullable PackMsg payload) {
+        long position = mTail.get();
+        int index;
+        for (;;) {
+            index = (int) (position & (CAPACITY - 1));
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;   // not applied yet: full
+            } else {
+                position = mTail.get();     // another producer took it
+            }
+        }
+        final Command command = mCommands[index];
+        command.mType = type;
+        if (payload == null) {
+            command.mPayload = null;
+        } else {
+            if ((command.mCopy != null) && (command.mCopy.getType() == payload.getType())) {
+                command.mCopy.copyFrom(payload);
+            } else {
+                command.mCopy = payload.copy();
+            }
+            command.mPayload = command.mCopy;
+        }
+        mSequences.set(index, position + 1);    // publishes the command
+        return true;
+    }
+
+    /**
+     * Render thread. Applies the commands posted so far, in order.
+     */
+    void applyAll(@NonNull Executor executor) {
+        for (;;) {
+            final int index = (int) (mHead & (CAPACITY - 1));
+            if (mSequences.get(index) != mHead + 1) {
+                return;     // empty, or a producer is still filling it
+            }
+            final Command command = mCommands[index];
+            executor.execute(command.mType, command.mPayload);
+            mSequences.set(index, mHead + CAPACITY);    // releases the slot, and its payload
+            ++mHead;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Renders the Scene on its own thread into a SurfaceView, so that the simulation and the drawing
+ * don't compete with the touch events and the HUD on the UI thread.
+ * The render thread has its own Choreographer, so frames are still driven by the vsync.
+ */
+public class SceneSurfaceRenderer implements RenderLoop, SurfaceHolder.Callback, FrameScheduler.FrameListener {
+
+    private static final String TAG = "SceneSurfaceRenderer";
+
+    private final @NonNull Scene mScene;
+    private final @NonNull SurfaceHolder mHolder;
+    private final @NonNull HandlerThread mThread;
+    private final @NonNull Handler mHandler;
+    private final @NonNull FrameScheduler mScheduler = new FrameScheduler(this);
+    private final @NonNull Object mSurfaceLock = new Object();
+    private boolean mSurfaceReady = false;     // guarded by mSurfaceLock
+
+    public SceneSurfaceRenderer(@NonNull Scene scene, @NonNull SurfaceView surfaceView) {
+        mScene = scene;
+        mHolder = surfaceView.getHolder();
+        mHolder.addCallback(this);
+        mThread = new HandlerThread("SceneRenderer", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @Override
+    public void start() {
+        mHandler.post(mScheduler::start);
+    }
+
+    @Override
+    public void stop() {
+        mHandler.post(mScheduler::stop);
+    }
+
+    @Override
+    public void pause() {
+        mHandler.post(mScheduler::pause);
+    }
+
+    @Override
+    public void resume() {
+        mHandler.post(mScheduler::resume);
+    }
+
+    @Override
+    public void setRefreshRate(float refreshRate) {
+        mHandler.post(() -> mScheduler.setRefreshRate(refreshRate));
+    }
+
+    @Override
+    public @NonNull FrameScheduler getFrameScheduler() {
+        return mScheduler;
+    }
+
+    public void release() {
+        mHolder.removeCallback(this);
+        synchronized (mSurfaceLock) {
+            mSurfaceReady = false;
+        }
+        mHandler.post(mScheduler::stop);
+        mThread.quitSafely();
+    }
+
+    // Render Thread
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        synchronized (mSurfaceLock) {
+            if (!mSurfaceReady) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Surface surface = mHolder.getSurface();
+                Canvas canvas = surface.lockHardwareCanvas();
+                try {
+                    mScene.renderFrame(canvas);
+                } finally {
+                    surface.unlockCanvasAndPost(canvas);
+                }
+            } else {
+                Canvas canvas = mHolder.lockCanvas();
+                if (canvas == null) {
+                    return;
+                }
+                try {
+                    mScene.renderFrame(canvas);
+                } finally {
+                    mHolder.unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void surfaceCreated(@NonNull SurfaceHolder holder) {
+        Log.i(TAG, "surfaceCreated");
+        synchronized (mSurfaceLock) {
+            mSurfaceReady = true;
+        }
+    }
+
+    @Override
+    public void surfaceChanged(@NonNull SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+        Log.i(TAG, "surfaceDestroyed");
+        synchronized (mSurfaceLock) {   // waits for the frame in progress, the Surface can't be used after return
+            mSurfaceReady = false;
+        }
+    }
+}
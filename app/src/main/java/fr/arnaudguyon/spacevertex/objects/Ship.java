@@ -9,6 +9,8 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 
+import androidx.annotation.NonNull;
+
 import fr.arnaudguyon.spacevertex.sound.Sounds;
 
 public abstract class Ship extends SpaceObject {
@@ -25,6 +27,9 @@ public abstract class Ship extends SpaceObject {
     protected boolean mShoot = false;
     protected ShipType mShipType = ShipType.SOLO;
     protected ReactorPower mReactorPower = ReactorPower.OFF;
+    private Explosion mReusableExplosion;
+    protected final float[] mFirePos = new float[2];      // scratch buffers, avoid allocations while shooting
+    protected final float[] mFireSpeed = new float[2];
 
     protected Sounds mSounds;
 
@@ -91,12 +96,13 @@ public abstract class Ship extends SpaceObject {
         OFF(0),
         ON(1),
         BOOST(2);
+        private static final ReactorPower[] VALUES = values();     // values() clones the array at each call
         public final int mValue;
         ReactorPower(int value) {
             mValue = value;
         }
         static ReactorPower find(int value) {
-            for(ReactorPower power : ReactorPower.values()) {
+            for(ReactorPower power : VALUES) {
                 if (power.mValue == value) {
                     return power;
                 }
@@ -338,6 +344,7 @@ public abstract class Ship extends SpaceObject {
             Paint paint = getPaint();
             paint.setStyle(Paint.Style.STROKE);
             paint.setColor(mShipType.getShipColor());
+            getLineBatcher().flushIfOverlaps(screenPosX - size, screenPosY - size, screenPosX + size, screenPosY + size);
             canvas.drawCircle(screenPosX, screenPosY, size, paint);
         }
         return drawRadar;
@@ -345,19 +352,17 @@ public abstract class Ship extends SpaceObject {
 
     protected void handleShoot(Scene scene, boolean canKill) {
         if (mShoot) {
-            FireBall ball = new FireBall(getOriginalSize());
-            //ball.prepare((int) getScreenWidth(), (int) getScreenHeight());
-            float[] firePos = new float[2];
+            final float[] firePos = mFirePos;
+            final float[] fireSpeed = mFireSpeed;
+            FireBall ball = scene.obtainFireBall(getOriginalSize());
             getFirePos(18, firePos);
             ball.setPos(firePos[0], firePos[1]);
-            float[] fireSpeed = new float[2];
             getFireSpeed(fireSpeed);
             ball.setSpeed(fireSpeed[0], fireSpeed[1]);
             ball.setCanKill(canKill);
             scene.addObject(ball);
 
-            FireBall ball2 = new FireBall(getOriginalSize());
-            //ball2.prepare((int) getScreenWidth(), (int) getScreenHeight());
+            FireBall ball2 = scene.obtainFireBall(getOriginalSize());
             getFirePos(22, firePos);
             ball2.setPos(firePos[0], firePos[1]);
             ball2.setSpeed(fireSpeed[0], fireSpeed[1]);
@@ -365,4 +370,14 @@ public abstract class Ship extends SpaceObject {
             scene.addObject(ball2);
         }
     }
+
+    /**
+     * A ship explodes once at a time, so its explosion is allocated once and restarted each time it is added to the Scene.
+     */
+    protected @NonNull Explosion getExplosion() {
+        if (mReusableExplosion == null) {
+            mReusableExplosion = new Explosion(this);
+        }
+        return mReusableExplosion;
+    }
 }
@@ -7,6 +7,7 @@ package fr.arnaudguyon.spacevertex.objects;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.view.View;
 
@@ -18,7 +19,9 @@ import fr.arnaudguyon.spacevertex.hud.BoostButton;
 import fr.arnaudguyon.spacevertex.hud.DirectionController;
 import fr.arnaudguyon.spacevertex.hud.FireButton;
 import fr.arnaudguyon.spacevertex.network.GameDevice;
+import fr.arnaudguyon.spacevertex.network.NetworkCapabilities;
 import fr.arnaudguyon.spacevertex.network.PackMsg;
+import fr.arnaudguyon.spacevertex.network.ShipStateDelta;
 
 public class ShipLocal extends Ship {
 
@@ -28,6 +31,9 @@ public class ShipLocal extends Ship {
     private float mWantedRotation;
     private long mThrustDate;
     private Explosion mExplosion;
+    private PackMsg.ShipInfo mShipInfo;     // reused every time the state is sent
+    private final @NonNull ShipStateScheduler mStateScheduler = new ShipStateScheduler();
+    private final @NonNull ArrayList<SpaceObject> mKillers = new ArrayList<>();
     private long  mLastShoot;
     private FireButton mFireButton;
     private BoostButton mBoostButton;
@@ -79,17 +85,24 @@ public class ShipLocal extends Ship {
     @Override
     public void setShipType(ShipType type) {
         super.setShipType(type);
-        if (type.canFire()) {
-            mFireButton.setVisibility(View.VISIBLE);
-            mBoostButton.setVisibility(View.GONE);
-        } else {
-            mFireButton.setVisibility(View.GONE);
-            mBoostButton.setVisibility(View.VISIBLE);
+        Runnable updateButtons = () -> {
+            if (type.canFire()) {
+                mFireButton.setVisibility(View.VISIBLE);
+                mBoostButton.setVisibility(View.GONE);
+            } else {
+                mFireButton.setVisibility(View.GONE);
+                mBoostButton.setVisibility(View.VISIBLE);
+            }
+            final int color = type.getShipColor();
+            mBoostButton.reinit(color);
+            mFireButton.reinit(color);
+            mDirectionController.reinit(color);
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            updateButtons.run();
+        } else {    // roles can be inverted by the Surface render thread
+            mFireButton.post(updateButtons);
         }
-        final int color = type.getShipColor();
-        mBoostButton.reinit(color);
-        mFireButton.reinit(color);
-        mDirectionController.reinit(color);
     }
 
     public void setThrust(Scene scene, boolean on) {
@@ -187,14 +200,37 @@ public class ShipLocal extends Ship {
     @Override
     public PackMsg prepareNetworkMessage(Scene scene, int frameNumber) {
         if (otherPlayer != null) {
-            PackMsg.ShipInfo shipInfo = new PackMsg.ShipInfo(scene, this, frameNumber, otherPlayer);
-            int reactor = shipInfo.reactor;
+            final int reactor = getReactorForNetwork(scene);
             setReactorPower(ReactorPower.find(reactor), this, scene.getRemoteShip());
+            final long now = SystemClock.uptimeMillis();
+            if (!mStateScheduler.shouldSend(scene, this, reactor, now)) {
+                return null;    // the remote side can still guess where we are
+            }
+            final int capabilities = (gameConnection != null) ? gameConnection.getCapabilities() : NetworkCapabilities.NONE;
+            final boolean packed = NetworkCapabilities.has(capabilities, NetworkCapabilities.PACKED_SHIP_INFO);
+            final ShipStateDelta delta = NetworkCapabilities.has(capabilities, NetworkCapabilities.DELTA_SHIP_INFO) ? scene.getShipStateDelta() : null;
+            final long sendTime = System.nanoTime() / 1_000_000;   // clock of ClockSync, see ShipRemote
+            PackMsg.ShipInfo shipInfo = mShipInfo;
+            if ((shipInfo == null) || (shipInfo.getDevice() != otherPlayer) || (shipInfo.isPacked() != packed) || (shipInfo.isDelta() != (delta != null))) {
+                shipInfo = (delta != null) ? new PackMsg.ShipInfo(scene, this, sendTime, delta, otherPlayer)
+                        : new PackMsg.ShipInfo(scene, this, sendTime, packed, otherPlayer);
+                mShipInfo = shipInfo;
+            } else {
+                shipInfo.update(scene, this, sendTime);   // sendMessage copies the bytes, the previous state is gone
+            }
+            mStateScheduler.onSent(this, reactor, now, shipInfo.getLength());
             return shipInfo;
         }
         return null;
     }
 
+    /**
+     * @return when the ship state is sent, to tune the thresholds or read the message rate
+     */
+    public @NonNull ShipStateScheduler getStateScheduler() {
+        return mStateScheduler;
+    }
+
     public int getReactorForNetwork(Scene scene) {
         int thrust = (mThrustDate != 0) ? ReactorPower.ON.mValue : ReactorPower.OFF.mValue;
         int reactor = boostInProgress() ? ReactorPower.BOOST.mValue : thrust;
@@ -216,12 +252,14 @@ public class ShipLocal extends Ship {
         if (scene.isGameOver()) {
             return;
         }
-        ArrayList<SpaceObject> killers = scene.getKillersCopy();
+        final ArrayList<SpaceObject> killers = mKillers;
+        scene.copyKillers(killers);
         if (!killers.isEmpty()) {
             float shipX = getPosX();
             float shipY = getPosY();
             float shipRadius = getOriginalSize();
-            for(SpaceObject killer : killers) {
+            for (int i = 0; i < killers.size(); ++i) {
+                SpaceObject killer = killers.get(i);
                 float diffX = killer.getPosX() - shipX;
                 float diffY = killer.getPosY() - shipY;
                 float radius2 = (shipRadius + killer.getOriginalSize());
@@ -231,13 +269,14 @@ public class ShipLocal extends Ship {
                     mSounds.stopEngine();
                     mSounds.playExplosion();
                     scene.setNeutralShipType();
-                    mExplosion = new Explosion(this);
+                    mExplosion = getExplosion();
                     scene.addObject(mExplosion);
                     sendKilledMessage(scene);
                     setVisible(false);
                     break;
                 }
             }
+            killers.clear();    // don't keep references to the recycled fireballs
         }
     }
 
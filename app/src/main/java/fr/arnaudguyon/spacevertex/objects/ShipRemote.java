@@ -8,11 +8,21 @@ package fr.arnaudguyon.spacevertex.objects;
 import android.content.Context;
 import android.graphics.Canvas;
 
+import androidx.annotation.NonNull;
+
+import fr.arnaudguyon.spacevertex.network.ClockSync;
+import fr.arnaudguyon.spacevertex.network.GameConnection;
 import fr.arnaudguyon.spacevertex.network.PackMsg;
+import fr.arnaudguyon.spacevertex.network.ShipStateDelta;
 
 public class ShipRemote extends Ship {
 
+    private static final float TELEPORT_DISTANCE = 200;    // space units from the previous state moved with its speed: respawn, don't interpolate
+
     private Explosion mExplosion;
+    private final SnapshotBuffer mSnapshots = new SnapshotBuffer();
+    private int mTickOffset;            // ms, clock of the other player minus ours, only the 16 low bits matter
+    private boolean mHasTickOffset;
 
     public ShipRemote(Context context) {
         super(context);
@@ -20,10 +30,18 @@ public class ShipRemote extends Ship {
 
     @Override
     public void preDraw(Scene scene, float frameDuration) {
-        // normal move with last registered speed
-        handleSpeed(frameDuration);
-        if (mReactorPower == ReactorPower.OFF) {
-            handleBreak(scene, frameDuration);
+        if (mSnapshots.sample(getNetworkTime())) {
+            setPos(mSnapshots.getX(), mSnapshots.getY());
+            setRotation(mSnapshots.getRotation());
+            mSpeedX = mSnapshots.getSpeedX();
+            mSpeedY = mSnapshots.getSpeedY();
+            setReactorPower(ReactorPower.find(mSnapshots.getReactor()), scene.getLocalShip(), this);
+        } else {
+            // nothing received yet: normal move with last registered speed
+            handleSpeed(frameDuration);
+            if (mReactorPower == ReactorPower.OFF) {
+                handleBreak(scene, frameDuration);
+            }
         }
         if (scene.isGameOver()) {
             setReactorPower(Ship.ReactorPower.ON, scene.getLocalShip(), this);
@@ -43,27 +61,62 @@ public class ShipRemote extends Ship {
     public void onNetworkMessageReceived(Scene scene, PackMsg packMsg) {
         if (packMsg instanceof PackMsg.ShipInfo) {
             PackMsg.ShipInfo shipInfo = (PackMsg.ShipInfo) packMsg;
-            float posx = shipInfo.x;
-            float posy = shipInfo.y;
-            // Smooth position
-            if (!scene.isGameOver()) {
-                posx = (getPosX() * 0.95f) + (posx * 0.05f);
-                posy = (getPosY() * 0.95f) + (posy * 0.05f);
+            if (shipInfo.isDelta()) {
+                ShipStateDelta delta = scene.getShipStateDelta();
+                if ((delta == null) || !delta.decode(shipInfo)) {
+                    return;     // old, or its baseline is missing: wait for the next one
+                }
+            }
+            // displayed by preDraw, a little in the past. Compared with the previous state, not with the delayed position displayed
+            final long sendTime = getSendTime(scene, shipInfo, getNetworkTime());
+            if (mSnapshots.getDistanceFromNewest(sendTime, shipInfo.x, shipInfo.y) > TELEPORT_DISTANCE) {
+                mSnapshots.clear();
             }
-            setPos(posx, posy);
-            mSpeedX = shipInfo.speedX;
-            mSpeedY = shipInfo.speedY;
-            float rot = shipInfo.rotation;
-            setRotation(rot);
-            int reactor = shipInfo.reactor;
-            setReactorPower(ReactorPower.find(reactor), scene.getLocalShip(), this);
+            mSnapshots.add(sendTime, shipInfo.x, shipInfo.y, shipInfo.speedX, shipInfo.speedY, shipInfo.rotation, shipInfo.reactor);
+        }
+    }
+
+    // ms, the clock of ClockSync and of the send times
+    private static long getNetworkTime() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * @return when shipInfo was sent, on our clock: the network jitter doesn't change the interval between 2 states.
+     * Converted with the offset of ClockSync once known, else with the fastest state received so far taken as sent instantly.
+     */
+    private long getSendTime(Scene scene, PackMsg.ShipInfo shipInfo, long now) {
+        if (!shipInfo.hasTick()) {
+            return now;     // other player of an old version: time of reception
         }
+        final int tick = shipInfo.getTick();
+        final GameConnection connection = scene.getGameConnection();
+        final ClockSync clockSync = (connection != null) ? connection.getClockSync() : null;
+        if ((clockSync != null) && clockSync.isSynchronized()) {
+            mTickOffset = (int) (clockSync.getOffsetNanos() / 1_000_000);
+        } else if (!mHasTickOffset || ((short) (now + mTickOffset - tick) < 0)) {
+            mTickOffset = (int) (tick - now);
+        }
+        mHasTickOffset = true;
+        final int age = (short) (now + mTickOffset - tick);  // ms since sent, the tick wraps every 65s
+        return now - age;
+    }
+
+    /**
+     * Forgets the states received, when the ship is placed by the game.
+     */
+    public void resetSnapshots() {
+        mSnapshots.clear();
+    }
+
+    public @NonNull SnapshotBuffer getSnapshots() {
+        return mSnapshots;
     }
 
     public void setDestroyed(Scene scene) {
         mSounds.playRemoteExplosion(scene.getLocalShip(), this);
         scene.setNeutralShipType();
-        mExplosion = new Explosion(this);
+        mExplosion = getExplosion();
         scene.addObject(mExplosion);
         setVisible(false);
     }
@@ -87,17 +140,17 @@ public class ShipRemote extends Ship {
 
         mSounds.playRemoteShoot(shipLocal, this);
 
-        FireBall ball = new FireBall(getOriginalSize());
-        float[] firePos = new float[2];
+        final float[] firePos = mFirePos;
+        final float[] fireSpeed = mFireSpeed;
+        FireBall ball = scene.obtainFireBall(getOriginalSize());
         getFirePos(18, posX, posY, rotation, firePos);
         ball.setPos(firePos[0], firePos[1]);
-        float[] fireSpeed = new float[2];
         getFireSpeed(rotation, fireSpeed);
         ball.setSpeed(fireSpeed[0], fireSpeed[1]);
         ball.setCanKill(canKill);
         scene.addObject(ball);
 
-        FireBall ball2 = new FireBall(getOriginalSize());
+        FireBall ball2 = scene.obtainFireBall(getOriginalSize());
         getFirePos(22, posX, posY, rotation, firePos);
         ball2.setPos(firePos[0], firePos[1]);
         ball2.setSpeed(fireSpeed[0], fireSpeed[1]);
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides when the local ship sends its state: only when the remote side cannot guess it anymore.
+ * The remote ship moves with the last speed received (dead reckoning), so a state is sent when the real position
+ * goes too far from that extrapolation, when the rotation changes or when the reactor changes.
+ * Otherwise a heartbeat is sent at a low rate.
+ * The {@link UpdateRatePolicy} limits the rate and scales the thresholds to the situation.
+ * Used by the render thread.
+ */
+public class ShipStateScheduler {
+
+    private static final float DEFAULT_POSITION_THRESHOLD = 0.5f;     // space units
+    private static final float DEFAULT_ROTATION_THRESHOLD = 0.02f;    // radians
+    static final long DEFAULT_HEARTBEAT_INTERVAL = 200;       // ms, below the delta baseline limit (ShipStateDelta)
+    private static final long RATE_WINDOW = 1000;                     // ms
+
+    private float mPositionThreshold = DEFAULT_POSITION_THRESHOLD;
+    private float mRotationThreshold = DEFAULT_ROTATION_THRESHOLD;
+    private long mHeartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private final @NonNull UpdateRatePolicy mRatePolicy = new UpdateRatePolicy();
+
+    // Last state sent, as extrapolated by the remote side
+    private boolean mHasSent;
+    private long mSentDate;
+    private float mSentX, mSentY;
+    private float mSentSpeedX, mSentSpeedY;
+    private float mSentRotation;
+    private int mSentReactor;
+
+    private long mRateWindowStart;
+    private int mRateWindowCount;
+    private float mMessagesPerSecond;
+
+    public void setPositionThreshold(float spaceUnits) {
+        mPositionThreshold = spaceUnits;
+    }
+
+    public void setRotationThreshold(float radians) {
+        mRotationThreshold = radians;
+    }
+
+    public void setHeartbeatInterval(long ms) {
+        mHeartbeatInterval = ms;
+    }
+
+    public @NonNull UpdateRatePolicy getRatePolicy() {
+        return mRatePolicy;
+    }
+
+    /**
+     * @return true if the state of ship must be sent now. Call {@link #onSent(Ship, int, long, int)} if it is.
+     */
+    public boolean shouldSend(@NonNull Scene scene, @NonNull Ship ship, int reactor, long now) {
+        mRatePolicy.update(scene, ship, now);
+        final long sinceSent = now - mSentDate;
+        if (!mHasSent || (sinceSent >= mHeartbeatInterval)) {
+            return true;    // whatever the rate
+        }
+        final UpdateRatePolicy.Level level = mRatePolicy.getLevel();
+        if ((sinceSent < level.getMinInterval()) || !mRatePolicy.hasBudget()) {
+            return false;
+        }
+        if (reactor != mSentReactor) {
+            return true;
+        }
+        final float positionThreshold = mPositionThreshold * level.getThresholdScale();
+        final float errorX = ship.getPosX() - (mSentX + mSentSpeedX * sinceSent);
+        final float errorY = ship.getPosY() - (mSentY + mSentSpeedY * sinceSent);
+        if (errorX * errorX + errorY * errorY > positionThreshold * positionThreshold) {
+            return true;
+        }
+        double rotationError = Math.abs(ship.getRotation() - mSentRotation) % (2 * Math.PI);
+        rotationError = Math.min(rotationError, 2 * Math.PI - rotationError);
+        return rotationError > mRotationThreshold * level.getThresholdScale();
+    }
+
+    /**
+     * @param messageSize bytes sent, counted in the budget
+     */
+    public void onSent(@NonNull Ship ship, int reactor, long now, int messageSize) {
+        mRatePolicy.onSent(messageSize);
+        mHasSent = true;
+        mSentDate = now;
+        mSentX = ship.getPosX();
+        mSentY = ship.getPosY();
+        mSentSpeedX = ship.getSpeedX();
+        mSentSpeedY = ship.getSpeedY();
+        mSentRotation = ship.getRotation();
+        mSentReactor = reactor;
+
+        if (now - mRateWindowStart >= RATE_WINDOW) {
+            mMessagesPerSecond = (mRateWindowStart == 0) ? 0 : (mRateWindowCount * 1000f / (now - mRateWindowStart));
+            mRateWindowStart = now;
+            mRateWindowCount = 0;
+        }
+        ++mRateWindowCount;
+    }
+
+    /**
+     * Sends the next state whatever happens, after a reset of the remote ship for example.
+     */
+    public void reset() {
+        mHasSent = false;
+    }
+
+    /**
+     * @return ship states sent per second, measured on the last second
+     */
+    public float getMessagesPerSecond() {
+        return mMessagesPerSecond;
+    }
+}
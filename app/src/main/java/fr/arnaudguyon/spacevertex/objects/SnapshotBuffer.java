@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+
+/**
+ * States received for the remote ship, timestamped with their send time on our clock, to display it a little in the past:
+ * between 2 states received, the position is interpolated (Hermite, with the speeds received) so that the network jitter
+ * doesn't show. After the last state, the position is extrapolated with its speed, for a limited time: the same dead reckoning
+ * as {@link ShipStateScheduler}, which only stays quiet (up to a heartbeat) while this extrapolation is close enough.
+ * Also measures how far the extrapolation was from the states received (the authoritative positions).
+ * Used by the render thread.
+ */
+public class SnapshotBuffer {
+
+    private static final int CAPACITY = 32;
+    // ms, 3 states at the NORMAL rate of UpdateRatePolicy, against the jitter. The slower states (FAR, heartbeats) are not waited for:
+    // they are only that slow while the ship follows the extrapolation
+    private static final long DEFAULT_INTERPOLATION_DELAY = 100;
+    private static final long MAX_EXTRAPOLATION = 2 * ShipStateScheduler.DEFAULT_HEARTBEAT_INTERVAL;  // ms, a heartbeat lost, then the ship stops where it is
+
+    private static class Snapshot {
+        long mTime;
+        float mX, mY;
+        float mSpeedX, mSpeedY;
+        float mRotation;
+        int mReactor;
+    }
+
+    private final @NonNull Snapshot[] mSnapshots = new Snapshot[CAPACITY];
+    private int mFirst;     // oldest
+    private int mCount;
+    private long mInterpolationDelay = DEFAULT_INTERPOLATION_DELAY;
+
+    // Result of sample()
+    private float mX, mY;
+    private float mSpeedX, mSpeedY;
+    private float mRotation;
+    private int mReactor;
+    private boolean mExtrapolating;
+
+    // Metrics
+    private int mErrorCount;
+    private float mErrorSum;
+    private float mMaxError;
+    private int mExtrapolatedFrames;
+
+    public SnapshotBuffer() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            mSnapshots[i] = new Snapshot();
+        }
+    }
+
+    /**
+     * @param ms how late the remote ship is displayed. Higher hides more jitter and packet loss, lower is more reactive.
+     */
+    public void setInterpolationDelay(long ms) {
+        mInterpolationDelay = ms;
+    }
+
+    public long getInterpolationDelay() {
+        return mInterpolationDelay;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public void add(long time, float x, float y, float speedX, float speedY, float rotation, int reactor) {
+        if (mCount > 0) {
+            final Snapshot last = get(mCount - 1);
+            if (time < last.mTime) {
+                return;     // clock went back, keep the order
+            }
+            // Error of the extrapolation from the previous state, against this authoritative one
+            final float error = getDistance(last, Math.min(time - last.mTime, MAX_EXTRAPOLATION), x, y);
+            mErrorSum += error;
+            ++mErrorCount;
+            mMaxError = Math.max(mMaxError, error);
+        }
+        if (mCount == CAPACITY) {
+            mFirst = (mFirst + 1) % CAPACITY;
+            --mCount;
+        }
+        final Snapshot snapshot = mSnapshots[(mFirst + mCount) % CAPACITY];
+        ++mCount;
+        snapshot.mTime = time;
+        snapshot.mX = x;
+        snapshot.mY = y;
+        snapshot.mSpeedX = speedX;
+        snapshot.mSpeedY = speedY;
+        snapshot.mRotation = rotation;
+        snapshot.mReactor = reactor;
+    }
+
+    /**
+     * @return distance between (x, y) at time and the newest snapshot moved with its speed until then, 0 if there is none
+     */
+    public float getDistanceFromNewest(long time, float x, float y) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final Snapshot newest = get(mCount - 1);
+        return getDistance(newest, Math.max(time - newest.mTime, 0), x, y);
+    }
+
+    private static float getDistance(@NonNull Snapshot from, long elapsed, float x, float y) {
+        final float diffX = from.mX + from.mSpeedX * elapsed - x;
+        final float diffY = from.mY + from.mSpeedY * elapsed - y;
+        return (float) Math.sqrt(diffX * diffX + diffY * diffY);
+    }
+
+    /**
+     * Computes the state to display at now, read it with the getters.
+     * @return false if there is no snapshot
+     */
+    public boolean sample(long now) {
+        if (mCount == 0) {
+            return false;
+        }
+        final long renderTime = now - mInterpolationDelay;
+        // drop the snapshots not needed anymore, keep one before renderTime
+        while ((mCount > 1) && (get(1).mTime <= renderTime)) {
+            mFirst = (mFirst + 1) % CAPACITY;
+            --mCount;
+        }
+        final Snapshot from = get(0);
+        if ((mCount == 1) || (renderTime < from.mTime)) {
+            if (renderTime < from.mTime) {
+                set(from);
+                mExtrapolating = false;
+            } else {
+                extrapolate(from, renderTime - from.mTime);
+            }
+            return true;
+        }
+        interpolate(from, get(1), renderTime);
+        mExtrapolating = false;
+        return true;
+    }
+
+    private void interpolate(@NonNull Snapshot from, @NonNull Snapshot to, long renderTime) {
+        final float duration = to.mTime - from.mTime;
+        if (duration <= 0) {
+            set(to);
+            return;
+        }
+        final float s = (renderTime - from.mTime) / duration;
+        final float s2 = s * s;
+        final float s3 = s2 * s;
+        // Hermite basis, the tangents are the speeds scaled to the interval
+        final float h00 = 2 * s3 - 3 * s2 + 1;
+        final float h10 = s3 - 2 * s2 + s;
+        final float h01 = -2 * s3 + 3 * s2;
+        final float h11 = s3 - s2;
+        mX = h00 * from.mX + h10 * duration * from.mSpeedX + h01 * to.mX + h11 * duration * to.mSpeedX;
+        mY = h00 * from.mY + h10 * duration * from.mSpeedY + h01 * to.mY + h11 * duration * to.mSpeedY;
+        mSpeedX = from.mSpeedX + (to.mSpeedX - from.mSpeedX) * s;
+        mSpeedY = from.mSpeedY + (to.mSpeedY - from.mSpeedY) * s;
+        double rotationDiff = (to.mRotation - from.mRotation) % (2 * Math.PI);   // shortest way
+        if (rotationDiff > Math.PI) {
+            rotationDiff -= 2 * Math.PI;
+        } else if (rotationDiff < -Math.PI) {
+            rotationDiff += 2 * Math.PI;
+        }
+        mRotation = (float) (from.mRotation + rotationDiff * s);
+        mReactor = from.mReactor;
+    }
+
+    private void extrapolate(@NonNull Snapshot from, long elapsed) {
+        ++mExtrapolatedFrames;
+        mExtrapolating = true;
+        elapsed = Math.min(elapsed, MAX_EXTRAPOLATION);
+        mX = from.mX + from.mSpeedX * elapsed;
+        mY = from.mY + from.mSpeedY * elapsed;
+        mSpeedX = from.mSpeedX;
+        mSpeedY = from.mSpeedY;
+        mRotation = from.mRotation;
+        mReactor = from.mReactor;
+    }
+
+    private void set(@NonNull Snapshot snapshot) {
+        mX = snapshot.mX;
+        mY = snapshot.mY;
+        mSpeedX = snapshot.mSpeedX;
+        mSpeedY = snapshot.mSpeedY;
+        mRotation = snapshot.mRotation;
+        mReactor = snapshot.mReactor;
+    }
+
+    private @NonNull Snapshot get(int index) {
+        return mSnapshots[(mFirst + index) % CAPACITY];
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    public float getSpeedX() {
+        return mSpeedX;
+    }
+
+    public float getSpeedY() {
+        return mSpeedY;
+    }
+
+    public float getRotation() {
+        return mRotation;
+    }
+
+    public int getReactor() {
+        return mReactor;
+    }
+
+    /**
+     * @return true if the last sample is after the last snapshot received (late or lost packets)
+     */
+    public boolean isExtrapolating() {
+        return mExtrapolating;
+    }
+
+    /**
+     * @return frames displayed after the last snapshot received
+     */
+    public int getExtrapolatedFrames() {
+        return mExtrapolatedFrames;
+    }
+
+    /**
+     * @return mean distance between the extrapolated positions and the positions received, in space units
+     */
+    public float getMeanError() {
+        return (mErrorCount > 0) ? mErrorSum / mErrorCount : 0;
+    }
+
+    public float getMaxError() {
+        return mMaxError;
+    }
+}
@@ -24,6 +24,7 @@ public abstract class SpaceObject {
     private ArrayList<Circle> mCircles;
     private ArrayList<Arc> mArcs;
     private Paint mPaint;
+    private LineBatcher mLineBatcher;
     private boolean mToBeDestroyed;
     protected GameConnection gameConnection;
     private boolean mVisible = true;
@@ -56,9 +57,13 @@ public abstract class SpaceObject {
 
         mScreenWidth = screenWidth;
         mScreenHeight = screenHeight;
+        mLineBatcher = scene.getLineBatcher();
+        mToBeDestroyed = false;
         float screenScale = getScreenScale();   // call after ini mScreenWidth & mScreenHeight
 
-        mPaint = new Paint();
+        if (mPaint == null) {   // prepare is called again when a pooled object is reused
+            mPaint = new Paint();
+        }
         mPaint.setAntiAlias(true);
         mPaint.setStrokeWidth(getStrokeWidth());
 
@@ -68,15 +73,26 @@ public abstract class SpaceObject {
         if (points != null) {
             final float scale = screenScale * getOriginalSize();
             final int nbPoints = points.length / 2;
-            mScaledPoints = new float[nbPoints * 2];
+            if ((mScaledPoints == null) || (mScaledPoints.length != nbPoints * 2)) {
+                mScaledPoints = new float[nbPoints * 2];
+                mTransformedPoints = new float[nbPoints * 2];
+            }
             for (int i = 0; i < nbPoints * 2; i += 2) {
                 mScaledPoints[i] = points[i] * scale;
                 mScaledPoints[i + 1] = -points[i + 1] * scale;  // invert Y
             }
-            mTransformedPoints = new float[nbPoints * 2];
         }
 
         // ask objects to add their lines/colors
+        if (mLines != null) {
+            mLines.clear();
+        }
+        if (mCircles != null) {
+            mCircles.clear();
+        }
+        if (mArcs != null) {
+            mArcs.clear();
+        }
         buildStructure(scene);
     }
 
@@ -170,20 +186,11 @@ public abstract class SpaceObject {
 
         if (mLines != null) {
             computeTransformation(spaceCenterX, spaceCenterY);
-            for (LineObject line : mLines) {
-                if (!line.mVisible) {
-                    continue;
-                }
-                mPaint.setColor(line.mColor);
-                int[] indices = line.mIndices;
-                for (int i = 0; i < indices.length - 1; ++i) {
-                    int indiceStart = indices[i];
-                    float x1 = mTransformedPoints[indiceStart * 2];
-                    float y1 = mTransformedPoints[indiceStart * 2 + 1];
-                    int indiceStop = indices[i + 1];
-                    float x2 = mTransformedPoints[indiceStop * 2];
-                    float y2 = mTransformedPoints[indiceStop * 2 + 1];
-                    canvas.drawLine(x1, y1, x2, y2, mPaint);
+            final float strokeWidth = mPaint.getStrokeWidth();
+            for (int i = 0; i < mLines.size(); ++i) {
+                LineObject line = mLines.get(i);
+                if (line.mVisible) {
+                    mLineBatcher.addPolyline(line.mColor, strokeWidth, mTransformedPoints, line.mIndices);
                 }
             }
         }
@@ -191,12 +198,13 @@ public abstract class SpaceObject {
         //final float scale = getScreenScale();
 
         if (mCircles != null) {
-            for(Circle circle : mCircles) {
-                circle.draw(canvas, this, spaceCenterX, spaceCenterY);
+            for (int i = 0; i < mCircles.size(); ++i) {
+                mCircles.get(i).draw(canvas, this, spaceCenterX, spaceCenterY);
             }
         }
         if (mArcs != null) {
-            for(Arc arc : mArcs) {
+            for (int i = 0; i < mArcs.size(); ++i) {
+                Arc arc = mArcs.get(i);
                 //arc.draw(canvas, this, (mScreenWidth/2) - spaceCenterX*scale, (mScreenHeight/2) - spaceCenterY*scale);
                 arc.draw(canvas, this, spaceCenterX, spaceCenterY);
             }
@@ -234,6 +242,7 @@ public abstract class SpaceObject {
     protected abstract void buildStructure(Scene scene);
     public PackMsg prepareNetworkMessage(Scene scene, int frameNumber) { return null; }
     public void onNetworkMessageReceived(Scene scene, PackMsg packMsg) {}
+    public void onRemovedFromScene(Scene scene) {}     // destroyed, pooled objects can be recycled
     public void setCanKill(boolean canKill) {   // can Kill Local Ship
         mCanKill = canKill;
     }
@@ -247,5 +256,8 @@ public abstract class SpaceObject {
     protected Paint getPaint() {
         return mPaint;
     }
+    protected LineBatcher getLineBatcher() {   // lines of the current frame, drawn in batch
+        return mLineBatcher;
+    }
 
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * Recycles short lived objects (fireballs...) so that the game doesn't allocate while playing.
+ * Objects are obtained from the UI / Network threads and released by the render thread.
+ */
+public class SpaceObjectPool<T extends SpaceObject> {
+
+    private final @NonNull ArrayList<T> mFreeObjects;
+    private final @NonNull Factory<T> mFactory;
+    private final int mMaxSize;
+    private int mCreatedCount;
+
+    public SpaceObjectPool(int initialSize, int maxSize, @NonNull Factory<T> factory) {
+        mFactory = factory;
+        mMaxSize = maxSize;
+        mFreeObjects = new ArrayList<>(maxSize);
+        for (int i = 0; i < initialSize; ++i) {
+            mFreeObjects.add(create());
+        }
+    }
+
+    public synchronized @NonNull T obtain() {
+        final int size = mFreeObjects.size();
+        if (size > 0) {
+            return mFreeObjects.remove(size - 1);
+        }
+        return create();
+    }
+
+    public synchronized void release(@NonNull T object) {
+        if (mFreeObjects.size() < mMaxSize) {
+            mFreeObjects.add(object);
+        }
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeObjects.size();
+    }
+
+    /**
+     * @return number of objects allocated by the pool since its creation. Stays stable once the pool is warm.
+     */
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    private @NonNull T create() {
+        ++mCreatedCount;
+        return mFactory.create();
+    }
+
+    public interface Factory<T> {
+        @NonNull T create();
+    }
+}
@@ -5,33 +5,56 @@
  */
 package fr.arnaudguyon.spacevertex.objects;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 
 import androidx.annotation.NonNull;
 
-import java.util.ArrayList;
-
+/**
+ * Parallax layer of stars, stored as a struct of arrays.
+ * Star colors are taken from a small palette, so that the whole layer is drawn with one drawLines per palette color.
+ * In prerendered mode, the layer is rasterized once into a wrap-around tile of the screen size,
+ * and each frame only draws the tile at the parallax offset.
+ */
 public class StarField extends SpaceObject {
 
-    static class StarData {
-        float mX, mY;
-        float[] mCoords = new float[4*2];
-        int mColor;
-        float mSpeed;
-        float mStrokeWidth;
-    }
+    private static final int PALETTE_SIZE = 8;
+    private static final int POINTS_PER_STAR = 4;
+    private static final int FLOATS_PER_STAR = POINTS_PER_STAR * 2;    // 2 lines = 4 points (x,y)
 
     private final int mNbStars;
     protected boolean mBigStar;
-    protected ArrayList<StarData> mStars;
+    protected float[] mStarX;
+    protected float[] mStarY;
+    protected float mScrollX;           // added to all the star positions
+    private float mLayerSpeed;         // parallax of all the stars of the layer
+    private float[] mStarCoords;        // FLOATS_PER_STAR per star, relative to the star position
+    private int[] mStarColor;           // index in mPalette
+    private final @NonNull int[] mPalette = new int[PALETTE_SIZE];
+    private final @NonNull float[][] mPaletteLines = new float[PALETTE_SIZE][];   // lines of the frame for each color
+    private final @NonNull int[] mPaletteLineSizes = new int[PALETTE_SIZE];
     private final @NonNull Paint mPaint = new Paint();
 
+    private boolean mPrerendered = false;
+    private Bitmap mTile;
+
     public StarField(int nbStars, boolean bigStar) {
         mNbStars = nbStars;
         mBigStar = bigStar;
     }
 
+    /**
+     * Draws the layer from a tile rendered once, at the cost of a screen size bitmap. To call before adding it to the Scene.
+     */
+    public void setPrerendered(boolean prerendered) {
+        mPrerendered = prerendered;
+    }
+
+    public boolean isPrerendered() {
+        return mPrerendered;
+    }
+
     @Override
     public void preDraw(Scene scene, float frameDuration) {
     }
@@ -39,26 +62,92 @@ public class StarField extends SpaceObject {
     @Override
     public void draw(Canvas canvas, float spaceCenterX, float spaceCenterY) {
 
+        getLineBatcher().flush();   // stars are drawn directly, keep the draw order
+
+        if (mTile != null) {
+            drawTile(canvas, spaceCenterX, spaceCenterY);
+            return;
+        }
+
         final float width = getScreenWidth();
         final float height = getScreenHeight();
-
         final float screenScale = getScreenScale();
-        for(StarData data : mStars) {
-
-            mPaint.setColor(data.mColor);
-            mPaint.setStrokeWidth(data.mStrokeWidth);
-
-            float x = (data.mX - spaceCenterX*screenScale*data.mSpeed) % width;
+        final float offsetX = mScrollX - spaceCenterX*screenScale*mLayerSpeed;
+        final float offsetY = -spaceCenterY*screenScale*mLayerSpeed;
+        final float[] starX = mStarX;
+        final float[] starY = mStarY;
+
+        clearPaletteLines();
+        for (int i = 0; i < mNbStars; ++i) {
+            float x = (starX[i] + offsetX) % width;
             if (x < 0) {
                 x += width;
             }
-            float y = (data.mY - spaceCenterY*screenScale*data.mSpeed) % height;
+            float y = (starY[i] + offsetY) % height;
             if (y < 0) {
                 y += height;
             }
+            addStarLines(i, x, y);
+        }
+        drawPaletteLines(canvas);
+    }
+
+    private void drawTile(@NonNull Canvas canvas, float spaceCenterX, float spaceCenterY) {
+        final float width = getScreenWidth();
+        final float height = getScreenHeight();
+        final float screenScale = getScreenScale();
+
+        float x = (mScrollX - spaceCenterX*screenScale*mLayerSpeed) % width;
+        if (x < 0) {
+            x += width;
+        }
+        float y = (-spaceCenterY*screenScale*mLayerSpeed) % height;
+        if (y < 0) {
+            y += height;
+        }
+        // the tile wraps around: up to 4 pieces to cover the screen
+        canvas.drawBitmap(mTile, x, y, null);
+        if (x > 0) {
+            canvas.drawBitmap(mTile, x - width, y, null);
+        }
+        if (y > 0) {
+            canvas.drawBitmap(mTile, x, y - height, null);
+            if (x > 0) {
+                canvas.drawBitmap(mTile, x - width, y - height, null);
+            }
+        }
+    }
+
+    private void clearPaletteLines() {
+        for (int color = 0; color < PALETTE_SIZE; ++color) {
+            mPaletteLineSizes[color] = 0;
+        }
+    }
+
+    private void addStarLines(int star, float x, float y) {
+        final float[] coords = mStarCoords;
+        final int color = mStarColor[star];
+        final float[] lines = mPaletteLines[color];
+        final int size = mPaletteLineSizes[color];
+        final int c = star * FLOATS_PER_STAR;
+        // point 0 -> point 2, point 1 -> point 3
+        lines[size] = x + coords[c];
+        lines[size + 1] = y + coords[c + 1];
+        lines[size + 2] = x + coords[c + 4];
+        lines[size + 3] = y + coords[c + 5];
+        lines[size + 4] = x + coords[c + 2];
+        lines[size + 5] = y + coords[c + 3];
+        lines[size + 6] = x + coords[c + 6];
+        lines[size + 7] = y + coords[c + 7];
+        mPaletteLineSizes[color] = size + 8;
+    }
 
-            canvas.drawLine(x+data.mCoords[0], y+data.mCoords[1], x+data.mCoords[4], y+data.mCoords[5], mPaint);
-            canvas.drawLine(x+data.mCoords[2], y+data.mCoords[3], x+data.mCoords[6], y+data.mCoords[7], mPaint);
+    private void drawPaletteLines(@NonNull Canvas canvas) {
+        for (int color = 0; color < PALETTE_SIZE; ++color) {
+            if (mPaletteLineSizes[color] > 0) {
+                mPaint.setColor(mPalette[color]);
+                canvas.drawLines(mPaletteLines[color], 0, mPaletteLineSizes[color], mPaint);
+            }
         }
     }
 
@@ -75,30 +164,17 @@ public class StarField extends SpaceObject {
     @Override
     protected void buildStructure(Scene scene) {
 
-        mStars = new ArrayList<>(mNbStars);
+        mStarX = new float[mNbStars];
+        mStarY = new float[mNbStars];
+        mStarCoords = new float[mNbStars * FLOATS_PER_STAR];
+        mStarColor = new int[mNbStars];
 
         float screenScale = getScreenScale();
         final float width = getScreenWidth();
         final float height = getScreenHeight();
-        float bigStroke = Math.max(height / 400f, 2);
-        float smallStroke = Math.max(height / 800f, 1);
-
-        for(int i=0; i<mNbStars; ++i) {
-
-            StarData data = new StarData();
-
-            boolean isFront = mBigStar;
-
-            data.mX = (float) (Math.random() * width);
-            data.mY = (float) (Math.random() * height);
+        final boolean isFront = mBigStar;
 
-            float size = isFront ? 20.f*screenScale : 12.f*screenScale;
-            float angle = (float) (Math.random() * Math.PI * 2);
-            for(int loop = 0; loop<4; ++loop) {
-                data.mCoords[loop*2 + 0] = (float) (Math.cos(angle) * size);
-                data.mCoords[loop*2 + 1] = (float) (Math.sin(angle) * size);
-                angle += Math.PI / 2;
-            }
+        for (int color = 0; color < PALETTE_SIZE; ++color) {
             int red = (int) (Math.random() * 256);
             int grn = (int) (Math.random() * 256);
             int blu = (int) (Math.random() * 256);
@@ -106,21 +182,71 @@ public class StarField extends SpaceObject {
                 red |= 0x80;
                 grn |= 0x80;
                 blu |= 0x80;
-                data.mSpeed = 1;
-                data.mStrokeWidth = bigStroke;
             } else {
                 red &= 0x7F;
                 grn &= 0x7F;
                 blu &= 0x7F;
-                data.mSpeed = 0.5f;
-                data.mStrokeWidth = smallStroke;
             }
-            data.mColor = 0xFF000000 + (red<<16) + (grn<<8) + blu;
-            mStars.add(data);
+            mPalette[color] = 0xFF000000 + (red<<16) + (grn<<8) + blu;
+        }
+
+        final int[] starsPerColor = new int[PALETTE_SIZE];
+        final float size = isFront ? 20.f*screenScale : 12.f*screenScale;
+        mLayerSpeed = isFront ? 1 : 0.5f;
+        for(int i=0; i<mNbStars; ++i) {
+
+            mStarX[i] = (float) (Math.random() * width);
+            mStarY[i] = (float) (Math.random() * height);
+
+            float angle = (float) (Math.random() * Math.PI * 2);
+            for(int loop = 0; loop<POINTS_PER_STAR; ++loop) {
+                mStarCoords[i*FLOATS_PER_STAR + loop*2 + 0] = (float) (Math.cos(angle) * size);
+                mStarCoords[i*FLOATS_PER_STAR + loop*2 + 1] = (float) (Math.sin(angle) * size);
+                angle += Math.PI / 2;
+            }
+
+            int color = (int) (Math.random() * PALETTE_SIZE);
+            mStarColor[i] = color;
+            ++starsPerColor[color];
         }
-        mPaint.setColor(0xFF444444);
+
+        for (int color = 0; color < PALETTE_SIZE; ++color) {
+            mPaletteLines[color] = new float[starsPerColor[color] * FLOATS_PER_STAR];
+        }
+
+        float bigStroke = Math.max(height / 400f, 2);
+        float smallStroke = Math.max(height / 800f, 1);
+        mPaint.setStrokeWidth(isFront ? bigStroke : smallStroke);
         mPaint.setAntiAlias(true);
 
+        buildTile();
+    }
+
+    /**
+     * Rasterizes the stars into a screen size tile. Stars crossing a border are also drawn on the opposite side.
+     */
+    private void buildTile() {
+        if (mTile != null) {
+            mTile.recycle();
+            mTile = null;
+        }
+        final int width = (int) getScreenWidth();
+        final int height = (int) getScreenHeight();
+        if (!mPrerendered || (width <= 0) || (height <= 0)) {
+            return;
+        }
+
+        mTile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas tileCanvas = new Canvas(mTile);
+        for (int dy = -1; dy <= 1; ++dy) {
+            for (int dx = -1; dx <= 1; ++dx) {
+                clearPaletteLines();
+                for (int i = 0; i < mNbStars; ++i) {
+                    addStarLines(i, mStarX[i] + dx*width, mStarY[i] + dy*height);
+                }
+                drawPaletteLines(tileCanvas);
+            }
+        }
     }
 
 }
@@ -26,8 +26,9 @@ public class StarFieldMenu extends StarField {
             float screenScale = getScreenScale() * mSpeed;
             float speed = mBigStar ? 2 : 1;
 
-            for (StarData data : mStars) {
-                data.mX -= screenScale * speed;
+            mScrollX -= screenScale * speed;
+            if (getScreenWidth() > 0) {
+                mScrollX %= getScreenWidth();   // keep the float precision
             }
         }
         super.preDraw(scene, frameDuration);
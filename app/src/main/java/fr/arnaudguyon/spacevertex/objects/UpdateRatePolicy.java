@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Rate of the ship states sent to the other player, adapted to the situation:
+ * precise when the ships are close or fireballs are flying, coarse when we are only a radar circle for the other player.
+ * A bandwidth budget per connection bounds it whatever the situation (token bucket).
+ * Used by the {@link ShipStateScheduler}, on the render thread.
+ */
+public class UpdateRatePolicy {
+
+    private static final float DEFAULT_BUDGET = 4000;               // bytes per second
+    private static final float BUDGET_BURST = 0.25f;                // seconds of budget that can be spent at once
+    private static final int MESSAGE_OVERHEAD = 28;                 // UDP / IP headers
+    // Space seen around its ship by the other player, in landscape: 1000 units high on any screen (SpaceObject.getScreenScale),
+    // as wide as its aspect ratio allows. The widest supported ratio, so that a ship beyond is off screen on every phone
+    private static final float VISIBLE_HALF_HEIGHT = 500;
+    private static final float MAX_ASPECT_RATIO = 2.4f;             // wider than 21:9
+    private static final float VISIBLE_HALF_WIDTH = VISIBLE_HALF_HEIGHT * MAX_ASPECT_RATIO;
+
+    public enum Level {
+        CLOSE(0, 0.5f),     // every frame if needed, finer thresholds
+        NORMAL(33, 1),      // 30 per second max
+        FAR(100, 4);        // 10 per second max, the other player only sees us in the radar
+
+        private final long mMinInterval;
+        private final float mThresholdScale;
+
+        Level(long minInterval, float thresholdScale) {
+            mMinInterval = minInterval;
+            mThresholdScale = thresholdScale;
+        }
+
+        /**
+         * @return ms between 2 states, except heartbeats
+         */
+        public long getMinInterval() {
+            return mMinInterval;
+        }
+
+        /**
+         * @return factor of the ShipStateScheduler thresholds
+         */
+        public float getThresholdScale() {
+            return mThresholdScale;
+        }
+    }
+
+    private @NonNull Level mLevel = Level.NORMAL;
+    private float mBudget = DEFAULT_BUDGET;
+    private float mTokens = DEFAULT_BUDGET * BUDGET_BURST;
+    private long mLastRefill;
+
+    /**
+     * @param bytesPerSecond maximum bandwidth of the ship states
+     */
+    public void setBudget(float bytesPerSecond) {
+        mBudget = bytesPerSecond;
+        mTokens = Math.min(mTokens, mBudget * BUDGET_BURST);
+    }
+
+    /**
+     * Computes the level of the frame, and refills the budget.
+     */
+    public void update(@NonNull Scene scene, @NonNull Ship localShip, long now) {
+        final Ship remoteShip = scene.getRemoteShip();
+        if (remoteShip == null) {
+            mLevel = Level.NORMAL;
+        } else {
+            final float diffX = localShip.getPosX() - remoteShip.getPosX();
+            final float diffY = localShip.getPosY() - remoteShip.getPosY();
+            if ((diffX * diffX + diffY * diffY < Scene.NEAR_MOUSE_DISTANCE * Scene.NEAR_MOUSE_DISTANCE) || (scene.getFireBallsInFlight() > 0)) {
+                mLevel = Level.CLOSE;
+            } else if ((Math.abs(diffX) > VISIBLE_HALF_WIDTH) || (Math.abs(diffY) > VISIBLE_HALF_HEIGHT)) {
+                mLevel = Level.FAR;     // off the screen of the other player, whatever its size
+            } else {
+                mLevel = Level.NORMAL;
+            }
+        }
+
+        if (mLastRefill != 0) {
+            mTokens = Math.min(mBudget * BUDGET_BURST, mTokens + mBudget * (now - mLastRefill) / 1000f);
+        }
+        mLastRefill = now;
+    }
+
+    public @NonNull Level getLevel() {
+        return mLevel;
+    }
+
+    public boolean hasBudget() {
+        return mTokens > 0;
+    }
+
+    public void onSent(int messageSize) {
+        mTokens -= messageSize + MESSAGE_OVERHEAD;
+    }
+}
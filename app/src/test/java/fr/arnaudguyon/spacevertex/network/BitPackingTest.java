@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class BitPackingTest {
+
+    private static final double TWO_PI = 2 * Math.PI;
+
+    private final byte[] mBuffer = new byte[256];
+    private final BitWriter mWriter = new BitWriter();
+    private final BitReader mReader = new BitReader();
+
+    @Test
+    public void bitsRoundTripAtEveryWidth() {
+        final Random random = new Random(13);
+        for (int nbBits = 1; nbBits <= 32; ++nbBits) {
+            final int mask = (nbBits == 32) ? -1 : (1 << nbBits) - 1;
+            final int[] values = { 0, mask, 1, mask >>> 1, random.nextInt() & mask, random.nextInt() & mask };
+            mWriter.reset(mBuffer, 1).writeBits(1, 3);     // unaligned start
+            for (int value : values) {
+                mWriter.writeBits(value, nbBits);
+            }
+            final int end = mWriter.getByteLength();
+
+            mReader.reset(ByteBuffer.wrap(mBuffer), 1, end);
+            assertEquals(1, mReader.readBits(3));
+            for (int value : values) {
+                assertEquals(nbBits + " bits", value, mReader.readBits(nbBits));
+            }
+            assertFalse(mReader.isOverflow());
+        }
+    }
+
+    @Test
+    public void thirtyTwoBitsKeepTheSign() {
+        final int[] values = { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x80000001 };
+        mWriter.reset(mBuffer, 0).writeBoolean(true);
+        for (int value : values) {
+            mWriter.writeBits(value, 32);
+        }
+        final float[] floats = { -0f, Float.MIN_VALUE, -Float.MAX_VALUE, Float.NEGATIVE_INFINITY };
+        for (float value : floats) {
+            mWriter.writeFloat(value);
+        }
+
+        mReader.reset(ByteBuffer.wrap(mBuffer), 0, mWriter.getByteLength());
+        assertTrue(mReader.readBoolean());
+        for (int value : values) {
+            assertEquals(value, mReader.readBits(32));
+        }
+        for (float value : floats) {
+            assertEquals(Float.floatToRawIntBits(value), Float.floatToRawIntBits(mReader.readFloat()));
+        }
+    }
+
+    @Test
+    public void writingOverwritesPreviousBits() {
+        mBuffer[0] = (byte) 0xFF;
+        mWriter.reset(mBuffer, 0).writeBits(0, 4);
+        assertEquals(0x0F, mBuffer[0] & 0xFF);
+    }
+
+    @Test
+    public void signedStepsCoverTheWholeRange() {
+        for (int nbBits = 2; nbBits <= 24; ++nbBits) {
+            final int maxStep = (1 << (nbBits - 1)) - 1;
+            final int[] steps = { -maxStep, -1, 0, 1, maxStep };
+            mWriter.reset(mBuffer, 0);
+            for (int step : steps) {
+                mWriter.writeSignedStep(step, nbBits);
+            }
+            mReader.reset(ByteBuffer.wrap(mBuffer), 0, mWriter.getByteLength());
+            for (int step : steps) {
+                assertEquals(nbBits + " bits", step, mReader.readSignedStep(nbBits));
+            }
+        }
+    }
+
+    @Test
+    public void signedFloatIsClampedAndZeroIsExact() {
+        final float maxAbs = 1.5f;
+        final int nbBits = 12;
+        final int maxStep = (1 << (nbBits - 1)) - 1;
+        assertEquals(0, BitWriter.quantizeSigned(0, maxAbs, nbBits));
+        assertEquals(maxStep, BitWriter.quantizeSigned(maxAbs, maxAbs, nbBits));
+        assertEquals(-maxStep, BitWriter.quantizeSigned(-maxAbs, maxAbs, nbBits));
+        assertEquals(maxStep, BitWriter.quantizeSigned(100, maxAbs, nbBits));
+        assertEquals(-maxStep, BitWriter.quantizeSigned(-100, maxAbs, nbBits));
+
+        assertEquals(0f, roundTripSigned(0, maxAbs, nbBits), 0);
+        assertEquals(maxAbs, roundTripSigned(maxAbs, maxAbs, nbBits), 0);
+        assertEquals(-maxAbs, roundTripSigned(-maxAbs, maxAbs, nbBits), 0);
+        assertEquals(maxAbs, roundTripSigned(Float.MAX_VALUE, maxAbs, nbBits), 0);
+    }
+
+    @Test
+    public void signedFloatErrorIsAtMostHalfAStep() {
+        final float maxAbs = 4096;
+        final int nbBits = 19;
+        final float halfStep = maxAbs / ((1 << (nbBits - 1)) - 1) / 2;
+        final Random random = new Random(19);
+        for (int i = 0; i < 10_000; ++i) {
+            final float value = (random.nextFloat() * 2 - 1) * maxAbs;
+            assertEquals(value, roundTripSigned(value, maxAbs, nbBits), halfStep * 1.001f);
+        }
+    }
+
+    @Test
+    public void angleWrapsAround() {
+        final int nbBits = 12;
+        final double halfStep = TWO_PI / (1 << nbBits) / 2;
+        final float[] angles = { 0, (float) Math.PI, (float) -Math.PI, (float) (TWO_PI - 1e-4), (float) TWO_PI, -1e-4f, (float) (5 * Math.PI), -7f };
+        for (float angle : angles) {
+            mWriter.reset(mBuffer, 0).writeAngle(angle, nbBits);
+            mReader.reset(ByteBuffer.wrap(mBuffer), 0, mWriter.getByteLength());
+            final float read = mReader.readAngle(nbBits);
+            assertTrue("in [0, 2PI[: " + read, (read >= 0) && (read < TWO_PI));
+            assertTrue("angle " + angle + " read " + read, angleDistance(angle, read) <= halfStep * 1.001);
+        }
+        assertEquals(0, BitWriter.quantizeAngle((float) TWO_PI, nbBits));
+        assertEquals(0, BitWriter.quantizeAngle(-1e-6f, nbBits));   // rounds to 2PI, wraps to 0
+    }
+
+    @Test
+    public void readingPastTheEndGivesZeros() {
+        mBuffer[0] = (byte) 0xFF;
+        mBuffer[1] = (byte) 0xFF;
+        mReader.reset(ByteBuffer.wrap(mBuffer), 0, 1);
+        assertEquals(0xF, mReader.readBits(4));
+        assertFalse(mReader.isOverflow());
+        assertEquals(0xF0, mReader.readBits(8));
+        assertTrue(mReader.isOverflow());
+    }
+
+    private float roundTripSigned(float value, float maxAbs, int nbBits) {
+        mWriter.reset(mBuffer, 0).writeSignedFloat(value, maxAbs, nbBits);
+        return mReader.reset(ByteBuffer.wrap(mBuffer), 0, mWriter.getByteLength()).readSignedFloat(maxAbs, nbBits);
+    }
+
+    static double angleDistance(double a, double b) {
+        final double diff = Math.abs(a - b) % TWO_PI;
+        return Math.min(diff, TWO_PI - diff);
+    }
+}
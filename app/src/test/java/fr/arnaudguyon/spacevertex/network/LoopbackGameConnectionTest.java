@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class LoopbackGameConnectionTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long DURATION = 30_000 * MS;
+    private static final long SHIP_INFO_INTERVAL = 16 * MS;
+    private static final long CHRONO_INTERVAL = 100 * MS;
+    private static final long FIXED_DELAY = 20 * MS;
+    private static final long RANDOM_DELAY = 10 * MS;
+    private static final long CLIENT_CLOCK_OFFSET = 3_000 * MS + 123_456;   // the client clock is ahead
+
+    /**
+     * Received by one end: ShipInfo ticks and GameChrono values, in delivery order.
+     */
+    private static class Receiver {
+        final ArrayList<Integer> mTicks = new ArrayList<>();
+        final ArrayList<Integer> mChronos = new ArrayList<>();
+
+        void listen(@NonNull GameConnection connection) {
+            connection.addMessageListener(PackMsg.MsgType.SHIP_INFO_PACKED, (c, packMsg) -> mTicks.add(packMsg.getTick()));
+            connection.addMessageListener(PackMsg.MsgType.GAME_CHRONO, (c, packMsg) -> mChronos.add(((PackMsg.GameChrono) packMsg).value));
+        }
+    }
+
+    private final LoopbackGameConnection.ManualClock mClock = new LoopbackGameConnection.ManualClock();
+    private LoopbackGameConnection mServer;
+    private LoopbackGameConnection mClient;
+    private final Receiver mServerReceived = new Receiver();
+    private final Receiver mClientReceived = new Receiver();
+    private int mShipInfoSent;
+    private int mChronoSent;
+
+    @Before
+    public void setUp() {
+        final LoopbackGameConnection[] pair = LoopbackGameConnection.createPair(mClock, createImpairment(1), createImpairment(2), NetworkCapabilities.CLOCK_SYNC);
+        mServer = pair[0];
+        mClient = pair[1];
+        mClient.setClockOffset(CLIENT_CLOCK_OFFSET);
+        mServerReceived.listen(mServer);
+        mClientReceived.listen(mClient);
+    }
+
+    private static @NonNull RandomImpairment createImpairment(long seed) {
+        final RandomImpairment impairment = new RandomImpairment(seed);
+        impairment.setFixedDelay(FIXED_DELAY);
+        impairment.setRandomDelay(RANDOM_DELAY);
+        impairment.setJitter(2 * MS);
+        impairment.setLossRate(0.05f);
+        impairment.setDuplicateRate(0.02f);
+        impairment.setReordering(0.05f, 30 * MS);
+        impairment.setRetransmitDelay(60 * MS);
+        return impairment;
+    }
+
+    @Test
+    public void scenarioUnderImpairment() {
+        run();
+
+        // Reliable: every chrono once, in order, both ways
+        assertEquals(mChronoSent, mClientReceived.mChronos.size());
+        assertEquals(mChronoSent, mServerReceived.mChronos.size());
+        for (int i = 0; i < mChronoSent; ++i) {
+            assertEquals(i, (int) mClientReceived.mChronos.get(i));
+            assertEquals(i, (int) mServerReceived.mChronos.get(i));
+        }
+
+        // Unreliable: most ShipInfo delivered, never an older one after a newer one, whatever the PINGs in between
+        assertShipInfos(mClientReceived);
+        assertShipInfos(mServerReceived);
+
+        // Clock offset: within half of the random delay, the asymmetry it can add to a round trip
+        assertTrue(mServer.getClockSync().isSynchronized());
+        assertTrue(mClient.getClockSync().isSynchronized());
+        assertEquals(CLIENT_CLOCK_OFFSET, mServer.getClockSync().getOffsetNanos(), RANDOM_DELAY / 2);
+        assertEquals(-CLIENT_CLOCK_OFFSET, mClient.getClockSync().getOffsetNanos(), RANDOM_DELAY / 2);
+        assertEquals(2 * FIXED_DELAY, mServer.getClockSync().getRttNanos(), 2 * RANDOM_DELAY);
+        assertEquals(mClock.nanoTime() + CLIENT_CLOCK_OFFSET, mServer.getClockSync().getRemoteTime(), RANDOM_DELAY / 2);   // on the clock of the connection
+    }
+
+    @Test
+    public void pingsAndPongsAreNotNotified() {
+        final int[] notified = { 0 };
+        mServer.addMessageListener(PackMsg.MsgType.PING, (c, packMsg) -> ++notified[0]);
+        mServer.addMessageListener(PackMsg.MsgType.PONG, (c, packMsg) -> ++notified[0]);
+        run();
+        assertEquals(0, notified[0]);
+        assertTrue(mServer.getStats().getPingRttNanos() > 0);
+    }
+
+    private void run() {
+        final PackMsg.ShipInfo serverShip = new PackMsg.ShipInfo(true, mServer.getPeerDevice());
+        final PackMsg.ShipInfo clientShip = new PackMsg.ShipInfo(true, mClient.getPeerDevice());
+        long nextShipInfo = 0;
+        long nextChrono = 0;
+        for (long now = 0; now < DURATION; now += MS) {
+            mClock.set(now);
+            if (now >= nextShipInfo) {
+                nextShipInfo += SHIP_INFO_INTERVAL;
+                serverShip.encode(mShipInfoSent, 100, -100, 1, 0.5f, 0, (byte) 0);     // reused: sendMessage copies it
+                mServer.sendMessage(serverShip);
+                clientShip.encode(mShipInfoSent, -100, 100, 2, 0, -0.5f, (byte) 1);
+                mClient.sendMessage(clientShip);
+                ++mShipInfoSent;
+            }
+            if (now >= nextChrono) {
+                nextChrono += CHRONO_INTERVAL;
+                mServer.sendMessage(new PackMsg.GameChrono(mChronoSent, mServer.getPeerDevice()));
+                mClient.sendMessage(new PackMsg.GameChrono(mChronoSent, mClient.getPeerDevice()));
+                ++mChronoSent;
+            }
+            mServer.pump();
+            mClient.pump();
+        }
+        // Delivers what is still on the way
+        long next;
+        while ((next = Math.min(mServer.getNextDeliveryNanos(), mClient.getNextDeliveryNanos())) != Long.MAX_VALUE) {
+            mClock.set(next);
+            mServer.pump();
+            mClient.pump();
+        }
+    }
+
+    private void assertShipInfos(@NonNull Receiver received) {
+        assertTrue("delivered " + received.mTicks.size() + " of " + mShipInfoSent, received.mTicks.size() > mShipInfoSent * 8 / 10);
+        assertTrue(received.mTicks.size() <= mShipInfoSent);
+        for (int i = 1; i < received.mTicks.size(); ++i) {
+            assertTrue("tick " + received.mTicks.get(i) + " after " + received.mTicks.get(i - 1), received.mTicks.get(i) > received.mTicks.get(i - 1));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+public class ReliableChannelTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long MIN_RTO_NANOS = 30 * MS;
+    private static final long MAX_RTO_NANOS = 1000 * MS;
+    private static final long INITIAL_RTO_NANOS = 200 * MS;
+
+    /**
+     * Datagrams between two channels: each one is lost, or delivered after a random delay, so they are reordered.
+     */
+    private static class LossyLink {
+
+        private static class Datagram {
+            final long mDeliveryNanos;
+            final boolean mAckOnly;
+            final int mSeq;
+            final byte[] mData;
+            final int mAckSeq;
+            final int mAckBits;
+
+            Datagram(long deliveryNanos, boolean ackOnly, int seq, byte[] data, int ackSeq, int ackBits) {
+                mDeliveryNanos = deliveryNanos;
+                mAckOnly = ackOnly;
+                mSeq = seq;
+                mData = data;
+                mAckSeq = ackSeq;
+                mAckBits = ackBits;
+            }
+        }
+
+        private final Random mRandom;
+        private final float mLossRate;
+        private final ArrayList<Datagram> mInFlight = new ArrayList<>();
+        int mSentCount;
+        int mLostCount;
+
+        LossyLink(long seed, float lossRate) {
+            mRandom = new Random(seed);
+            mLossRate = lossRate;
+        }
+
+        void send(long nowNanos, boolean ackOnly, int seq, byte[] data, int length, @NonNull ReliableChannel sender) {
+            ++mSentCount;
+            final int ackSeq = sender.getAckSeq();     // piggybacked, like UdpGameConnection
+            final int ackBits = sender.getAckBits();
+            sender.onAckSent();
+            if (mRandom.nextFloat() < mLossRate) {
+                ++mLostCount;
+                return;
+            }
+            final long delay = (10 + mRandom.nextInt(40)) * MS;     // 10 to 50ms: reorders the datagrams
+            mInFlight.add(new Datagram(nowNanos + delay, ackOnly, seq, (data != null) ? Arrays.copyOf(data, length) : null, ackSeq, ackBits));
+        }
+
+        void deliverDue(long nowNanos, @NonNull ReliableChannel receiver, @NonNull ReliableChannel.Receiver delivery) {
+            final Iterator<Datagram> iterator = mInFlight.iterator();
+            while (iterator.hasNext()) {
+                final Datagram datagram = iterator.next();
+                if (datagram.mDeliveryNanos > nowNanos) {
+                    continue;
+                }
+                iterator.remove();
+                receiver.onAck(datagram.mAckSeq, datagram.mAckBits, nowNanos);
+                if (!datagram.mAckOnly) {
+                    // in the middle of a bigger buffer, like after the datagram header
+                    final ByteBuffer buffer = ByteBuffer.allocate(datagram.mData.length + 20);
+                    buffer.position(13);
+                    buffer.put(datagram.mData);
+                    receiver.onReceive(datagram.mSeq, buffer, 13, datagram.mData.length, nowNanos, delivery);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return mInFlight.isEmpty();
+        }
+    }
+
+    @Test
+    public void deliversEverythingOnceAndInOrderUnderLossAndReordering() {
+        final int nbMessages = 500;
+        final ReliableChannel sender = new ReliableChannel();
+        final ReliableChannel receiver = new ReliableChannel();
+        final LossyLink forward = new LossyLink(1, 0.2f);
+        final LossyLink backward = new LossyLink(2, 0.2f);
+        final ArrayList<Integer> delivered = new ArrayList<>();
+        final ReliableChannel.Receiver delivery = (data, offset, length) -> {
+            assertEquals(4, length);
+            delivered.add(data.getInt(offset));
+        };
+
+        final byte[] message = new byte[4];
+        for (int i = 0; i < nbMessages; ++i) {
+            ByteBuffer.wrap(message).putInt(0, i);
+            sender.queue(message, message.length);
+        }
+
+        long now = 0;
+        for (int step = 0; step < 100_000; ++step) {
+            final long stepNow = now;
+            final boolean pending = sender.pollToSend(now, (seq, data, length) -> forward.send(stepNow, false, seq, data, length, sender));
+            forward.deliverDue(now, receiver, delivery);
+            if (receiver.isAckOverdue(now)) {
+                backward.send(now, true, 0, null, 0, receiver);
+            }
+            backward.deliverDue(now, sender, delivery);
+            if (!pending && forward.isEmpty() && backward.isEmpty() && !receiver.isAckPending()) {
+                break;
+            }
+            now += MS;
+        }
+
+        assertEquals(nbMessages, delivered.size());
+        for (int i = 0; i < nbMessages; ++i) {
+            assertEquals("message " + i, i, (int) delivered.get(i));
+        }
+        assertTrue("some datagrams must have been lost", forward.mLostCount > 0);
+        assertTrue("lost messages must be resent", sender.getResendCount() > 0);
+        assertEquals(0, sender.getInFlightCount());
+    }
+
+    @Test
+    public void duplicateIsDeliveredOnce() {
+        final ReliableChannel receiver = new ReliableChannel();
+        final ArrayList<Integer> delivered = new ArrayList<>();
+        final ReliableChannel.Receiver delivery = (data, offset, length) -> delivered.add((int) data.get(offset));
+
+        receiver.onReceive(2, ByteBuffer.wrap(new byte[] { 2 }), 0, 1, 0, delivery);     // ahead: held
+        receiver.onReceive(2, ByteBuffer.wrap(new byte[] { 2 }), 0, 1, 0, delivery);
+        assertTrue(delivered.isEmpty());
+        receiver.onReceive(1, ByteBuffer.wrap(new byte[] { 1 }), 0, 1, 0, delivery);
+        receiver.onReceive(1, ByteBuffer.wrap(new byte[] { 1 }), 0, 1, 0, delivery);
+        receiver.onReceive(2, ByteBuffer.wrap(new byte[] { 2 }), 0, 1, 0, delivery);
+        assertEquals(Arrays.asList(1, 2), delivered);
+    }
+
+    @Test
+    public void resendsWhenTheTimeoutExpires() {
+        final ReliableChannel sender = new ReliableChannel();
+        final int[] sent = { 0 };
+        sender.queue(new byte[] { 1 }, 1);
+        sender.pollToSend(0, (seq, data, length) -> ++sent[0]);
+        sender.pollToSend(INITIAL_RTO_NANOS - 1, (seq, data, length) -> ++sent[0]);
+        assertEquals(1, sent[0]);
+        sender.pollToSend(INITIAL_RTO_NANOS, (seq, data, length) -> ++sent[0]);
+        assertEquals(2, sent[0]);
+        assertEquals(1, sender.getResendCount());
+
+        sender.onAck(1, 0, INITIAL_RTO_NANOS + MS);
+        assertFalse(sender.pollToSend(10 * INITIAL_RTO_NANOS, (seq, data, length) -> ++sent[0]));
+        assertEquals(2, sent[0]);
+    }
+
+    @Test
+    public void timeoutIsClampedToItsMinimum() {
+        final ReliableChannel sender = new ReliableChannel();
+        long now = 0;
+        for (int seq = 1; seq <= 50; ++seq) {
+            sender.queue(new byte[] { 1 }, 1);
+            sender.pollToSend(now, (s, data, length) -> { });
+            now += MS / 10;
+            sender.onAck(seq, 0, now);     // 0.1ms round trip
+        }
+        assertEquals(MIN_RTO_NANOS, sender.getRtoNanos());
+    }
+
+    @Test
+    public void timeoutIsClampedToItsMaximum() {
+        final ReliableChannel sender = new ReliableChannel();
+        long now = 0;
+        for (int seq = 1; seq <= 5; ++seq) {
+            sender.queue(new byte[] { 1 }, 1);
+            sender.pollToSend(now, (s, data, length) -> { });
+            now += 5000 * MS;
+            sender.onAck(seq, 0, now);     // 5s round trip, never polled meanwhile: no resend
+        }
+        assertEquals(5000 * MS, sender.getSmoothedRttNanos());
+        assertEquals(MAX_RTO_NANOS, sender.getRtoNanos());
+    }
+
+    @Test
+    public void resentMessagesGiveNoRttSample() {
+        final ReliableChannel sender = new ReliableChannel();
+        sender.queue(new byte[] { 1 }, 1);
+        sender.pollToSend(0, (seq, data, length) -> { });
+        sender.pollToSend(INITIAL_RTO_NANOS, (seq, data, length) -> { });    // resent
+        sender.onAck(1, 0, INITIAL_RTO_NANOS + 20 * MS);
+        assertEquals(1, sender.getResendCount());
+        assertEquals("Karn: ambiguous sample skipped", 0, sender.getSmoothedRttNanos());
+        assertEquals(INITIAL_RTO_NANOS, sender.getRtoNanos());
+
+        final long start = INITIAL_RTO_NANOS + 30 * MS;
+        sender.queue(new byte[] { 2 }, 1);
+        sender.pollToSend(start, (seq, data, length) -> { });
+        sender.onAck(2, 0, start + 50 * MS);
+        assertEquals(50 * MS, sender.getSmoothedRttNanos());
+    }
+}
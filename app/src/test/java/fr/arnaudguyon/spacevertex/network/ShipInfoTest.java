@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import fr.arnaudguyon.spacevertex.network.loopback.LoopbackGameDevice;
+
+public class ShipInfoTest {
+
+    private static final float POSITION_STEP = PackMsg.PACKED_POSITION_RANGE / ((1 << (PackMsg.PACKED_POSITION_BITS - 1)) - 1);
+    private static final float SPEED_STEP = PackMsg.PACKED_SPEED_RANGE / ((1 << (PackMsg.PACKED_SPEED_BITS - 1)) - 1);
+    private static final double ROTATION_STEP = 2 * Math.PI / (1 << PackMsg.PACKED_ROTATION_BITS);
+
+    private final GameDevice mDevice = new LoopbackGameDevice("test");
+    private final PackMsg.Reader mReader = new PackMsg.Reader();
+
+    @Test
+    public void rotationStepIsTheAdvertisedPrecision() {
+        assertTrue(Math.toDegrees(ROTATION_STEP) <= PackMsg.PACKED_ROTATION_PRECISION);
+    }
+
+    @Test
+    public void packedPositionAtTheRangeLimits() {
+        final float range = PackMsg.PACKED_POSITION_RANGE;
+        final float[] positions = { 0, range, -range, range - POSITION_STEP / 3, -range + 0.01f, 1234.567f };
+        for (float position : positions) {
+            final PackMsg.ShipInfo received = roundTrip(position, -position, 0, 0, 0);
+            assertEquals(position, received.x, POSITION_STEP);
+            assertEquals(-position, received.y, POSITION_STEP);
+        }
+    }
+
+    @Test
+    public void packedPositionOutOfRangeIsExact() {
+        final float[] positions = { Math.nextUp(PackMsg.PACKED_POSITION_RANGE), -4096.5f, 1e6f, -123456.78f };
+        for (float position : positions) {
+            final PackMsg.ShipInfo received = roundTrip(position, position, 0, 0, 0);
+            assertEquals(position, received.x, 0);
+            assertEquals(position, received.y, 0);
+        }
+    }
+
+    @Test
+    public void packedSpeedAtTheRangeLimits() {
+        final float range = PackMsg.PACKED_SPEED_RANGE;
+        final float[] speeds = { 0, range, -range, 0.65f, -0.4f, range - SPEED_STEP / 3 };
+        for (float speed : speeds) {
+            final PackMsg.ShipInfo received = roundTrip(0, 0, 0, speed, -speed);
+            assertEquals(speed, received.speedX, SPEED_STEP);
+            assertEquals(-speed, received.speedY, SPEED_STEP);
+        }
+        assertEquals(0f, roundTrip(0, 0, 0, 0, 0).speedX, 0);     // a ship at rest does not drift
+        assertEquals(range, roundTrip(0, 0, 0, 2 * range, 0).speedX, 0);   // clamped
+    }
+
+    @Test
+    public void packedRotationWrapsAtPlusMinusPi() {
+        final float pi = (float) Math.PI;
+        final float[] rotations = { 0, pi, -pi, Math.nextDown(pi), Math.nextUp(-pi), -0.0001f, (float) (2 * Math.PI - 0.0001), 1f, -2f };
+        for (float rotation : rotations) {
+            final PackMsg.ShipInfo received = roundTrip(0, 0, rotation, 0, 0);
+            assertTrue("rotation " + rotation + " read " + received.rotation, BitPackingTest.angleDistance(rotation, received.rotation) <= ROTATION_STEP);
+        }
+    }
+
+    @Test
+    public void packedKeepsTheOtherFields() {
+        final PackMsg.ShipInfo sent = new PackMsg.ShipInfo(true, mDevice);
+        sent.encode(1234, 10, 20, 1, 0.5f, -0.5f, (byte) 3);
+        final PackMsg.ShipInfo received = read(sent);
+        assertEquals(PackMsg.MsgType.SHIP_INFO_PACKED, received.getType());
+        assertTrue(received.isPacked());
+        assertEquals(1234, received.getTick());
+        assertEquals(3, received.reactor);
+    }
+
+    @Test
+    public void rawRotationAtPlusMinusPi() {
+        final float pi = (float) Math.PI;
+        final float[] rotations = { pi, -pi, 0 };
+        for (float rotation : rotations) {
+            final PackMsg.ShipInfo sent = new PackMsg.ShipInfo(false, mDevice);
+            sent.encode(0, 4096.5f, -1e6f, rotation, 1.5f, -1.5f, (byte) 1);
+            final PackMsg.ShipInfo received = read(sent);
+            assertEquals(rotation, received.rotation, 1e-4f);   // short, 1/10000 radian
+            assertEquals(4096.5f, received.x, 0);
+            assertEquals(-1e6f, received.y, 0);
+            assertEquals(1.5f, received.speedX, 0);
+        }
+    }
+
+    private PackMsg.ShipInfo roundTrip(float x, float y, float rotation, float speedX, float speedY) {
+        final PackMsg.ShipInfo sent = new PackMsg.ShipInfo(true, mDevice);
+        sent.encode(0, x, y, rotation, speedX, speedY, (byte) 0);
+        return read(sent);
+    }
+
+    private PackMsg.ShipInfo read(PackMsg.ShipInfo sent) {
+        final PackMsg received = mReader.read(ByteBuffer.wrap(sent.getBuffer(), 0, sent.getLength()), mDevice);
+        assertTrue(received instanceof PackMsg.ShipInfo);
+        return (PackMsg.ShipInfo) received;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import fr.arnaudguyon.spacevertex.network.loopback.LoopbackGameDevice;
+
+public class ShipStateDeltaTest {
+
+    private static final int FRAME_MS = 16;
+    private static final int LATENCY_FRAMES = 4;        // one way
+    private static final float LOSS_RATE = 0.2f;
+    private static final int FRAMES = 70_000;           // more than the 16 bits of the sequences and of the ticks
+
+    private final GameDevice mDevice = new LoopbackGameDevice("test");
+    private final PackMsg.Reader mReader = new PackMsg.Reader();
+    private final PackMsg.Reader mPackedReader = new PackMsg.Reader();     // the messages read are reused by their Reader
+
+    /**
+     * One direction: its encoder, the decoder of the other side, and the messages on the way with the packed state they carry.
+     */
+    private class Link {
+        final ConnectionStats mStats = new ConnectionStats();
+        final ShipStateDelta mEncoder = new ShipStateDelta(mStats);
+        final PackMsg.ShipInfo mShipInfo = new PackMsg.ShipInfo(mEncoder, mDevice);
+        final PackMsg.ShipInfo mPacked = new PackMsg.ShipInfo(true, mDevice);
+        final ArrayDeque<byte[]> mInFlight = new ArrayDeque<>();
+        final ArrayDeque<byte[]> mExpected = new ArrayDeque<>();
+        final Random mRandom;
+        int mDelivered;
+        int mDecoded;
+        int mMaxSize;
+
+        Link(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        void send(long nowMs, float x, float y, float rotation, float speedX, float speedY, byte reactor) {
+            mShipInfo.encode(nowMs, x, y, rotation, speedX, speedY, reactor);
+            mPacked.encode(nowMs, x, y, rotation, speedX, speedY, reactor);
+            mMaxSize = Math.max(mMaxSize, mShipInfo.getLength());
+            final boolean lost = mRandom.nextFloat() < LOSS_RATE;
+            mInFlight.add(lost ? new byte[0] : Arrays.copyOf(mShipInfo.getBuffer(), mShipInfo.getLength()));
+            mExpected.add(Arrays.copyOf(mPacked.getBuffer(), mPacked.getLength()));
+        }
+
+        /**
+         * Delivers the message sent LATENCY_FRAMES ago, decoded by the encoder of the other direction (which reads its acks).
+         */
+        void deliver(@NonNull ShipStateDelta decoder) {
+            if (mInFlight.size() <= LATENCY_FRAMES) {
+                return;
+            }
+            final byte[] data = mInFlight.poll();
+            final byte[] expected = mExpected.poll();
+            if (data.length == 0) {
+                return;
+            }
+            ++mDelivered;
+            final PackMsg.ShipInfo received = read(data);
+            assertTrue(received.isDelta());
+            if (decoder.decode(received)) {
+                ++mDecoded;
+                final PackMsg.ShipInfo packed = (PackMsg.ShipInfo) mPackedReader.read(ByteBuffer.wrap(expected), mDevice);
+                assertEquals(packed.getTick(), received.getTick());
+                assertEquals(packed.x, received.x, 0);
+                assertEquals(packed.y, received.y, 0);
+                assertEquals(packed.speedX, received.speedX, 0);
+                assertEquals(packed.speedY, received.speedY, 0);
+                assertEquals(packed.rotation, received.rotation, 0);
+                assertEquals(packed.reactor, received.reactor);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripWithLossAndSequenceWrap() {
+        final Link serverToClient = new Link(1);
+        final Link clientToServer = new Link(2);
+        final Random random = new Random(3);
+        float x = 0, y = 0, speedX = 0.3f, speedY = -0.2f, rotation = 0;
+        byte reactor = 0;
+        for (int frame = 0; frame < FRAMES; ++frame) {
+            final long nowMs = 10_000L + (long) frame * FRAME_MS;
+            if (random.nextInt(120) == 0) {     // thrust or turn now and then, coasting in between
+                speedX = (random.nextFloat() * 2 - 1) * PackMsg.PACKED_SPEED_RANGE;
+                speedY = (random.nextFloat() * 2 - 1) * PackMsg.PACKED_SPEED_RANGE;
+                rotation = (float) Math.atan2(speedY, speedX);
+                reactor = (byte) random.nextInt(4);
+            }
+            x += speedX * FRAME_MS;
+            y += speedY * FRAME_MS;
+            if (Math.abs(x) > 5000) {     // beyond the packed range too
+                speedX = -speedX;
+            }
+            if (Math.abs(y) > 3000) {
+                speedY = -speedY;
+            }
+            serverToClient.send(nowMs, x, y, rotation, speedX, speedY, reactor);
+            clientToServer.send(nowMs, -x, -y, -rotation, -speedX, -speedY, reactor);
+            serverToClient.deliver(clientToServer.mEncoder);
+            clientToServer.deliver(serverToClient.mEncoder);
+        }
+        assertLink(serverToClient);
+        assertLink(clientToServer);
+    }
+
+    @Test
+    public void stateWithoutItsBaselineIsRejected() {
+        final ShipStateDelta sender = new ShipStateDelta(new ConnectionStats());
+        final ShipStateDelta receiver = new ShipStateDelta(new ConnectionStats());
+        final PackMsg.ShipInfo senderInfo = new PackMsg.ShipInfo(sender, mDevice);
+        final PackMsg.ShipInfo receiverInfo = new PackMsg.ShipInfo(receiver, mDevice);
+
+        senderInfo.encode(0, 10, 20, 1, 0.5f, 0, (byte) 0);
+        final PackMsg.ShipInfo packed = new PackMsg.ShipInfo(true, mDevice);
+        packed.encode(0, 10, 20, 1, 0.5f, 0, (byte) 0);
+        assertTrue(senderInfo.getLength() <= packed.getLength() + 2);      // the ack and the baseline offset
+        assertTrue(receiver.decode(read(senderInfo)));
+        receiverInfo.encode(0, 0, 0, 0, 0, 0, (byte) 0);       // acks the keyframe
+        assertTrue(sender.decode(read(receiverInfo)));
+
+        senderInfo.encode(16, 18, 20, 1, 0.5f, 0, (byte) 0);    // coasting as predicted: against the keyframe
+        assertEquals(PackMsg.HEADER_SIZE + 3, senderInfo.getLength());
+        final byte[] lost = Arrays.copyOf(senderInfo.getBuffer(), senderInfo.getLength());
+        receiverInfo.encode(16, 0, 0, 0, 0, 0, (byte) 0);
+        assertTrue(sender.decode(read(receiverInfo)));
+        senderInfo.encode(32, 26, 20, 1, 0.5f, 0, (byte) 0);
+        final PackMsg.ShipInfo received = read(senderInfo);
+        assertTrue(receiver.decode(received));                 // still against the keyframe, the only acked state
+        assertEquals(26, received.x, 0.02f);
+        assertFalse(receiver.decode(read(lost)));              // older
+
+        // Baseline never received: waits for the next keyframe rather than rebuilding a wrong state
+        final ShipStateDelta other = new ShipStateDelta(new ConnectionStats());
+        assertFalse(other.decode(read(senderInfo)));
+    }
+
+    private void assertLink(@NonNull Link link) {
+        assertTrue("delivered " + link.mDelivered, link.mDelivered > FRAMES * 7 / 10);
+        assertTrue("decoded " + link.mDecoded + " of " + link.mDelivered, link.mDecoded > link.mDelivered * 9 / 10);
+        final float ratio = link.mStats.getShipStateCompressionRatio();
+        assertTrue("compression x" + ratio, ratio > 1.3f);     // against SHIP_INFO_PACKED, the 5 bytes header included
+        assertTrue(link.mMaxSize + " bytes", link.mMaxSize <= ShipStateDelta.MAX_SIZE);
+    }
+
+    private PackMsg.ShipInfo read(@NonNull PackMsg.ShipInfo sent) {
+        return read(Arrays.copyOf(sent.getBuffer(), sent.getLength()));
+    }
+
+    private PackMsg.ShipInfo read(@NonNull byte[] data) {
+        final PackMsg received = mReader.read(ByteBuffer.wrap(data), mDevice);
+        assertTrue(received instanceof PackMsg.ShipInfo);
+        return (PackMsg.ShipInfo) received;
+    }
+}
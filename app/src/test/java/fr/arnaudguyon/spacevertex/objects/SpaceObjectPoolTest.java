@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016–2025 Arnaud GUYON
+ * This source code is licensed under the MIT License.
+ * See LICENSE file for details.
+ */
+package fr.arnaudguyon.spacevertex.objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Canvas;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import fr.arnaudguyon.spacevertex.network.PackMsg;
+import fr.arnaudguyon.spacevertex.network.loopback.LoopbackGameDevice;
+
+public class SpaceObjectPoolTest {
+
+    private static final int CYCLES = 10_000;
+    private static final int IN_FLIGHT = 8;     // objects alive at the same time during a cycle
+    private static final int WARM_UP_FRAMES = 600;          // more than a FireBall lifetime: the scene is full
+    private static final int FRAMES = 3_000;
+    private static final int FRAMES_BETWEEN_SHOTS = 22;     // ShipLocal.TIME_BETWEEN_BULLETS, at 16ms per frame
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();   // looked up once, the lookup allocates
+
+    /**
+     * Runs the frames of Scene (preDraw, collisions, draw) with both ships firing: once warm, nothing is allocated.
+     * The android.jar methods do nothing in the JVM tests, so renderFrame counts 16ms per frame.
+     */
+    @Test
+    public void steadyStateFramesDoNotAllocate() {
+        final Scene scene = new Scene(null);
+        final ShipLocal localShip = new ShipLocal(null);
+        final ShipRemote remoteShip = new ShipRemote(null);
+        remoteShip.setPos(100_000, 100_000);    // out of reach: its fireballs are tested but never hit
+        scene.setLocalShip(localShip);
+        scene.setRemoteShip(remoteShip);
+        scene.addObject(remoteShip);
+        final ShipLocal shooter = new ShipLocal(null);
+        shooter.setPos(remoteShip.getPosX(), remoteShip.getPosY());
+        final PackMsg.ShipFire remoteFire = new PackMsg.ShipFire(shooter, 0, new LoopbackGameDevice("test"));
+        final SpaceObjectPool<FireBall> pool = scene.getFireBallPool();
+        final Canvas canvas = new Canvas();
+
+        int created = 0;
+        long allocatedBytes = 0;
+        for (int frame = 0; frame < WARM_UP_FRAMES + FRAMES; ++frame) {
+            if (frame == WARM_UP_FRAMES) {
+                created = pool.getCreatedCount();
+                allocatedBytes = getAllocatedBytes();
+            }
+            if (frame % FRAMES_BETWEEN_SHOTS == 0) {
+                localShip.mShoot = true;    // what shoot() does, that times the shots with the SystemClock
+                scene.postCommand(SceneCommandQueue.Type.REMOTE_FIRE, remoteFire);
+            }
+            scene.renderFrame(canvas);
+        }
+        allocatedBytes = getAllocatedBytes() - allocatedBytes;
+
+        assertTrue(scene.getFireBallsInFlight() > 0);
+        assertEquals(Scene.FIREBALL_POOL_INITIAL_SIZE, created);
+        assertEquals(created, pool.getCreatedCount());
+        assertTrue(allocatedBytes + " bytes allocated", allocatedBytes < FRAMES);     // none per frame, the JIT can allocate a few bytes when it recompiles
+    }
+
+    @Test
+    public void fireBallsAreNotAllocatedOnceWarm() {
+        final SpaceObjectPool<FireBall> pool = new SpaceObjectPool<>(Scene.FIREBALL_POOL_INITIAL_SIZE, Scene.FIREBALL_POOL_MAX_SIZE, FireBall::new);
+        assertEquals(Scene.FIREBALL_POOL_INITIAL_SIZE, pool.getCreatedCount());
+
+        runCycles(pool, Scene.FIREBALL_POOL_INITIAL_SIZE);  // all the prewarmed ones in flight: still no allocation
+        assertEquals(Scene.FIREBALL_POOL_INITIAL_SIZE, pool.getCreatedCount());
+
+        runCycles(pool, IN_FLIGHT);
+        assertEquals(Scene.FIREBALL_POOL_INITIAL_SIZE, pool.getCreatedCount());
+        assertEquals(Scene.FIREBALL_POOL_INITIAL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void fireBallPoolKeepsAtMostItsMaxSize() {
+        assertEquals(64, Scene.FIREBALL_POOL_MAX_SIZE);
+        final SpaceObjectPool<FireBall> pool = new SpaceObjectPool<>(Scene.FIREBALL_POOL_INITIAL_SIZE, Scene.FIREBALL_POOL_MAX_SIZE, FireBall::new);
+        final int burst = Scene.FIREBALL_POOL_MAX_SIZE * 2;
+        final ArrayList<FireBall> fireBalls = new ArrayList<>(burst);
+        for (int i = 0; i < burst; ++i) {
+            fireBalls.add(pool.obtain());
+        }
+        assertEquals(burst, pool.getCreatedCount());
+        for (FireBall fireBall : fireBalls) {
+            pool.release(fireBall);
+        }
+        assertEquals(Scene.FIREBALL_POOL_MAX_SIZE, pool.getFreeCount());    // the extra ones are left to the GC
+    }
+
+    @Test
+    public void releasedObjectIsReused() {
+        final SpaceObjectPool<FireBall> pool = new SpaceObjectPool<>(0, Scene.FIREBALL_POOL_MAX_SIZE, FireBall::new);
+        final FireBall fireBall = pool.obtain();
+        pool.release(fireBall);
+        assertSame(fireBall, pool.obtain());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    private static <T extends SpaceObject> void runCycles(SpaceObjectPool<T> pool, int inFlight) {
+        final ArrayList<T> alive = new ArrayList<>(inFlight);
+        for (int cycle = 0; cycle < CYCLES; ++cycle) {
+            for (int i = 0; i < inFlight; ++i) {
+                alive.add(pool.obtain());
+            }
+            for (int i = 0; i < inFlight; ++i) {
+                pool.release(alive.get(i));
+            }
+            alive.clear();
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}